@@ -0,0 +1,406 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * In-memory copy of the most recent data points written through this TSD.
+ * <p>
+ * Every data point handed to {@link TSDB#addPoint} is also appended to a
+ * per-series buffer of primitive arrays and kept for a configurable window
+ * ({@code tsd.core.head_block.window}, in minutes).  Queries whose time range
+ * falls (partially) inside that window read the recent rows from here
+ * instead of scanning HBase, and the older rows are merged in from HBase as
+ * usual.
+ * <p>
+ * Only rows that are entirely covered by the head block are served from
+ * memory, see {@link #coverageStart}.  Because the block only sees what was
+ * written through this TSD, it should only be enabled when every writer of a
+ * given series goes through the same TSD.  Annotations are not kept here.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.1
+ */
+final class HeadBlock {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HeadBlock.class);
+
+  /** Charset used to match row keys against the query row filter. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** How frequently the eviction thread wakes up, in seconds. */
+  private static final int EVICTION_INTERVAL = 30;
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** How long, in milliseconds, data points are retained. */
+  private final long window_ms;
+
+  /** When this head block started to receive data points, in milliseconds. */
+  private final long started_ms;
+
+  /**
+   * All the series we know of, keyed by TSUID (row key without timestamp).
+   * Sorted so all the series of a given metric are next to each other.
+   */
+  private final ConcurrentSkipListMap<byte[], Series> series =
+    new ConcurrentSkipListMap<byte[], Series>(Bytes.MEMCMP);
+
+  /** Number of data points added. */
+  private final AtomicLong added = new AtomicLong();
+  /** Number of data points too old to be kept. */
+  private final AtomicLong rejected = new AtomicLong();
+  /** Number of data points evicted after falling out of the window. */
+  private final AtomicLong evicted = new AtomicLong();
+  /** Number of queries answered (at least partially) from memory. */
+  private final AtomicLong queries = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @param window_minutes How many minutes of data points to keep in memory.
+   * @throws IllegalArgumentException if the window is not greater than 0.
+   */
+  HeadBlock(final TSDB tsdb, final int window_minutes) {
+    if (window_minutes < 1) {
+      throw new IllegalArgumentException("Head block window must be greater"
+          + " than 0 minutes: " + window_minutes);
+    }
+    this.tsdb = tsdb;
+    window_ms = window_minutes * 60000L;
+    started_ms = System.currentTimeMillis();
+    final Thrd thread = new Thrd();
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Records a data point that was just written to storage.
+   * @param row The row key of the data point, including the base time.
+   * @param timestamp The timestamp of the data point in seconds or ms.
+   * @param value The encoded value of the data point.
+   * @param flags The qualifier flags of the data point.
+   */
+  void add(final byte[] row, final long timestamp, final byte[] value,
+           final short flags) {
+    final long ms = toMs(timestamp);
+    if (ms < System.currentTimeMillis() - window_ms) {
+      rejected.incrementAndGet();  // Old data is served by HBase.
+      return;
+    }
+    final byte[] tsuid = UniqueId.getTSUIDFromKey(row,
+        tsdb.metrics.width(), Const.TIMESTAMP_BYTES);
+    Series s = series.get(tsuid);
+    if (s == null) {
+      s = new Series();
+      final Series existing = series.putIfAbsent(tsuid, s);
+      if (existing != null) {
+        s = existing;
+      }
+    }
+    long v = 0;
+    for (final byte b : value) {
+      v = (v << 8) | (b & 0xFF);
+    }
+    s.add(timestamp, v, flags);
+    added.incrementAndGet();
+  }
+
+  /**
+   * Returns the base time, in seconds, of the first row that is entirely
+   * held in memory.  Every data point at or after that time written through
+   * this TSD is guaranteed to be in the head block.
+   */
+  long coverageStart() {
+    final long from = Math.max(started_ms,
+        System.currentTimeMillis() - window_ms) / 1000;
+    final long aligned = from - (from % Const.MAX_TIMESPAN);
+    return aligned == from ? aligned : aligned + Const.MAX_TIMESPAN;
+  }
+
+  /**
+   * Loads the rows of all the matching series into the given spans.
+   * @param metric The metric UID of the query.
+   * @param start The time of the first data point to load, in seconds.
+   * Should not be before {@link #coverageStart} as older rows may be
+   * incomplete.
+   * @param end The time of the last data point to load, in seconds, or -1 to
+   * load everything after {@code start}.
+   * @param filter An optional row key filter, as built for HBase scanners.
+   * @param spans The spans to populate, keyed by row key.
+   * @return The number of rows loaded.
+   */
+  int fillSpans(final byte[] metric, final long start, final long end,
+                final Pattern filter, final TreeMap<byte[], Span> spans) {
+    final short metric_width = tsdb.metrics.width();
+    int nrows = 0;
+    for (final Map.Entry<byte[], Series> entry
+        : series.tailMap(metric).entrySet()) {
+      final byte[] tsuid = entry.getKey();
+      if (Bytes.memcmp(metric, tsuid, 0, metric_width) != 0) {
+        break;  // We're past the series of this metric.
+      }
+      final byte[] key = new byte[tsuid.length + Const.TIMESTAMP_BYTES];
+      System.arraycopy(tsuid, 0, key, 0, metric_width);
+      System.arraycopy(tsuid, metric_width, key,
+          metric_width + Const.TIMESTAMP_BYTES, tsuid.length - metric_width);
+      if (filter != null
+          && !filter.matcher(new String(key, CHARSET)).matches()) {
+        continue;
+      }
+      Span span = null;
+      for (final KeyValue row : entry.getValue().rows(key, metric_width,
+          start, end)) {
+        if (span == null) {
+          span = spans.get(row.key());
+          if (span == null) {
+            span = new Span(tsdb);
+            spans.put(row.key(), span);
+          }
+        }
+        span.addRow(row);
+        nrows++;
+      }
+    }
+    queries.incrementAndGet();
+    return nrows;
+  }
+
+  /** @return the number of series currently held in memory. */
+  int numSeries() {
+    return series.size();
+  }
+
+  /**
+   * Drops the data points that fell out of the window, as well as the series
+   * that no longer have any data point.
+   */
+  void evict() {
+    final long cutoff = System.currentTimeMillis() - window_ms;
+    final Iterator<Map.Entry<byte[], Series>> it =
+      series.entrySet().iterator();
+    while (it.hasNext()) {
+      final Series s = it.next().getValue();
+      evicted.addAndGet(s.evictBefore(cutoff));
+      if (s.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("headblock.series", series.size());
+    collector.record("headblock.datapoints", added, "type=added");
+    collector.record("headblock.datapoints", rejected, "type=rejected");
+    collector.record("headblock.datapoints", evicted, "type=evicted");
+    collector.record("headblock.queries", queries);
+  }
+
+  /** Converts a timestamp in seconds or milliseconds to milliseconds. */
+  private static long toMs(final long timestamp) {
+    return (timestamp & Const.SECOND_MASK) != 0 ? timestamp : timestamp * 1000;
+  }
+
+  /**
+   * The data points of a single series, sorted by time.
+   * Timestamps are kept as given (seconds or milliseconds) so we can rebuild
+   * the exact same qualifiers as the ones stored in HBase.
+   */
+  static final class Series {
+    /** Original timestamps, in seconds or milliseconds. */
+    private long[] timestamps = new long[16];
+    /** Values, as the big-endian integer of their encoded bytes. */
+    private long[] values = new long[16];
+    /** Qualifier flags. */
+    private short[] flags = new short[16];
+    /** Number of data points in the arrays. */
+    private int size;
+
+    /** Adds a data point, replacing any existing one at the same time. */
+    synchronized void add(final long timestamp, final long value,
+                          final short flag) {
+      final long ms = toMs(timestamp);
+      int i = size;
+      // Data mostly comes in order, so search backwards from the end.
+      while (i > 0 && toMs(timestamps[i - 1]) > ms) {
+        i--;
+      }
+      if (i > 0 && toMs(timestamps[i - 1]) == ms) {
+        timestamps[i - 1] = timestamp;
+        values[i - 1] = value;
+        flags[i - 1] = flag;
+        return;
+      }
+      if (size == timestamps.length) {
+        final int capacity = size * 2;
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        values = Arrays.copyOf(values, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+      }
+      if (i < size) {
+        System.arraycopy(timestamps, i, timestamps, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        System.arraycopy(flags, i, flags, i + 1, size - i);
+      }
+      timestamps[i] = timestamp;
+      values[i] = value;
+      flags[i] = flag;
+      size++;
+    }
+
+    /**
+     * Removes all the data points before the given time.
+     * @param cutoff A timestamp in milliseconds.
+     * @return The number of data points removed.
+     */
+    synchronized int evictBefore(final long cutoff) {
+      int n = 0;
+      while (n < size && toMs(timestamps[n]) < cutoff) {
+        n++;
+      }
+      if (n > 0) {
+        size -= n;
+        System.arraycopy(timestamps, n, timestamps, 0, size);
+        System.arraycopy(values, n, values, 0, size);
+        System.arraycopy(flags, n, flags, 0, size);
+      }
+      return n;
+    }
+
+    /** @return whether or not this series is empty. */
+    synchronized boolean isEmpty() {
+      return size == 0;
+    }
+
+    /**
+     * Builds compacted rows, in the same format as the ones read from HBase,
+     * for all the data points within the given range.
+     * @param key A row key template for this series.  Will not be modified.
+     * @param metric_width The width of metric UIDs.
+     * @param start The first timestamp to return, in seconds.
+     * @param end The last timestamp to return, in seconds, or -1 to return
+     * everything after {@code start}.
+     * @return A possibly empty array of rows, sorted by base time.
+     */
+    synchronized KeyValue[] rows(final byte[] key, final short metric_width,
+                                 final long start, final long end) {
+      int i = 0;
+      while (i < size && toMs(timestamps[i]) < start * 1000) {
+        i++;
+      }
+      final long end_ms = end < 0 ? Long.MAX_VALUE : end * 1000 + 999;
+      int last = i;
+      while (last < size && toMs(timestamps[last]) <= end_ms) {
+        last++;
+      }
+      if (i == last) {
+        return new KeyValue[0];
+      }
+      final long first_s = toMs(timestamps[i]) / 1000;
+      final long last_s = toMs(timestamps[last - 1]) / 1000;
+      final KeyValue[] rows = new KeyValue[(int)
+        ((last_s - (last_s % Const.MAX_TIMESPAN)
+          - (first_s - (first_s % Const.MAX_TIMESPAN))) / Const.MAX_TIMESPAN) + 1];
+      int nrows = 0;
+      while (i < last) {
+        final long seconds = toMs(timestamps[i]) / 1000;
+        final long base_time = seconds - (seconds % Const.MAX_TIMESPAN);
+        // Find all the data points in this row.
+        int j = i;
+        int qual_len = 0;
+        int val_len = 1;  // Reserve an extra byte for meta-data.
+        boolean ms_in_row = false;
+        boolean s_in_row = false;
+        while (j < last && toMs(timestamps[j]) < (base_time
+            + Const.MAX_TIMESPAN) * 1000) {
+          if ((timestamps[j] & Const.SECOND_MASK) != 0) {
+            ms_in_row = true;
+            qual_len += 4;
+          } else {
+            s_in_row = true;
+            qual_len += 2;
+          }
+          val_len += (flags[j] & Const.LENGTH_MASK) + 1;
+          j++;
+        }
+        final byte[] qualifier = new byte[qual_len];
+        final byte[] value = new byte[val_len];
+        int qual_idx = 0;
+        int val_idx = 0;
+        for (; i < j; i++) {
+          final byte[] q = Internal.buildQualifier(timestamps[i], flags[i]);
+          System.arraycopy(q, 0, qualifier, qual_idx, q.length);
+          qual_idx += q.length;
+          final int vlen = (flags[i] & Const.LENGTH_MASK) + 1;
+          for (int b = vlen - 1; b >= 0; b--) {
+            value[val_idx++] = (byte) (values[i] >>> (b * 8));
+          }
+        }
+        if (ms_in_row && s_in_row) {
+          value[value.length - 1] = Const.MS_MIXED_COMPACT;
+        }
+        final byte[] row_key = Arrays.copyOf(key, key.length);
+        Bytes.setInt(row_key, (int) base_time, metric_width);
+        rows[nrows++] = new KeyValue(row_key, TSDB.FAMILY, qualifier, value);
+      }
+      return nrows == rows.length ? rows : Arrays.copyOf(rows, nrows);
+    }
+  }
+
+  /**
+   * Background thread to periodically evict old data points.
+   */
+  final class Thrd extends Thread {
+    public Thrd() {
+      super("HeadBlockEviction");
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(EVICTION_INTERVAL * 1000);
+        } catch (InterruptedException e) {
+          LOG.error("Head block eviction thread interrupted", e);
+          return;
+        }
+        try {
+          evict();
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in head block eviction thread", e);
+        }
+      }
+    }
+  }
+
+}
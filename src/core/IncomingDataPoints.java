@@ -26,7 +26,7 @@ import org.hbase.async.Bytes;
 import org.hbase.async.PutRequest;
 
 import net.opentsdb.meta.Annotation;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.ConcurrentHistogram;
 import org.hbase.async.AppendRequest;
 
 /**
@@ -39,10 +39,10 @@ final class IncomingDataPoints implements WritableDataPoints {
 
   /**
    * Keep track of the latency (in ms) we perceive sending edits to HBase.
-   * We want buckets up to 16s, with 2 ms interval between each bucket up to
-   * 100 ms after we which we switch to exponential buckets.
+   * We want values up to 10 minutes, within about 6% of their actual value.
    */
-  static final Histogram putlatency = new Histogram(16000, (short) 2, 100);
+  static final ConcurrentHistogram putlatency =
+    new ConcurrentHistogram(600000, 5);
 
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
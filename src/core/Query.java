@@ -19,6 +19,7 @@ import org.hbase.async.HBaseException;
 
 import com.stumbleupon.async.Deferred;
 
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.uid.NoSuchUniqueName;
 
 /**
@@ -155,6 +156,15 @@ public interface Query {
    */
   void downsample(long interval, Aggregator downsampler);
 
+  /**
+   * Asks the query to record its execution profile (time spent scanning,
+   * number of rows and cells fetched...) in the given object.
+   * @param stats The object to record the stats in, or {@code null} to not
+   * record anything (the default).
+   * @since 2.1
+   */
+  void setQueryStats(QueryStats stats);
+
   /**
    * Runs this query.
    * @return The data points matched by this query.
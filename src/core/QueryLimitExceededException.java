@@ -0,0 +1,33 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+/**
+ * A query was aborted because it went over one of the limits configured for
+ * the resources a single query may use, such as the number of rows scanned.
+ * @since 2.1
+ */
+public final class QueryLimitExceededException extends RuntimeException {
+
+  /**
+   * Constructor.
+   *
+   * @param msg Message describing which limit was exceeded.
+   */
+  public QueryLimitExceededException(final String msg) {
+    super(msg);
+  }
+
+  static final long serialVersionUID = 1404771524;
+
+}
@@ -12,6 +12,8 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -35,19 +37,29 @@ import org.hbase.async.KeyValue;
 import org.hbase.async.PutRequest;
 
 import net.opentsdb.tree.TreeBuilder;
+import net.opentsdb.tree.TreeProcessingQueue;
 import net.opentsdb.tsd.RTPublisher;
 import net.opentsdb.tsd.RpcPlugin;
+import net.opentsdb.uid.BoundedUniqueIdCache;
+import net.opentsdb.uid.HeapUniqueIdCache;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.OffHeapUniqueIdCache;
 import net.opentsdb.uid.UniqueId;
+import net.opentsdb.uid.UniqueIdCache;
+import net.opentsdb.uid.UniqueIdSnapshot;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 import net.opentsdb.utils.PluginLoader;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.meta.TSMeta;
+import net.opentsdb.meta.TSMetaCounters;
 import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.search.EmbeddedSearchPlugin;
+import net.opentsdb.search.SearchIndexBuffer;
 import net.opentsdb.search.SearchPlugin;
 import net.opentsdb.search.SearchQuery;
+import net.opentsdb.stats.ConcurrentHistogram;
 import net.opentsdb.stats.Histogram;
 import net.opentsdb.stats.StatsCollector;
 import org.hbase.async.AppendRequest;
@@ -102,9 +114,30 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /** Local TSMeta counters, null if disabled */
+  private final TSMetaCounters meta_counters;
+
+  /** Background tree processing, null to process TSMetas inline */
+  private final TreeProcessingQueue tree_queue;
+
+  /** Recent data points kept in memory, null if the head block is disabled */
+  final HeadBlock head_block;
+
+  /** Maximum number of rows a query may scan, 0 for no limit */
+  final long query_max_rows;
+  /** Maximum number of data points a query may fetch, 0 for no limit */
+  final long query_max_dps;
+  /** Maximum number of bytes a query may fetch, 0 for no limit */
+  final long query_max_bytes;
+  /** Maximum time, in milliseconds, a query may scan for, 0 for no limit */
+  final long query_max_time;
+
   /** Search indexer to use if configure */
   private SearchPlugin search = null;
   
+  /** Buffer batching the objects to index, null to index them one by one */
+  private SearchIndexBuffer search_buffer = null;
+  
   /** Optional real time pulblisher plugin to use if configured */
   private RTPublisher rt_publisher = null;
   
@@ -148,10 +181,33 @@ public final class TSDB {
     meta_table = config.getString("tsd.storage.hbase.meta_table").getBytes(CHARSET);
 
     metrics = new UniqueId(client, uidtable, METRICS_QUAL, METRICS_WIDTH,
-            config.getBoolean("tsd.core.random_metric_id"));
-    tag_names = new UniqueId(client, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH);
-    tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH);
+            config.getBoolean("tsd.core.random_metric_id"), 
+            newUidCache(METRICS_QUAL));
+    tag_names = new UniqueId(client, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH,
+        false, newUidCache(TAG_NAME_QUAL));
+    tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL, 
+        TAG_VALUE_WIDTH, false, newUidCache(TAG_VALUE_QUAL));
+    final int block_size = config.getInt("tsd.core.uid.assign_block_size");
+    metrics.setIdBlockSize(block_size);
+    tag_names.setIdBlockSize(block_size);
+    tag_values.setIdBlockSize(block_size);
+    final int negative_size = 
+        config.getInt("tsd.core.uid.negative_cache.max_size");
+    final long negative_ttl = 
+        config.getInt("tsd.core.uid.negative_cache.ttl") * 1000L;
+    metrics.setNegativeCache(negative_size, negative_ttl);
+    tag_names.setNegativeCache(negative_size, negative_ttl);
+    tag_values.setNegativeCache(negative_size, negative_ttl);
+    if (config.getBoolean("tsd.core.uid.suggest.in_memory")) {
+      metrics.enableSuggestIndex();
+      tag_names.enableSuggestIndex();
+      tag_values.enableSuggestIndex();
+    }
     followAppendRowLogic = config.getBoolean("tsd.core.enable_append");
+    query_max_rows = config.getLong("tsd.query.limits.rows");
+    query_max_dps = config.getLong("tsd.query.limits.dps");
+    query_max_bytes = config.getLong("tsd.query.limits.bytes");
+    query_max_time = config.getLong("tsd.query.limits.time");
     
     if (followAppendRowLogic()) {
       config.setEnable_compactions(false);
@@ -159,6 +215,32 @@ public final class TSDB {
 
     compactionq = new CompactionQueue(this);
 
+    final int seen_tsuids = config.getInt("tsd.core.meta.seen_tsuids.max_size");
+    if (seen_tsuids > 0 && (config.enable_tsuid_incrementing() 
+        || config.enable_realtime_ts() || config.enable_tsuid_tracking())) {
+      // Same precedence as in addPointInternal(): incrementing trumps tracking
+      meta_counters = new TSMetaCounters(this, seen_tsuids, 
+          config.getLong("tsd.core.meta.counters.flush_interval"),
+          config.enable_tsuid_tracking() && !config.enable_tsuid_incrementing());
+    } else {
+      meta_counters = null;
+    }
+
+    final int tree_queue_size = config.getInt("tsd.core.tree.queue.size");
+    if (config.enable_tree_processing() && tree_queue_size > 0) {
+      tree_queue = new TreeProcessingQueue(this, tree_queue_size, 
+          config.getInt("tsd.core.tree.queue.threads"));
+    } else {
+      tree_queue = null;
+    }
+
+    if (config.getBoolean("tsd.core.head_block.enable")) {
+      head_block = new HeadBlock(this, 
+          config.getInt("tsd.core.head_block.window"));
+    } else {
+      head_block = null;
+    }
+
     if (config.hasProperty("tsd.core.timezone")) {
       DateTime.setDefaultTimezone(config.getString("tsd.core.timezone"));
     }
@@ -173,6 +255,92 @@ public final class TSDB {
     LOG.debug(config.dumpConfiguration());
   }
   
+  /**
+   * Creates a UID cache of the type set in {@code tsd.core.uid.cache.type},
+   * bounded by {@code tsd.core.uid.cache.max_size.<kind>} if greater than 0.
+   * @param kind The kind of UID the cache is for
+   * @return A new, empty cache
+   * @throws IllegalArgumentException if the type is unknown or if a bound is
+   * set on a cache type that doesn't support it
+   */
+  private UniqueIdCache newUidCache(final String kind) {
+    final String type = config.getString("tsd.core.uid.cache.type");
+    final int max_size = config.getInt("tsd.core.uid.cache.max_size." + kind);
+    if (type.equals("heap")) {
+      return max_size > 0 ? new BoundedUniqueIdCache(max_size) 
+          : new HeapUniqueIdCache();
+    } else if (type.equals("off_heap")) {
+      if (max_size > 0) {
+        throw new IllegalArgumentException("The off heap UID cache cannot be"
+            + " bounded, unset tsd.core.uid.cache.max_size." + kind);
+      }
+      return new OffHeapUniqueIdCache();
+    }
+    throw new IllegalArgumentException("Unknown UID cache type: " + type);
+  }
+  
+  /**
+   * Warms up the UID caches, either from the snapshot file set in
+   * {@code tsd.core.uid.cache.snapshot_file} if it exists, or by scanning the
+   * whole UID table if {@code tsd.core.uid.cache.preload} is enabled.
+   * If {@code tsd.core.uid.suggest.in_memory} is enabled, the table is always
+   * scanned, as the snapshot only holds the names that were cached.
+   * Failures are logged and the TSD starts with cold caches.
+   * @return The number of UID mappings loaded
+   * @since 2.1
+   */
+  public Deferred<Long> loadUidCaches() {
+    // suggestions can only be served from memory once all names are loaded
+    final boolean suggest_in_memory = 
+      config.getBoolean("tsd.core.uid.suggest.in_memory");
+    final String path = config.getString("tsd.core.uid.cache.snapshot_file");
+    if (!path.isEmpty() && new File(path).exists()) {
+      try {
+        final long start = System.currentTimeMillis();
+        final long count = UniqueIdSnapshot.read(new File(path), 
+            metrics, tag_names, tag_values);
+        LOG.info("Loaded " + count + " UID mappings from " + path + " in " 
+            + (System.currentTimeMillis() - start) + "ms");
+        if (!suggest_in_memory) {
+          return Deferred.fromResult(count);
+        }
+      } catch (IOException e) {
+        LOG.error("Failed to load the UID cache snapshot " + path, e);
+      }
+    }
+    if (!config.getBoolean("tsd.core.uid.cache.preload") 
+        && !suggest_in_memory) {
+      return Deferred.fromResult(0L);
+    }
+    
+    final long start = System.currentTimeMillis();
+    final class PreloadCB implements Callback<Long, Long> {
+      public Long call(final Long count) {
+        LOG.info("Preloaded " + count + " UID mappings in " 
+            + (System.currentTimeMillis() - start) + "ms");
+        setSuggestIndexLoaded();
+        return count;
+      }
+    }
+    final class PreloadErrback implements Callback<Long, Exception> {
+      public Long call(final Exception e) {
+        LOG.error("Failed to preload the UID caches", e);
+        return 0L;
+      }
+    }
+    return UniqueId.preloadCaches(client, uidtable, 
+        config.getInt("tsd.core.uid.cache.preload_scanners"), 
+        metrics, tag_names, tag_values)
+        .addCallbacks(new PreloadCB(), new PreloadErrback());
+  }
+  
+  /** Lets the UniqueIds serve suggestions from memory, if enabled */
+  private void setSuggestIndexLoaded() {
+    metrics.setSuggestIndexLoaded();
+    tag_names.setSuggestIndexLoaded();
+    tag_values.setSuggestIndexLoaded();
+  }
+  
   /**
    * Should be called immediately after construction to initialize plugins and
    * objects that rely on such. It also moves most of the potential exception
@@ -197,8 +365,14 @@ public final class TSDB {
 
     // load the search plugin if enabled
     if (config.getBoolean("tsd.search.enable")) {
-      search = PluginLoader.loadSpecificPlugin(
-          config.getString("tsd.search.plugin"), SearchPlugin.class);
+      if (EmbeddedSearchPlugin.class.getName().equals(
+          config.getString("tsd.search.plugin"))) {
+        // built in, no need to look for it in the plugin path
+        search = new EmbeddedSearchPlugin();
+      } else {
+        search = PluginLoader.loadSpecificPlugin(
+            config.getString("tsd.search.plugin"), SearchPlugin.class);
+      }
       if (search == null) {
         throw new IllegalArgumentException("Unable to locate search plugin: " + 
             config.getString("tsd.search.plugin"));
@@ -211,6 +385,11 @@ public final class TSDB {
       LOG.info("Successfully initialized search plugin [" + 
           search.getClass().getCanonicalName() + "] version: " 
           + search.version());
+      final int batch_size = config.getInt("tsd.search.batch.size");
+      if (batch_size > 0) {
+        search_buffer = new SearchIndexBuffer(search, batch_size, 
+            config.getLong("tsd.search.batch.flush_interval"));
+      }
     } else {
       search = null;
     }
@@ -432,6 +611,7 @@ public final class TSDB {
     collector.addExtraTag("class", "TsdbQuery");
     try {
       collector.record("hbase.latency", TsdbQuery.scanlatency, "method=scan");
+      collector.record("query.aborted", TsdbQuery.aborted, "reason=limit");
     } finally {
       collector.clearExtraTag("class");
     }
@@ -458,6 +638,18 @@ public final class TSDB {
                      stats.numRpcDelayedDueToNSRE());
 
     compactionq.collectStats(collector);
+    if (meta_counters != null) {
+      meta_counters.collectStats(collector);
+    }
+    if (tree_queue != null) {
+      tree_queue.collectStats(collector);
+    }
+    if (config.enable_tree_processing()) {
+      TreeBuilder.collectStats(collector);
+    }
+    if (head_block != null) {
+      head_block.collectStats(collector);
+    }
     UniqueId.collectStats(collector);
     // Collect Stats from Plugins
     if (rt_publisher != null) {
@@ -468,6 +660,9 @@ public final class TSDB {
 	collector.clearExtraTag("plugin");
       }                        
     }
+    if (search_buffer != null) {
+      search_buffer.collectStats(collector);
+    }
     if (search != null) {
       try {
 	collector.addExtraTag("plugin", "search");
@@ -488,13 +683,41 @@ public final class TSDB {
     }        
   }
 
-  /** Returns a latency histogram for Put RPCs used to store data points. */
+  /**
+   * Returns a copy of the latency histogram for Put RPCs used to store data
+   * points, in milliseconds.
+   * @deprecated Use {@link #getPutLatencyConcurrentHistogram}, which is more
+   * precise and isn't copied.
+   */
+  @Deprecated
   public Histogram getPutLatencyHistogram() {
-    return IncomingDataPoints.putlatency;
+    return IncomingDataPoints.putlatency.toHistogram(16000, (short) 2, 100);
   }
 
-  /** Returns a latency histogram for Scan RPCs used to fetch data points.  */
+  /**
+   * Returns a copy of the latency histogram for Scan RPCs used to fetch data
+   * points, in milliseconds.
+   * @deprecated Use {@link #getScanLatencyConcurrentHistogram}, which is more
+   * precise and isn't copied.
+   */
+  @Deprecated
   public Histogram getScanLatencyHistogram() {
+    return TsdbQuery.scanlatency.toHistogram(16000, (short) 2, 100);
+  }
+
+  /**
+   * Returns a latency histogram for Put RPCs used to store data points.
+   * @since 2.1
+   */
+  public ConcurrentHistogram getPutLatencyConcurrentHistogram() {
+    return IncomingDataPoints.putlatency;
+  }
+
+  /**
+   * Returns a latency histogram for Scan RPCs used to fetch data points.
+   * @since 2.1
+   */
+  public ConcurrentHistogram getScanLatencyConcurrentHistogram() {
     return TsdbQuery.scanlatency;
   }
 
@@ -508,6 +731,16 @@ public final class TSDB {
     collector.record("uid.cache-hit", uid.cacheHits(), "kind=" + uid.kind());
     collector.record("uid.cache-miss", uid.cacheMisses(), "kind=" + uid.kind());
     collector.record("uid.cache-size", uid.cacheSize(), "kind=" + uid.kind());
+    collector.record("uid.cache-evictions", uid.cacheEvictions(), 
+        "kind=" + uid.kind());
+    collector.record("uid.negative-cache-hit", uid.negativeCacheHits(), 
+        "kind=" + uid.kind());
+    collector.record("uid.suggest-index-size", uid.suggestIndexSize(), 
+        "kind=" + uid.kind());
+    final long lookups = (long) uid.cacheHits() + uid.cacheMisses();
+    collector.record("uid.cache-hit-ratio", 
+        lookups == 0 ? 0 : uid.cacheHits() * 100L / lookups, 
+        "kind=" + uid.kind());
   }
 
   /** @return the width, in bytes, of metric UIDs */
@@ -532,6 +765,20 @@ public final class TSDB {
     return new TsdbQuery(this);
   }
 
+  /**
+   * Runs several queries, sharing a single HBase scan between the queries
+   * that are on the same metric and time range, e.g. the sub queries of a
+   * dashboard asking for the same metric grouped in different ways.
+   * @param queries The queries to run, built with {@link #newQuery}
+   * @return The results of each query, in the same order as the queries.
+   * @throws HBaseException if there was a problem communicating with HBase to
+   * perform the search.
+   * @since 2.1
+   */
+  public Deferred<ArrayList<DataPoints[]>> runQueries(final Query[] queries) {
+    return TsdbQuery.runAsync(queries);
+  }
+
   /**
    * Returns a new {@link WritableDataPoints} instance suitable for this TSDB.
    * <p>
@@ -698,6 +945,10 @@ public final class TSDB {
       // timing in a moving Histogram (once we have a class for this).
       result = client.put(point);
     }
+    
+    if (head_block != null) {
+      head_block.add(row, timestamp, value, flags);
+    }
         
     if (!config.enable_realtime_ts() && !config.enable_tsuid_incrementing() && 
         !config.enable_tsuid_tracking() && rt_publisher == null) {
@@ -710,7 +961,10 @@ public final class TSDB {
     // for busy TSDs we may only enable TSUID tracking, storing a 1 in the
     // counter field for a TSUID with the proper timestamp. If the user would
     // rather have TSUID incrementing enabled, that will trump the PUT
-    if (config.enable_tsuid_tracking() && !config.enable_tsuid_incrementing()) {
+    if (meta_counters != null) {
+      meta_counters.increment(tsuid);
+    } else if (config.enable_tsuid_tracking() && 
+        !config.enable_tsuid_incrementing()) {
       final PutRequest tracking = new PutRequest(meta_table, tsuid, 
           TSMeta.FAMILY(), TSMeta.COUNTER_QUALIFIER(), Bytes.fromLong(1));
       client.put(tracking);
@@ -738,6 +992,12 @@ public final class TSDB {
    * recoverable by retrying, some are not.
    */
   public Deferred<Object> flush() throws HBaseException {
+    if (meta_counters != null) {
+      meta_counters.flush();
+    }
+    if (search_buffer != null) {
+      search_buffer.flush();
+    }
     final class HClientFlush implements Callback<Object, ArrayList<Object>> {
       public Object call(final ArrayList<Object> args) {
         return client.flush();
@@ -770,6 +1030,22 @@ public final class TSDB {
     final ArrayList<Deferred<Object>> deferreds = 
       new ArrayList<Deferred<Object>>();
     
+    if (meta_counters != null) {
+      LOG.info("Flushing TSMeta counters");
+      meta_counters.flush();
+    }
+    
+    final String snapshot = config.getString("tsd.core.uid.cache.snapshot_file");
+    if (!snapshot.isEmpty()) {
+      try {
+        final long count = UniqueIdSnapshot.write(new File(snapshot), 
+            metrics, tag_names, tag_values);
+        LOG.info("Saved " + count + " UID mappings to " + snapshot);
+      } catch (IOException e) {
+        LOG.error("Failed to save the UID cache snapshot " + snapshot, e);
+      }
+    }
+    
     final class HClientShutdown implements Callback<Object, ArrayList<Object>> {
       public Object call(final ArrayList<Object> args) {
         return client.shutdown();
@@ -812,7 +1088,22 @@ public final class TSDB {
     if (search != null) {
       LOG.info("Shutting down search plugin: " + 
           search.getClass().getCanonicalName());
-      deferreds.add(search.shutdown());
+      if (search_buffer != null) {
+        // hand the plugin what's still buffered before it goes away
+        final class SearchShutdown 
+          implements Callback<Deferred<Object>, ArrayList<Object>> {
+          public Deferred<Object> call(final ArrayList<Object> ignored) {
+            return search.shutdown();
+          }
+          public String toString() {
+            return "shutdown search plugin";
+          }
+        }
+        deferreds.add(search_buffer.flush()
+            .addCallbackDeferring(new SearchShutdown()));
+      } else {
+        deferreds.add(search.shutdown());
+      }
     }
     if (rt_publisher != null) {
       LOG.info("Shutting down RT plugin: " + 
@@ -973,7 +1264,9 @@ public final class TSDB {
    * @since 2.0
    */
   public void indexTSMeta(final TSMeta meta) {
-    if (search != null) {
+    if (search_buffer != null) {
+      search_buffer.indexTSMeta(meta);
+    } else if (search != null) {
       search.indexTSMeta(meta).addErrback(new PluginError());
     }
   }
@@ -984,6 +1277,9 @@ public final class TSDB {
    * @since 2.0
    */
   public void deleteTSMeta(final String tsuid) {
+    if (search_buffer != null) {
+      search_buffer.deleteTSMeta(tsuid);
+    }
     if (search != null) {
       search.deleteTSMeta(tsuid).addErrback(new PluginError());
     }
@@ -995,7 +1291,9 @@ public final class TSDB {
    * @since 2.0
    */
   public void indexUIDMeta(final UIDMeta meta) {
-    if (search != null) {
+    if (search_buffer != null) {
+      search_buffer.indexUIDMeta(meta);
+    } else if (search != null) {
       search.indexUIDMeta(meta).addErrback(new PluginError());
     }
   }
@@ -1006,6 +1304,9 @@ public final class TSDB {
    * @since 2.0
    */
   public void deleteUIDMeta(final UIDMeta meta) {
+    if (search_buffer != null) {
+      search_buffer.deleteUIDMeta(meta);
+    }
     if (search != null) {
       search.deleteUIDMeta(meta).addErrback(new PluginError());
     }
@@ -1017,7 +1318,9 @@ public final class TSDB {
    * @since 2.0
    */
   public void indexAnnotation(final Annotation note) {
-    if (search != null) {
+    if (search_buffer != null) {
+      search_buffer.indexAnnotation(note);
+    } else if (search != null) {
       search.indexAnnotation(note).addErrback(new PluginError());
     }
     if( rt_publisher != null ) {
@@ -1031,6 +1334,9 @@ public final class TSDB {
    * @since 2.0
    */
   public void deleteAnnotation(final Annotation note) {
+    if (search_buffer != null) {
+      search_buffer.deleteAnnotation(note);
+    }
     if (search != null) {
       search.deleteAnnotation(note).addErrback(new PluginError());
     }
@@ -1042,7 +1348,9 @@ public final class TSDB {
    * @since 2.0
    */
   public Deferred<Boolean> processTSMetaThroughTrees(final TSMeta meta) {
-    if (config.enable_tree_processing()) {
+    if (tree_queue != null) {
+      return tree_queue.enqueue(meta);
+    } else if (config.enable_tree_processing()) {
       return TreeBuilder.processAllTrees(this, meta);
     }
     return Deferred.fromResult(false);
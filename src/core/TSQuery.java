@@ -61,6 +61,9 @@ public final class TSQuery {
   /** Whether or not to show TSUIDs when returning data */
   private boolean show_tsuids;
   
+  /** Whether or not to return the execution profile of each sub query */
+  private boolean show_stats;
+  
   /** A list of parsed sub queries, must have one or more to fetch data */
   private ArrayList<TSSubQuery> queries;
 
@@ -129,6 +132,20 @@ public final class TSQuery {
    * @return An array of queries
    */
   public Query[] buildQueries(final TSDB tsdb) {
+    return buildQueries(tsdb, show_stats);
+  }
+  
+  /**
+   * Compiles the TSQuery into an array of Query objects for execution, 
+   * optionally recording their execution profile even if the user didn't
+   * ask to see it, e.g. to log slow queries.
+   * @param tsdb The tsdb to use for {@link TSDB#newQuery}
+   * @param record_stats Whether or not to record the execution profile of
+   * each sub query, available through {@link TSSubQuery#stats}
+   * @return An array of queries
+   * @since 2.1
+   */
+  public Query[] buildQueries(final TSDB tsdb, final boolean record_stats) {
     final Query[] queries = new Query[this.queries.size()];
     int i = 0;
     for (TSSubQuery sub : this.queries) {
@@ -156,6 +173,9 @@ public final class TSQuery {
         query.setTimeSeries(sub.getMetric(), sub.getTags(), sub.aggregator(), 
             sub.getRate());
       }
+      if (record_stats || show_stats) {
+        query.setQueryStats(sub.enableStats());
+      }
       queries[i] = query;
       i++;
     }
@@ -187,6 +207,8 @@ public final class TSQuery {
       .append(with_global_annotations)
       .append(", show_tsuids=")
       .append(show_tsuids)
+      .append(", show_stats=")
+      .append(show_stats)
       .append(", ms_resolution=")
       .append(ms_resolution)
       .append(", options=[");
@@ -261,6 +283,12 @@ public final class TSQuery {
     return show_tsuids;
   }
   
+  /** @return whether or not to return the execution profile of queries 
+   * @since 2.1 */
+  public boolean getShowStats() {
+    return show_stats;
+  }
+  
   /** @return the list of sub queries */
   public List<TSSubQuery> getQueries() {
     return queries;
@@ -320,6 +348,13 @@ public final class TSQuery {
     this.show_tsuids = show_tsuids;
   }
   
+  /** @param show_stats whether or not to return the execution profile of
+   * queries 
+   * @since 2.1 */
+  public void setShowStats(boolean show_stats) {
+    this.show_stats = show_stats;
+  }
+  
   /** @param queries a list of {@link TSSubQuery} objects to store*/
   public void setQueries(ArrayList<TSSubQuery> queries) {
     this.queries = queries;
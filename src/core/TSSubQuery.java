@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.utils.DateTime;
 
 /**
@@ -68,6 +69,9 @@ public final class TSSubQuery {
   
   /** Parsed downsample interval */
   private long downsample_interval;
+
+  /** The execution profile, if stats were requested */
+  private QueryStats stats;
   
   /**
    * Default constructor necessary for POJO de/serialization
@@ -179,6 +183,24 @@ public final class TSSubQuery {
     return this.downsample_interval;
   }
   
+  /** @return the execution profile of this sub query or null if stats 
+   * weren't requested 
+   * @since 2.1 */
+  public QueryStats stats() {
+    return this.stats;
+  }
+
+  /**
+   * Starts recording the execution profile of this sub query
+   * @return The object to record the stats in
+   */
+  QueryStats enableStats() {
+    if (stats == null) {
+      stats = new QueryStats();
+    }
+    return stats;
+  }
+  
   /** @return the user supplied aggregator */
   public String getAggregator() {
     return aggregator;
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import org.hbase.async.Bytes;
 
@@ -352,7 +353,7 @@ public final class Tags {
                                       final Map<String, String> tags)
     throws NoSuchUniqueName {
     try {
-      return resolveAllInternal(tsdb, tags, false);
+      return resolveAllAsync(tsdb, tags).joinUninterruptibly();
     } catch (RuntimeException e) {
       throw e;
     } catch (Exception e) {
@@ -397,6 +398,32 @@ public final class Tags {
   }
 
 
+  /**
+   * Resolves all the tags (name=value) into the a sorted byte arrays.
+   * All the tag names and values missing from the caches are looked up at
+   * the same time, instead of one after the other.
+   * @param tsdb The TSDB to use for UniqueId lookups.
+   * @param tags The tags to resolve.
+   * @return an array of sorted tags (tag id, tag name), or a
+   * {@link NoSuchUniqueName} if one of the tag names or values is unknown.
+   * @since 2.1
+   */
+  static Deferred<ArrayList<byte[]>>
+    resolveAllAsync(final TSDB tsdb, final Map<String, String> tags) {
+    /** Unwraps the group exception so callers see the NoSuchUniqueName. */
+    final class UnwrapErrCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) throws Exception {
+        Throwable ex = e;
+        while (ex.getClass().equals(DeferredGroupException.class)) {
+          ex = ex.getCause();
+        }
+        throw (Exception) ex;
+      }
+    }
+    return resolveAllInternalAsync(tsdb, tags, false)
+      .addErrback(new UnwrapErrCB());
+  }
+
   /**
    * Resolves (and creates, if necessary) all the tags (name=value) into the a
    * sorted byte arrays.
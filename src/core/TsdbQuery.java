@@ -18,9 +18,12 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,7 +37,8 @@ import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 import static org.hbase.async.Bytes.ByteMap;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.ConcurrentHistogram;
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
@@ -51,10 +55,13 @@ final class TsdbQuery implements Query {
 
   /**
    * Keep track of the latency we perceive when doing Scans on HBase.
-   * We want buckets up to 16s, with 2 ms interval between each bucket up to
-   * 100 ms after we which we switch to exponential buckets.
+   * We want values up to 10 minutes, within about 6% of their actual value.
    */
-  static final Histogram scanlatency = new Histogram(16000, (short) 2, 100);
+  static final ConcurrentHistogram scanlatency =
+    new ConcurrentHistogram(600000, 5);
+
+  /** Number of queries aborted because they went over a limit. */
+  static final AtomicLong aborted = new AtomicLong();
 
   /**
    * Charset to use with our server-side row-filter.
@@ -121,6 +128,9 @@ final class TsdbQuery implements Query {
 
   /** Optional list of TSUIDs to fetch and aggregate instead of a metric */
   private List<String> tsuids;
+
+  /** Where to record the execution profile, if anywhere. */
+  private QueryStats stats;
   
   /** Constructor. */
   public TsdbQuery(final TSDB tsdb) {
@@ -257,6 +267,11 @@ final class TsdbQuery implements Query {
     this.sample_interval_ms = interval;
   }
 
+  @Override
+  public void setQueryStats(final QueryStats stats) {
+    this.stats = stats;
+  }
+
   /**
    * Extracts all the tags we must use to group results.
    * <ul>
@@ -321,13 +336,153 @@ final class TsdbQuery implements Query {
   }
   
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
-    return findSpans().addCallback(new GroupByAndAggregateCB());
+    return findSpans(getRowFilterRegex())
+      .addCallback(new GroupByAndAggregateCB());
+  }
+
+  /**
+   * Runs several queries, scanning HBase only once for all the queries that
+   * are on the same metric and time range.  The shared scan uses the union
+   * of the row filters of these queries, and each query then only groups and
+   * aggregates the spans that match its own filter.
+   * @param queries The queries to run.  Those that aren't {@link TsdbQuery}
+   * or are for a list of TSUIDs are run on their own.
+   * @return The results of each query, in the same order as the queries.
+   * @throws HBaseException if there was a problem communicating with HBase to
+   * perform the search.
+   */
+  static Deferred<ArrayList<DataPoints[]>> runAsync(final Query[] queries)
+    throws HBaseException {
+    // Indexes of the queries that can share a scan, keyed by metric and scan
+    // range, in the order in which they were given.
+    final LinkedHashMap<String, ArrayList<Integer>> scans =
+      new LinkedHashMap<String, ArrayList<Integer>>();
+    for (int i = 0; i < queries.length; i++) {
+      if (!(queries[i] instanceof TsdbQuery)) {
+        continue;
+      }
+      final TsdbQuery query = (TsdbQuery) queries[i];
+      if (query.tsuids != null && !query.tsuids.isEmpty()) {
+        continue;
+      }
+      final String key = Arrays.toString(query.metric) + ' ' 
+        + query.getScanStartTimeSeconds() + ' ' 
+        + (query.end_time == UNSET ? -1 : query.getScanEndTimeSeconds());
+      ArrayList<Integer> scan = scans.get(key);
+      if (scan == null) {
+        scan = new ArrayList<Integer>();
+        scans.put(key, scan);
+      }
+      scan.add(i);
+    }
+
+    final ArrayList<Deferred<DataPoints[]>> results =
+      new ArrayList<Deferred<DataPoints[]>>(queries.length);
+    for (int i = 0; i < queries.length; i++) {
+      results.add(null);
+    }
+    for (final ArrayList<Integer> scan : scans.values()) {
+      if (scan.size() < 2) {
+        continue;
+      }
+      final ArrayList<TsdbQuery> shared = new ArrayList<TsdbQuery>(scan.size());
+      for (final int i : scan) {
+        shared.add((TsdbQuery) queries[i]);
+      }
+      final ArrayList<Deferred<DataPoints[]>> shared_results = 
+        runShared(shared);
+      for (int i = 0; i < scan.size(); i++) {
+        results.set(scan.get(i), shared_results.get(i));
+      }
+    }
+    for (int i = 0; i < queries.length; i++) {
+      if (results.get(i) == null) {
+        results.set(i, queries[i].runAsync());
+      }
+    }
+    return Deferred.groupInOrder(results);
+  }
+
+  /**
+   * Runs queries on the same metric and time range with a single scan.
+   * @param queries The queries, at least two.
+   * @return The results of each query, in the same order as the queries.
+   */
+  private static ArrayList<Deferred<DataPoints[]>> runShared(
+      final ArrayList<TsdbQuery> queries) {
+    final int nqueries = queries.size();
+    final String[] regexes = new String[nqueries];
+    final StringBuilder union = new StringBuilder();
+    boolean match_all = false;
+    for (int i = 0; i < nqueries; i++) {
+      regexes[i] = queries.get(i).getRowFilterRegex();
+      if (regexes[i] == null) {
+        match_all = true;
+      } else {
+        if (union.length() > 0) {
+          union.append('|');
+        }
+        union.append("(?:").append(regexes[i]).append(')');
+      }
+    }
+    final String filter = match_all ? null : union.toString();
+
+    final ArrayList<Deferred<TreeMap<byte[], Span>>> spans =
+      new ArrayList<Deferred<TreeMap<byte[], Span>>>(nqueries);
+    final ArrayList<Deferred<DataPoints[]>> results =
+      new ArrayList<Deferred<DataPoints[]>>(nqueries);
+    for (final TsdbQuery query : queries) {
+      final Deferred<TreeMap<byte[], Span>> d = 
+        new Deferred<TreeMap<byte[], Span>>();
+      spans.add(d);
+      results.add(d.addCallback(query.new GroupByAndAggregateCB()));
+    }
+
+    /** Hands each query the spans that match its own filter. */
+    final class FanOutCB implements Callback<Object, TreeMap<byte[], Span>> {
+      public Object call(final TreeMap<byte[], Span> all) {
+        for (int i = 0; i < nqueries; i++) {
+          if (all == null || regexes[i] == null) {
+            spans.get(i).callback(all);
+            continue;
+          }
+          final Pattern pattern = Pattern.compile(regexes[i]);
+          final TreeMap<byte[], Span> matching = 
+            new TreeMap<byte[], Span>(all.comparator());
+          for (final Map.Entry<byte[], Span> entry : all.entrySet()) {
+            if (pattern.matcher(new String(entry.getKey(), CHARSET))
+                .matches()) {
+              matching.put(entry.getKey(), entry.getValue());
+            }
+          }
+          spans.get(i).callback(matching);
+        }
+        return null;
+      }
+    }
+
+    /** Fails all the queries if the shared scan failed. */
+    final class FanOutErrCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        for (final Deferred<TreeMap<byte[], Span>> d : spans) {
+          d.callback(e);
+        }
+        return null;
+      }
+    }
+
+    // The stats of the scan, if any, are recorded by the first query.
+    queries.get(0).findSpans(filter)
+      .addCallbacks(new FanOutCB(), new FanOutErrCB());
+    return results;
   }
 
   /**
    * Finds all the {@link Span}s that match this query.
    * This is what actually scans the HBase table and loads the data into
    * {@link Span}s.
+   * @param regex The row key filter, usually {@link #getRowFilterRegex}, or
+   * null if all the rows of the metric match.
    * @return A map from HBase row key to the {@link Span} for that row key.
    * Since a {@link Span} actually contains multiple HBase rows, the row key
    * stored in the map has its timestamp zero'ed out.
@@ -335,11 +490,36 @@ final class TsdbQuery implements Query {
    * perform the search.
    * @throws IllegalArgumentException if bad data was retreived from HBase.
    */
-  private Deferred<TreeMap<byte[], Span>> findSpans() throws HBaseException {
+  private Deferred<TreeMap<byte[], Span>> findSpans(final String regex) 
+    throws HBaseException {
     final short metric_width = tsdb.metrics.width();
+    final Pattern filter = regex == null ? null : Pattern.compile(regex);
     final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
       new TreeMap<byte[], Span>(new SpanCmp(metric_width));
-    final Scanner scanner = getScanner();
+    
+    // Rows that are entirely held in the head block are loaded from memory,
+    // only the older ones are fetched from HBase.
+    final HeadBlock head_block = tsdb.head_block;
+    final long scan_end = end_time == UNSET ? -1 : getScanEndTimeSeconds();
+    final long cutoff = head_block == null ? -1 : head_block.coverageStart();
+    if (head_block != null && getScanStartTimeSeconds() >= cutoff) {
+      setMetricFromTSUIDs();
+      final long start = System.nanoTime();
+      final int nrows = head_block.fillSpans(metric, getScanStartTimeSeconds(),
+          scan_end, filter, spans);
+      if (stats != null) {
+        stats.addTime("headBlockTime", System.nanoTime() - start);
+        stats.addCount("rows", nrows);
+        stats.addCount("spans", spans.size());
+      }
+      LOG.info(TsdbQuery.this + " matched " + nrows + " rows in " +
+          spans.size() + " spans from the head block");
+      return Deferred.fromResult(nrows < 1 ? null : spans);
+    }
+    final boolean use_head_block = head_block != null 
+      && (scan_end < 0 || cutoff < scan_end);
+    final Scanner scanner = 
+      getScanner(use_head_block ? cutoff : scan_end, regex);
     final Deferred<TreeMap<byte[], Span>> results =
       new Deferred<TreeMap<byte[], Span>>();
     
@@ -356,6 +536,12 @@ final class TsdbQuery implements Query {
       int nrows = 0;
       int hbase_time = 0; // milliseconds.
       long starttime = System.nanoTime();
+      /** When the scan started, to enforce the time limit. */
+      final long scan_start = starttime;
+      /** Resources used so far, to enforce the limits. */
+      long scanned_rows = 0;
+      long scanned_dps = 0;
+      long scanned_bytes = 0;
       
       /**
       * Starts the scanner and is called recursively to fetch the next set of
@@ -377,10 +563,26 @@ final class TsdbQuery implements Query {
        public Object call(final ArrayList<ArrayList<KeyValue>> rows)
          throws Exception {
          hbase_time += (System.nanoTime() - starttime) / 1000000;
+         if (stats != null) {
+           stats.addTime("scanTime", System.nanoTime() - starttime);
+         }
          try {
            if (rows == null) {
              hbase_time += (System.nanoTime() - starttime) / 1000000;
              scanlatency.add(hbase_time);
+             if (use_head_block) {
+               final long start = System.nanoTime();
+               final int head_rows = head_block.fillSpans(metric, cutoff,
+                   scan_end, filter, spans);
+               nrows += head_rows;
+               if (stats != null) {
+                 stats.addTime("headBlockTime", System.nanoTime() - start);
+                 stats.addCount("rows", head_rows);
+               }
+             }
+             if (stats != null) {
+               stats.addCount("spans", spans.size());
+             }
              LOG.info(TsdbQuery.this + " matched " + nrows + " rows in " +
                  spans.size() + " spans in " + hbase_time + "ms");
              if (nrows < 1) {
@@ -392,6 +594,8 @@ final class TsdbQuery implements Query {
              return null;
            }
            
+           checkTimeLimit();
+           final long decode_start = stats == null ? 0 : System.nanoTime();
            for (final ArrayList<KeyValue> row : rows) {
              final byte[] key = row.get(0).key();
              if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
@@ -412,6 +616,13 @@ final class TsdbQuery implements Query {
                datapoints.addRow(compacted);
                nrows++;
              }
+             if (stats != null) {
+               recordRow(row);
+             }
+             checkLimits(row, compacted);
+           }
+           if (stats != null) {
+             stats.addTime("decodeTime", System.nanoTime() - decode_start);
            }
            
            return scan();
@@ -421,6 +632,74 @@ final class TsdbQuery implements Query {
            return null;
          }
        }
+
+      /**
+       * Accounts for the given row against the limits of the query.
+       * @param row The row as returned by the scanner
+       * @param compacted The row once compacted, may be null
+       * @throws QueryLimitExceededException if the query is over a limit
+       */
+      private void checkLimits(final ArrayList<KeyValue> row,
+                               final KeyValue compacted) {
+        if (tsdb.query_max_rows > 0 && ++scanned_rows > tsdb.query_max_rows) {
+          abort("Query scanned more than " + tsdb.query_max_rows + " rows");
+        }
+        if (tsdb.query_max_bytes > 0) {
+          for (final KeyValue kv : row) {
+            scanned_bytes += kv.key().length + kv.qualifier().length
+              + kv.value().length;
+          }
+          if (scanned_bytes > tsdb.query_max_bytes) {
+            abort("Query fetched more than " + tsdb.query_max_bytes 
+                + " bytes");
+          }
+        }
+        if (tsdb.query_max_dps > 0 && compacted != null) {
+          // Only used to count the data points, which is cheap unless the
+          // row was written with appends.
+          final RowSeq seq = new RowSeq(tsdb);
+          seq.setRow(compacted);
+          scanned_dps += seq.size();
+          if (scanned_dps > tsdb.query_max_dps) {
+            abort("Query fetched more than " + tsdb.query_max_dps 
+                + " data points");
+          }
+        }
+      }
+
+      /**
+       * Checks how long the query has been scanning for.
+       * @throws QueryLimitExceededException if the query is over the limit
+       */
+      private void checkTimeLimit() {
+        if (tsdb.query_max_time > 0 && 
+            (System.nanoTime() - scan_start) / 1000000 > tsdb.query_max_time) {
+          abort("Query scanned for more than " + tsdb.query_max_time + "ms");
+        }
+      }
+
+      /**
+       * Aborts the scan because the query went over a limit.  The scanner is
+       * closed by the caller when the exception is caught.
+       * @param msg Which limit was exceeded
+       */
+      private void abort(final String msg) {
+        aborted.incrementAndGet();
+        LOG.warn(msg + " after " + nrows + " rows in " + spans.size() 
+            + " spans, aborting " + TsdbQuery.this);
+        throw new QueryLimitExceededException(msg);
+      }
+
+      /** Counts the cells and bytes fetched for the given row. */
+      private void recordRow(final ArrayList<KeyValue> row) {
+        long bytes = 0;
+        for (final KeyValue kv : row) {
+          bytes += kv.key().length + kv.qualifier().length + kv.value().length;
+        }
+        stats.addCount("rows", 1);
+        stats.addCount("cells", row.size());
+        stats.addCount("bytes", bytes);
+      }
      }
 
      new ScannerCB().scan();
@@ -445,6 +724,18 @@ final class TsdbQuery implements Query {
       if (spans == null || spans.size() <= 0) {
         return NO_RESULT;
       }
+      if (stats == null) {
+        return group(spans);
+      }
+      final long start = System.nanoTime();
+      final DataPoints[] groups = group(spans);
+      stats.addTime("groupByTime", System.nanoTime() - start);
+      stats.addCount("groups", groups.length);
+      return groups;
+    }
+
+    /** Puts the spans in their respective groups. */
+    private DataPoints[] group(final TreeMap<byte[], Span> spans) {
       if (group_bys == null) {
         // We haven't been asked to find groups, so let's put all the spans
         // together in the same group.
@@ -516,13 +807,25 @@ final class TsdbQuery implements Query {
 
   /**
    * Returns a scanner set for the given metric (from {@link #metric} or from
-   * the first TSUID in the {@link #tsuids}s list. If one or more tags are 
-   * provided, it calls into {@link #createAndSetFilter} to setup a row key 
-   * filter. If one or more TSUIDs have been provided, it calls into
-   * {@link #createAndSetTSUIDFilter} to setup a row key filter.
+   * the first TSUID in the {@link #tsuids}s list. If one or more tags or 
+   * TSUIDs are provided, it calls into {@link #getRowFilterRegex} to setup a
+   * row key filter.
    * @return A scanner to use for fetching data points
    */
   protected Scanner getScanner() throws HBaseException {
+    return getScanner(end_time == UNSET ? -1 : getScanEndTimeSeconds(),
+        getRowFilterRegex());
+  }
+
+  /**
+   * Returns a scanner set for the given metric, stopping at the given time.
+   * @param stop_time The base time, in seconds, of the first row not to
+   * scan, or -1 to scan until the end of the table.
+   * @param regex The row key filter, or null to scan all the rows.
+   * @return A scanner to use for fetching data points
+   */
+  private Scanner getScanner(final long stop_time, final String regex) 
+    throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
     final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
@@ -533,33 +836,46 @@ final class TsdbQuery implements Query {
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
     Bytes.setInt(start_row, (int) getScanStartTimeSeconds(), metric_width);
-    Bytes.setInt(end_row, (end_time == UNSET
-                           ? -1  // Will scan until the end (0xFFF...).
-                           : (int) getScanEndTimeSeconds()),
+    Bytes.setInt(end_row, (int) stop_time,  // -1 scans until the end.
                  metric_width);
     
     // set the metric UID based on the TSUIDs if given, or the metric UID
+    setMetricFromTSUIDs();
+    System.arraycopy(metric, 0, start_row, 0, metric_width);
+    System.arraycopy(metric, 0, end_row, 0, metric_width);
+
+    final Scanner scanner = tsdb.client.newScanner(tsdb.table);
+    scanner.setStartKey(start_row);
+    scanner.setStopKey(end_row);
+    if (regex != null) {
+      scanner.setKeyRegexp(regex, CHARSET);
+    }
+    scanner.setFamily(TSDB.FAMILY);
+    return scanner;
+  }
+
+  /** Sets the metric UID from the first TSUID, if we were given TSUIDs.  */
+  private void setMetricFromTSUIDs() {
     if (tsuids != null && !tsuids.isEmpty()) {
       final String tsuid = tsuids.get(0);
       final String metric_uid = tsuid.substring(0, TSDB.metrics_width() * 2);
       metric = UniqueId.stringToUid(metric_uid);
-      System.arraycopy(metric, 0, start_row, 0, metric_width);
-      System.arraycopy(metric, 0, end_row, 0, metric_width); 
-    } else {
-      System.arraycopy(metric, 0, start_row, 0, metric_width);
-      System.arraycopy(metric, 0, end_row, 0, metric_width);
     }
+  }
 
-    final Scanner scanner = tsdb.client.newScanner(tsdb.table);
-    scanner.setStartKey(start_row);
-    scanner.setStopKey(end_row);
+  /**
+   * Returns the row key regexp to filter on, if any.  If one or more TSUIDs 
+   * have been provided, it calls into {@link #createTSUIDFilter}, otherwise if
+   * one or more tags are provided, it calls into {@link #createFilter}.
+   * @return A regular expression or null if all the rows of the metric match.
+   */
+  private String getRowFilterRegex() {
     if (tsuids != null && !tsuids.isEmpty()) {
-      createAndSetTSUIDFilter(scanner);
+      return createTSUIDFilter();
     } else if (tags.size() > 0 || group_bys != null) {
-      createAndSetFilter(scanner);
+      return createFilter();
     }
-    scanner.setFamily(TSDB.FAMILY);
-    return scanner;
+    return null;
   }
 
   /** Returns the UNIX timestamp from which we must start scanning.  */
@@ -603,12 +919,12 @@ final class TsdbQuery implements Query {
   }
 
   /**
-   * Sets the server-side regexp filter on the scanner.
+   * Builds the server-side regexp filter for the scanner.
    * In order to find the rows with the relevant tags, we use a
    * server-side filter that matches a regular expression on the row key.
-   * @param scanner The scanner on which to add the filter.
+   * @return The regular expression to set on the scanner.
    */
-  private void createAndSetFilter(final Scanner scanner) {
+  private String createFilter() {
     if (group_bys != null) {
       Collections.sort(group_bys, Bytes.MEMCMP);
     }
@@ -666,17 +982,17 @@ final class TsdbQuery implements Query {
     } while (tag != group_by);  // Stop when they both become null.
     // Skip any number of tags before the end.
     buf.append("(?:.{").append(tagsize).append("})*$");
-    scanner.setKeyRegexp(buf.toString(), CHARSET);
+    return buf.toString();
    }
 
   /**
-   * Sets the server-side regexp filter on the scanner.
+   * Builds the server-side regexp filter for the scanner.
    * This will compile a list of the tagk/v pairs for the TSUIDs to prevent
    * storage from returning irrelevant rows.
-   * @param scanner The scanner on which to add the filter.
+   * @return The regular expression to set on the scanner.
    * @since 2.0
    */
-  private void createAndSetTSUIDFilter(final Scanner scanner) {
+  private String createTSUIDFilter() {
     Collections.sort(tsuids);
     
     // first, convert the tags to byte arrays and count up the total length
@@ -717,7 +1033,7 @@ final class TsdbQuery implements Query {
     // Replace the pipe of the last iteration, close and set
     buf.setCharAt(buf.length() - 1, ')');
     buf.append("$");
-    scanner.setKeyRegexp(buf.toString(), CHARSET);
+    return buf.toString();
   }
   
   /**
@@ -827,7 +1143,7 @@ final class TsdbQuery implements Query {
   /**
    * Comparator that ignores timestamps in row keys.
    */
-  private static final class SpanCmp implements Comparator<byte[]> {
+  static final class SpanCmp implements Comparator<byte[]> {
 
     private final short metric_width;
 
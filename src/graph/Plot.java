@@ -13,6 +13,7 @@
 package net.opentsdb.graph;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -32,6 +33,7 @@ import net.opentsdb.meta.Annotation;
  * <p>
  * This class takes a bunch of {@link DataPoints} instances and generates a
  * Gnuplot script as well as the corresponding data files to feed to Gnuplot.
+ * Alternatively, {@link #renderPng} draws the graph directly.
  */
 public final class Plot {
 
@@ -318,20 +320,8 @@ public final class Plot {
         }
       }
       
-      // compile annotations to determine if we have any to graph
-      final List<Annotation> notes = new ArrayList<Annotation>();
-      for (int i = 0; i < nseries; i++) {
-        final DataPoints dp = datapoints.get(i);
-        final List<Annotation> series_notes = dp.getAnnotations();
-        if (series_notes != null && !series_notes.isEmpty()) {
-          notes.addAll(series_notes);
-        }
-      }
-      if (globals != null) {
-        notes.addAll(globals);
-      }
+      final List<Annotation> notes = annotations();
       if (notes.size() > 0) {
-        Collections.sort(notes);
         for(Annotation note : notes) {
           String ts = Long.toString(note.getStartTime());
           String value = new String(note.getDescription());
@@ -373,6 +363,40 @@ public final class Plot {
     }
   }
 
+  /**
+   * Renders the graph as a PNG image in-process, without Gnuplot or any
+   * temporary file.  Only the most common Gnuplot parameters and options
+   * are supported, see {@link PngRenderer}.
+   * @param out Where to write the image.  The stream is not closed.
+   * @return The number of data points plotted, as with {@link #dumpToFiles}.
+   * @throws IOException if the image can't be written.
+   * @since 2.1
+   */
+  public int renderPng(final OutputStream out) throws IOException {
+    return new PngRenderer(width, height, start_time, end_time, utc_offset,
+                           params, datapoints, options, annotations(),
+                           xFormat()).render(out);
+  }
+
+  /**
+   * Compiles the annotations of all the series and the global ones.
+   * @return The annotations to graph, sorted, possibly empty.
+   */
+  private List<Annotation> annotations() {
+    final List<Annotation> notes = new ArrayList<Annotation>();
+    for (final DataPoints dp : datapoints) {
+      final List<Annotation> series_notes = dp.getAnnotations();
+      if (series_notes != null && !series_notes.isEmpty()) {
+        notes.addAll(series_notes);
+      }
+    }
+    if (globals != null) {
+      notes.addAll(globals);
+    }
+    Collections.sort(notes);
+    return notes;
+  }
+
   /**
    * Finds some sensible default formatting for the X axis (time).
    * @return The Gnuplot time format string to use.
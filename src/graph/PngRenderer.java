@@ -0,0 +1,1005 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.imageio.ImageIO;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.meta.Annotation;
+
+/**
+ * Draws a {@link Plot} into a PNG image with Java2D, without Gnuplot.
+ * <p>
+ * The renderer understands the parameters set by the graph handler (ranges,
+ * labels, formats, log scales, key placement, colors...) and the most common
+ * per-series options ({@code axis x1y2}, {@code with lines}, {@code lc rgb},
+ * {@code lw}).  Other Gnuplot settings are ignored.
+ * <p>
+ * Instances are used to render a single image and aren't thread-safe.
+ */
+final class PngRenderer {
+
+  /** Mask to use on 32-bit unsigned integers to avoid sign extension.  */
+  private static final long UNSIGNED = 0x00000000FFFFFFFFL;
+
+  /** Colors of the series, in the order Gnuplot uses them. */
+  private static final Color[] PALETTE = {
+    new Color(0xFF0000), new Color(0x00C000), new Color(0x0080FF),
+    new Color(0xC000FF), new Color(0x00EEEE), new Color(0xC04000),
+    new Color(0xC8C800), new Color(0x4169E1), new Color(0xFFC020),
+    new Color(0x008040), new Color(0xC080FF), new Color(0x306080),
+    new Color(0x8B0000), new Color(0x408000), new Color(0xFF80FF),
+    new Color(0x7FFFD4), new Color(0xA52A2A), new Color(0xFFFF80),
+  };
+
+  /** Color of the grid and annotation lines. */
+  private static final Color GRID = new Color(0xA0A0A0);
+
+  private static final Font FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 11);
+  private static final Font TITLE_FONT =
+    new Font(Font.SANS_SERIF, Font.BOLD, 12);
+
+  private static final Stroke GRID_STROKE = new BasicStroke(1,
+      BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 1, new float[] { 1, 3 }, 0);
+
+  /** Candidate intervals between two ticks on the X axis, in seconds. */
+  private static final int[] TIME_STEPS = {
+    1, 2, 5, 10, 15, 30,                    // Seconds.
+    60, 120, 300, 600, 900, 1800,           // Minutes.
+    3600, 7200, 10800, 21600, 43200,        // Hours.
+    86400, 172800, 604800, 1209600,         // Days and weeks.
+    2592000, 7776000, 15552000, 31536000,   // Months and years, roughly.
+  };
+
+  /** Length of the tick marks, in pixels. */
+  private static final int TICK = 5;
+  /** Space around the text, in pixels. */
+  private static final int PAD = 6;
+
+  private final short width;
+  private final short height;
+  /** Start and end of the X axis, in seconds, local time. */
+  private final long x_min;
+  private final long x_max;
+  private final int utc_offset;
+  private final Map<String, String> params;
+  private final List<DataPoints> datapoints;
+  private final List<String> options;
+  private final List<Annotation> notes;
+  private final String default_xformat;
+
+  /** A series ready to be drawn. */
+  private static final class Series {
+    String title;
+    Color color;
+    float line_width = 1;
+    boolean y2;
+    boolean lines = true;
+    boolean points = true;
+    long[] timestamps = new long[64];
+    double[] values = new double[64];
+    int size;
+
+    void add(final long timestamp, final double value) {
+      if (size == timestamps.length) {
+        final long[] ts = new long[size * 2];
+        System.arraycopy(timestamps, 0, ts, 0, size);
+        timestamps = ts;
+        final double[] vs = new double[size * 2];
+        System.arraycopy(values, 0, vs, 0, size);
+        values = vs;
+      }
+      timestamps[size] = timestamp;
+      values[size] = value;
+      size++;
+    }
+  }
+
+  /** A Y axis. */
+  private static final class Axis {
+    boolean used;
+    boolean log;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double[] ticks;
+    String format;
+    String label;
+
+    /** Widens the range of the axis to include the given value. */
+    void extend(final double value) {
+      if (log && value <= 0) {
+        return;
+      }
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+
+    /** @return the vertical position of the value on a plot area */
+    double toPixel(final double value, final int top, final int height) {
+      final double ratio;
+      if (log) {
+        ratio = (Math.log10(value) - Math.log10(min))
+          / (Math.log10(max) - Math.log10(min));
+      } else {
+        ratio = (value - min) / (max - min);
+      }
+      return top + height - ratio * height;
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param width The width of the image, in pixels.
+   * @param height The height of the image, in pixels.
+   * @param start_time The start of the X axis, in seconds (unsigned).
+   * @param end_time The end of the X axis, in seconds (unsigned).
+   * @param utc_offset The offset to apply to timestamps to get local time.
+   * @param params The parameters of the plot, can be {@code null}.
+   * @param datapoints The series to draw.
+   * @param options The Gnuplot options of each series.
+   * @param notes The annotations to draw.
+   * @param default_xformat The time format to use on the X axis when the
+   * parameters don't have one, in Gnuplot's syntax.
+   */
+  PngRenderer(final short width, final short height,
+              final int start_time, final int end_time,
+              final int utc_offset,
+              final Map<String, String> params,
+              final List<DataPoints> datapoints,
+              final List<String> options,
+              final List<Annotation> notes,
+              final String default_xformat) {
+    this.width = width;
+    this.height = height;
+    this.x_min = (start_time & UNSIGNED) + utc_offset;
+    this.x_max = (end_time & UNSIGNED) + utc_offset;
+    this.utc_offset = utc_offset;
+    this.params = params;
+    this.datapoints = datapoints;
+    this.options = options;
+    this.notes = notes;
+    this.default_xformat = default_xformat;
+  }
+
+  /**
+   * Renders the plot.
+   * @param out Where to write the PNG image.  It's not closed.
+   * @return The number of data points within the time range of the plot.
+   * @throws IOException if the image can't be written.
+   * @throws IllegalStateException if a value is NaN or infinite.
+   */
+  int render(final OutputStream out) throws IOException {
+    final Axis y1 = new Axis();
+    final Axis y2 = new Axis();
+    y1.log = hasParam("logscale y");
+    y2.log = hasParam("logscale y2");
+    y1.format = unquote(param("format y"));
+    y2.format = unquote(param("format y2"));
+    y1.label = unquote(param("ylabel"));
+    y2.label = unquote(param("y2label"));
+
+    final ArrayList<Series> series = new ArrayList<Series>(datapoints.size());
+    int npoints = 0;
+    for (int i = 0; i < datapoints.size(); i++) {
+      final DataPoints dp = datapoints.get(i);
+      final Series s = newSeries(i, dp.metricName() + dp.getTags(),
+                                 options.get(i));
+      final Axis axis = s.y2 ? y2 : y1;
+      axis.used = true;
+      for (final DataPoint d : dp) {
+        final long ts = d.timestamp() / 1000 + utc_offset;
+        final double value = d.isInteger() ? d.longValue() : d.doubleValue();
+        if (value != value || Double.isInfinite(value)) {
+          throw new IllegalStateException("NaN or Infinity found in"
+              + " datapoints #" + i + ": " + value + " d=" + d);
+        }
+        if (ts >= x_min && ts <= x_max) {
+          npoints++;
+          axis.extend(value);
+        }
+        s.add(ts, value);
+      }
+      series.add(s);
+    }
+    setRange(y1, npoints == 0 ? "[0:10]" : param("yrange"));
+    if (y2.used) {
+      setRange(y2, param("y2range"));
+    }
+
+    final String bgcolor = param("bgcolor");
+    final boolean transparent = "transparent".equals(bgcolor);
+    final BufferedImage image = new BufferedImage(width, height,
+        transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = image.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                         RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                         RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      if (!transparent) {
+        g.setColor(parseColor(bgcolor, Color.WHITE));
+        g.fillRect(0, 0, width, height);
+      }
+      draw(g, parseColor(param("fgcolor"), Color.BLACK), series, y1, y2);
+    } finally {
+      g.dispose();
+    }
+    if (!ImageIO.write(image, "png", out)) {
+      throw new IOException("No PNG writer available");
+    }
+    return npoints;
+  }
+
+  /** Draws everything but the background. */
+  private void draw(final Graphics2D g, final Color fg,
+                    final List<Series> series, final Axis y1, final Axis y2) {
+    g.setFont(FONT);
+    final FontMetrics fm = g.getFontMetrics();
+    final int line_height = fm.getHeight();
+    final String title = unquote(param("title"));
+    final SimpleDateFormat xformat = newDateFormat();
+
+    // Leave room around the plot area for the title, labels and ticks.
+    final int top = PAD + (title != null ? line_height + PAD : line_height / 2);
+    int left = PAD + TICK + labelsWidth(fm, y1);
+    if (y1.label != null) {
+      left += line_height + PAD;
+    }
+    int right = PAD + TICK;
+    if (y2.used) {
+      right += labelsWidth(fm, y2);
+      if (y2.label != null) {
+        right += line_height + PAD;
+      }
+    } else {
+      // Make sure the last X tick label isn't cut.
+      right += fm.stringWidth(xformat.format(new Date(x_max * 1000))) / 2;
+    }
+    final int bottom = TICK + PAD + line_height + PAD;
+    final int plot_x = left;
+    final int plot_y = top;
+    final int plot_w = Math.max(1, width - left - right);
+    final int plot_h = Math.max(1, height - top - bottom);
+
+    if (title != null) {
+      g.setFont(TITLE_FONT);
+      g.setColor(fg);
+      final int w = g.getFontMetrics().stringWidth(title);
+      g.drawString(title, plot_x + (plot_w - w) / 2,
+                   PAD + g.getFontMetrics().getAscent());
+      g.setFont(FONT);
+    }
+
+    // X axis.
+    final long[] xticks = timeTicks(fm, xformat, plot_w);
+    for (final long tick : xticks) {
+      final int x = toX(tick, plot_x, plot_w);
+      g.setColor(GRID);
+      g.setStroke(GRID_STROKE);
+      g.drawLine(x, plot_y, x, plot_y + plot_h);
+      g.setStroke(new BasicStroke(1));
+      g.setColor(fg);
+      g.drawLine(x, plot_y + plot_h, x, plot_y + plot_h + TICK);
+      final String label = xformat.format(new Date(tick * 1000));
+      g.drawString(label, x - fm.stringWidth(label) / 2,
+                   plot_y + plot_h + TICK + PAD / 2 + fm.getAscent());
+    }
+
+    // Y axes.
+    drawYAxis(g, fg, fm, y1, plot_x, plot_y, plot_w, plot_h, false);
+    if (y2.used) {
+      drawYAxis(g, fg, fm, y2, plot_x, plot_y, plot_w, plot_h, true);
+    }
+
+    // Annotations.
+    if (notes != null) {
+      for (final Annotation note : notes) {
+        final long ts = note.getStartTime() + utc_offset;
+        if (ts < x_min || ts > x_max) {
+          continue;
+        }
+        final int x = toX(ts, plot_x, plot_w);
+        g.setColor(GRID);
+        g.drawLine(x, plot_y, x, plot_y + plot_h);
+        final String text = note.getDescription();
+        if (text != null && !text.isEmpty()) {
+          final int w = fm.stringWidth(text);
+          final int y = plot_y + plot_h - PAD;
+          g.setColor(Color.WHITE);
+          g.fillRect(x - w / 2 - 1, y - fm.getAscent(), w + 2, line_height);
+          g.setColor(fg);
+          g.drawString(text, x - w / 2, y);
+        }
+      }
+    }
+
+    // Data.
+    final Shape clip = g.getClip();
+    g.clipRect(plot_x, plot_y, plot_w + 1, plot_h + 1);
+    for (final Series s : series) {
+      drawSeries(g, s, s.y2 ? y2 : y1, plot_x, plot_y, plot_w, plot_h);
+    }
+    g.setClip(clip);
+
+    // Border.
+    g.setColor(fg);
+    g.setStroke(new BasicStroke(1));
+    g.drawRect(plot_x, plot_y, plot_w, plot_h);
+
+    // Labels.
+    final String label = param("label");
+    if (label != null) {
+      drawLabel(g, fg, fm, label, plot_x, plot_y, plot_w, plot_h);
+    } else if (series.isEmpty()) {
+      final String text = "No data";
+      g.setColor(fg);
+      g.drawString(text, plot_x + (plot_w - fm.stringWidth(text)) / 2,
+                   plot_y + plot_h / 10 + fm.getAscent());
+    }
+
+    if (!series.isEmpty() && (params == null || !params.containsKey("key")
+                              || params.get("key") != null)) {
+      drawKey(g, fg, fm, series, plot_x, plot_y, plot_w, plot_h);
+    }
+  }
+
+  /** Draws a Y axis, its ticks, its grid and its label. */
+  private static void drawYAxis(final Graphics2D g, final Color fg,
+                                final FontMetrics fm, final Axis axis,
+                                final int plot_x, final int plot_y,
+                                final int plot_w, final int plot_h,
+                                final boolean right) {
+    int widest = 0;
+    for (final double tick : axis.ticks) {
+      final int y = (int) Math.round(axis.toPixel(tick, plot_y, plot_h));
+      if (!right) {
+        g.setColor(GRID);
+        g.setStroke(GRID_STROKE);
+        g.drawLine(plot_x, y, plot_x + plot_w, y);
+        g.setStroke(new BasicStroke(1));
+      }
+      g.setColor(fg);
+      final String label = formatValue(axis, tick);
+      final int w = fm.stringWidth(label);
+      widest = Math.max(widest, w);
+      final int baseline = y + fm.getAscent() / 2 - 1;
+      if (right) {
+        g.drawLine(plot_x + plot_w, y, plot_x + plot_w + TICK, y);
+        g.drawString(label, plot_x + plot_w + TICK + 2, baseline);
+      } else {
+        g.drawLine(plot_x - TICK, y, plot_x, y);
+        g.drawString(label, plot_x - TICK - 2 - w, baseline);
+      }
+    }
+    if (axis.label != null) {
+      final AffineTransform saved = g.getTransform();
+      final int w = fm.stringWidth(axis.label);
+      final int center_y = plot_y + plot_h / 2;
+      if (right) {
+        g.translate(plot_x + plot_w + TICK + 2 + widest + PAD + fm.getDescent(),
+                    center_y - w / 2);
+        g.rotate(Math.PI / 2);
+      } else {
+        g.translate(plot_x - TICK - 2 - widest - PAD - fm.getDescent(),
+                    center_y + w / 2);
+        g.rotate(-Math.PI / 2);
+      }
+      g.drawString(axis.label, 0, 0);
+      g.setTransform(saved);
+    }
+  }
+
+  /** Draws a series, breaking the line on values a log scale can't show. */
+  private void drawSeries(final Graphics2D g, final Series s, final Axis axis,
+                          final int plot_x, final int plot_y,
+                          final int plot_w, final int plot_h) {
+    g.setColor(s.color);
+    g.setStroke(new BasicStroke(s.line_width, BasicStroke.CAP_ROUND,
+                                BasicStroke.JOIN_ROUND));
+    final Path2D.Double path = new Path2D.Double();
+    boolean connected = false;
+    for (int i = 0; i < s.size; i++) {
+      final double value = s.values[i];
+      if (axis.log && value <= 0) {
+        connected = false;
+        continue;
+      }
+      final double x = toXDouble(s.timestamps[i], plot_x, plot_w);
+      final double y = axis.toPixel(value, plot_y, plot_h);
+      if (s.lines) {
+        if (connected) {
+          path.lineTo(x, y);
+        } else {
+          path.moveTo(x, y);
+          connected = true;
+        }
+      }
+      if (s.points) {
+        final int px = (int) Math.round(x);
+        final int py = (int) Math.round(y);
+        g.drawLine(px - 2, py, px + 2, py);
+        g.drawLine(px, py - 2, px, py + 2);
+      }
+    }
+    if (s.lines) {
+      g.draw(path);
+    }
+  }
+
+  /** Draws the key, in the corner requested by the {@code key} parameter. */
+  private void drawKey(final Graphics2D g, final Color fg,
+                       final FontMetrics fm, final List<Series> series,
+                       final int plot_x, final int plot_y,
+                       final int plot_w, final int plot_h) {
+    final String key = param("key");
+    boolean left = false;
+    boolean bottom = false;
+    boolean box = key == null;  // The default is "right box".
+    if (key != null) {
+      for (final String token : key.trim().split("\\s+")) {
+        if ("left".equals(token)) {
+          left = true;
+        } else if ("right".equals(token)) {
+          left = false;
+        } else if ("bottom".equals(token)) {
+          bottom = true;
+        } else if ("top".equals(token)) {
+          bottom = false;
+        } else if ("box".equals(token)) {
+          box = true;
+        } else if ("nobox".equals(token)) {
+          box = false;
+        }
+      }
+    }
+    final int sample = 30;
+    final int line_height = fm.getHeight();
+    int text_width = 0;
+    for (final Series s : series) {
+      text_width = Math.max(text_width, fm.stringWidth(s.title));
+    }
+    final int w = PAD + text_width + PAD + sample + PAD;
+    final int h = PAD + series.size() * line_height + PAD / 2;
+    final int x = left ? plot_x + PAD : plot_x + plot_w - PAD - w;
+    final int y = bottom ? plot_y + plot_h - PAD - h : plot_y + PAD;
+    if (box) {
+      g.setStroke(new BasicStroke(1));
+      g.setColor(fg);
+      g.drawRect(x, y, w, h);
+    }
+    int baseline = y + PAD / 2 + fm.getAscent();
+    for (final Series s : series) {
+      g.setColor(fg);
+      g.drawString(s.title, x + PAD + text_width - fm.stringWidth(s.title),
+                   baseline);
+      g.setColor(s.color);
+      g.setStroke(new BasicStroke(s.line_width));
+      final int line_y = baseline - fm.getAscent() / 2 + 1;
+      g.drawLine(x + w - PAD - sample, line_y, x + w - PAD, line_y);
+      baseline += line_height;
+    }
+  }
+
+  /**
+   * Draws a label given as a Gnuplot label setting, e.g.
+   * {@code "text" at graph 0.02,0.97}.
+   */
+  private static void drawLabel(final Graphics2D g, final Color fg,
+                                final FontMetrics fm, final String label,
+                                final int plot_x, final int plot_y,
+                                final int plot_w, final int plot_h) {
+    String text = label;
+    double gx = 0.5;
+    double gy = 0.9;
+    boolean center = true;
+    if (label.startsWith("\"")) {
+      final int end = closingQuote(label);
+      if (end > 0) {
+        text = unquote(label.substring(0, end + 1));
+        final String rest = label.substring(end + 1).trim();
+        if (rest.startsWith("at graph")) {
+          final String[] coords = rest.substring(8).trim().split("[,\\s]+");
+          try {
+            gx = Double.parseDouble(coords[0]);
+            gy = Double.parseDouble(coords[1]);
+            center = rest.contains("center");
+          } catch (RuntimeException e) {
+            // Keep the defaults.
+          }
+        }
+      }
+    }
+    final int x = plot_x + (int) (gx * plot_w);
+    final int y = plot_y + (int) ((1 - gy) * plot_h);
+    g.setColor(fg);
+    g.drawString(text, center ? x - fm.stringWidth(text) / 2 : x,
+                 y + fm.getAscent() / 2);
+  }
+
+  /** Creates a series with the style given by its Gnuplot options. */
+  private static Series newSeries(final int i, final String title,
+                                  final String opts) {
+    final Series s = new Series();
+    s.title = title;
+    s.color = PALETTE[i % PALETTE.length];
+    if (opts == null || opts.isEmpty()) {
+      return s;
+    }
+    s.y2 = opts.contains("x1y2");
+    final String[] tokens = opts.trim().split("\\s+");
+    for (int t = 0; t < tokens.length - 1; t++) {
+      final String token = tokens[t];
+      final String next = tokens[t + 1];
+      if ("with".equals(token) || "w".equals(token)) {
+        if (next.startsWith("linesp") || "lp".equals(next)) {
+          s.lines = true;
+          s.points = true;
+        } else if (next.startsWith("l") || next.startsWith("st")
+                   || next.startsWith("i")) {
+          s.lines = true;
+          s.points = false;
+        } else if (next.startsWith("p") || next.startsWith("d")) {
+          s.lines = false;
+          s.points = true;
+        }
+      } else if ("lc".equals(token) || "linecolor".equals(token)) {
+        String color = next;
+        if (("rgb".equals(next) || "rgbcolor".equals(next))
+            && t + 2 < tokens.length) {
+          color = tokens[t + 2];
+        }
+        color = color.replace("\"", "").replace("'", "");
+        s.color = parseColor(color, s.color);
+      } else if ("lw".equals(token) || "linewidth".equals(token)) {
+        try {
+          s.line_width = Math.max(0.5f, Float.parseFloat(next));
+        } catch (NumberFormatException e) {
+          // Keep the default width.
+        }
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Sets the range and ticks of an axis from its data and the range the
+   * user asked for, if any.
+   */
+  private void setRange(final Axis axis, final String range) {
+    final double[] bounds = parseRange(range);
+    final boolean fixed_min = !Double.isNaN(bounds[0]);
+    final boolean fixed_max = !Double.isNaN(bounds[1]);
+    if (fixed_min) {
+      axis.min = bounds[0];
+    }
+    if (fixed_max) {
+      axis.max = bounds[1];
+    }
+    if (axis.log) {
+      if (!(axis.min > 0)) {
+        axis.min = axis.max > 0 && !Double.isInfinite(axis.max)
+          ? axis.max / 10 : 1;
+      }
+      if (!(axis.max > 0) || Double.isInfinite(axis.max)) {
+        axis.max = axis.min * 10;
+      }
+    } else if (Double.isInfinite(axis.min) || Double.isInfinite(axis.max)) {
+      if (Double.isInfinite(axis.min)) {
+        axis.min = Double.isInfinite(axis.max) ? 0 : axis.max - 10;
+      }
+      if (Double.isInfinite(axis.max)) {
+        axis.max = axis.min + 10;
+      }
+    }
+    if (axis.min > axis.max) {
+      final double tmp = axis.min;
+      axis.min = axis.max;
+      axis.max = tmp;
+    }
+    if (axis.min == axis.max) {
+      final double delta = axis.log ? axis.min * 9
+        : Math.max(Math.abs(axis.min) / 10, 1);
+      if (!fixed_max || fixed_min) {
+        axis.max += delta;
+      } else {
+        axis.min -= delta;
+      }
+    }
+
+    if (axis.log) {
+      final double lo = Math.log10(axis.min);
+      final double hi = Math.log10(axis.max);
+      if (!fixed_min) {
+        axis.min = Math.pow(10, Math.floor(lo));
+      }
+      if (!fixed_max) {
+        axis.max = Math.pow(10, Math.ceil(hi));
+      }
+      if (axis.min == axis.max) {
+        axis.max = axis.min * 10;
+      }
+      final ArrayList<Double> ticks = new ArrayList<Double>();
+      final int stride = Math.max(1, (int) Math.ceil((Math.ceil(hi)
+        - Math.floor(lo)) / 10));
+      for (int e = (int) Math.floor(lo); e <= Math.ceil(hi); e += stride) {
+        final double tick = Math.pow(10, e);
+        if (tick >= axis.min * 0.999999 && tick <= axis.max * 1.000001) {
+          ticks.add(tick);
+        }
+      }
+      axis.ticks = toArray(ticks);
+      return;
+    }
+
+    final int nticks = Math.max(2, height / 60);
+    final double step = niceStep((axis.max - axis.min) / nticks);
+    if (!fixed_min) {
+      axis.min = Math.floor(axis.min / step) * step;
+    }
+    if (!fixed_max) {
+      axis.max = Math.ceil(axis.max / step) * step;
+    }
+    final ArrayList<Double> ticks = new ArrayList<Double>();
+    for (double tick = Math.ceil(axis.min / step) * step;
+         tick <= axis.max + step / 1e6; tick += step) {
+      // Avoid printing things like 0.30000000000000004.
+      ticks.add(Math.abs(tick) < step / 1e6 ? 0 : tick);
+    }
+    axis.ticks = toArray(ticks);
+  }
+
+  /** @return the width of the widest tick label of the axis */
+  private static int labelsWidth(final FontMetrics fm, final Axis axis) {
+    int widest = 0;
+    for (final double tick : axis.ticks) {
+      widest = Math.max(widest, fm.stringWidth(formatValue(axis, tick)));
+    }
+    return widest + 2;
+  }
+
+  /** @return the ticks of the X axis, far enough apart for their labels */
+  private long[] timeTicks(final FontMetrics fm,
+                           final SimpleDateFormat xformat,
+                           final int plot_w) {
+    final long span = Math.max(1, x_max - x_min);
+    final int label_width =
+      fm.stringWidth(xformat.format(new Date(x_max * 1000))) + 2 * PAD;
+    final int max_ticks = Math.max(1, plot_w / label_width);
+    long step = TIME_STEPS[TIME_STEPS.length - 1];
+    for (final int candidate : TIME_STEPS) {
+      if (span / candidate <= max_ticks) {
+        step = candidate;
+        break;
+      }
+    }
+    while (span / step > max_ticks) {
+      step *= 2;
+    }
+    final long first = ((x_min + step - 1) / step) * step;
+    final int n = (int) ((x_max - first) / step) + 1;
+    final long[] ticks = new long[Math.max(0, n)];
+    for (int i = 0; i < ticks.length; i++) {
+      ticks[i] = first + i * step;
+    }
+    return ticks;
+  }
+
+  private int toX(final long ts, final int plot_x, final int plot_w) {
+    return (int) Math.round(toXDouble(ts, plot_x, plot_w));
+  }
+
+  private double toXDouble(final long ts, final int plot_x, final int plot_w) {
+    return plot_x + (double) (ts - x_min) * plot_w / (x_max - x_min);
+  }
+
+  /**
+   * Returns a formatter for the X axis.  Timestamps are already shifted to
+   * local time, so the formatter uses UTC.
+   */
+  private SimpleDateFormat newDateFormat() {
+    String format = unquote(param("format x"));
+    if (format == null) {
+      format = default_xformat;
+    }
+    SimpleDateFormat sdf;
+    try {
+      sdf = new SimpleDateFormat(strftimeToJava(format));
+    } catch (IllegalArgumentException e) {
+      sdf = new SimpleDateFormat(strftimeToJava(default_xformat));
+    }
+    sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return sdf;
+  }
+
+  /**
+   * Formats a tick of an axis, with the axis' printf-like format if it has
+   * one that Java understands.
+   */
+  private static String formatValue(final Axis axis, final double value) {
+    if (axis.format != null) {
+      try {
+        return String.format(axis.format, value);
+      } catch (IllegalFormatException e) {
+        // Gnuplot-specific format, use the default one.
+      }
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    final double abs = Math.abs(value);
+    if (abs >= 1e-4 && abs < 1e15) {
+      String s = String.format("%.6f", value);
+      s = s.replaceAll("0+$", "");
+      return s.endsWith(".") ? s.substring(0, s.length() - 1) : s;
+    }
+    return String.format("%.3g", value);
+  }
+
+  /**
+   * Converts a strftime format as used by Gnuplot to a
+   * {@link SimpleDateFormat} pattern.  Unknown conversions are dropped.
+   */
+  static String strftimeToJava(final String format) {
+    final StringBuilder buf = new StringBuilder(format.length() * 2);
+    final StringBuilder literal = new StringBuilder();
+    for (int i = 0; i < format.length(); i++) {
+      final char c = format.charAt(i);
+      if (c != '%' || i + 1 == format.length()) {
+        literal.append(c);
+        continue;
+      }
+      final char conversion = format.charAt(++i);
+      if (conversion == '%') {
+        literal.append('%');
+        continue;
+      }
+      final String pattern;
+      switch (conversion) {
+        case 'Y': pattern = "yyyy"; break;
+        case 'y': pattern = "yy"; break;
+        case 'm': pattern = "MM"; break;
+        case 'b': case 'h': pattern = "MMM"; break;
+        case 'B': pattern = "MMMM"; break;
+        case 'd': pattern = "dd"; break;
+        case 'e': pattern = "d"; break;
+        case 'j': pattern = "DDD"; break;
+        case 'a': pattern = "EEE"; break;
+        case 'A': pattern = "EEEE"; break;
+        case 'H': pattern = "HH"; break;
+        case 'I': pattern = "hh"; break;
+        case 'p': pattern = "a"; break;
+        case 'M': pattern = "mm"; break;
+        case 'S': pattern = "ss"; break;
+        case 'D': pattern = "MM/dd/yy"; break;
+        case 'R': pattern = "HH:mm"; break;
+        case 'T': pattern = "HH:mm:ss"; break;
+        default: pattern = null;
+      }
+      if (pattern != null) {
+        appendLiteral(buf, literal);
+        buf.append(pattern);
+      }
+    }
+    appendLiteral(buf, literal);
+    return buf.toString();
+  }
+
+  /** Appends quoted literal text to a SimpleDateFormat pattern. */
+  private static void appendLiteral(final StringBuilder buf,
+                                    final StringBuilder literal) {
+    if (literal.length() == 0) {
+      return;
+    }
+    buf.append('\'');
+    for (int i = 0; i < literal.length(); i++) {
+      final char c = literal.charAt(i);
+      if (c == '\'') {
+        buf.append('\'');
+      }
+      buf.append(c);
+    }
+    buf.append('\'');
+    literal.setLength(0);
+  }
+
+  /**
+   * Parses a Gnuplot range, e.g. {@code [0:100]}, {@code [:5]} or
+   * {@code [1:*]}.
+   * @return The bounds, NaN when a bound isn't set or can't be parsed.
+   */
+  static double[] parseRange(final String range) {
+    final double[] bounds = { Double.NaN, Double.NaN };
+    if (range == null) {
+      return bounds;
+    }
+    String r = range.trim();
+    if (r.startsWith("[")) {
+      r = r.substring(1);
+    }
+    if (r.endsWith("]")) {
+      r = r.substring(0, r.length() - 1);
+    }
+    final int colon = r.indexOf(':');
+    if (colon < 0) {
+      return bounds;
+    }
+    bounds[0] = parseBound(r.substring(0, colon));
+    bounds[1] = parseBound(r.substring(colon + 1));
+    return bounds;
+  }
+
+  private static double parseBound(final String bound) {
+    final String b = bound.trim();
+    if (b.isEmpty() || "*".equals(b)) {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(b);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Parses a color as given to Gnuplot, e.g. {@code xFF0000},
+   * {@code #FF0000} or a few common names.
+   * @return The color, or the default if it can't be parsed.
+   */
+  static Color parseColor(final String color, final Color default_color) {
+    if (color == null || color.isEmpty()) {
+      return default_color;
+    }
+    final char first = color.charAt(0);
+    if ((first == 'x' || first == '#') && color.length() == 7) {
+      try {
+        return new Color(Integer.parseInt(color.substring(1), 16));
+      } catch (NumberFormatException e) {
+        return default_color;
+      }
+    }
+    final String name = color.toLowerCase();
+    if ("black".equals(name)) {
+      return Color.BLACK;
+    } else if ("white".equals(name)) {
+      return Color.WHITE;
+    } else if ("red".equals(name)) {
+      return Color.RED;
+    } else if ("green".equals(name)) {
+      return Color.GREEN;
+    } else if ("blue".equals(name)) {
+      return Color.BLUE;
+    } else if ("gray".equals(name) || "grey".equals(name)) {
+      return Color.GRAY;
+    } else if ("orange".equals(name)) {
+      return Color.ORANGE;
+    } else if ("magenta".equals(name)) {
+      return Color.MAGENTA;
+    } else if ("cyan".equals(name)) {
+      return Color.CYAN;
+    } else if ("yellow".equals(name)) {
+      return Color.YELLOW;
+    }
+    return default_color;
+  }
+
+  /**
+   * Removes the quotes and escapes around a string quoted for Gnuplot.
+   * @return The string, as-is if it wasn't quoted, or {@code null}.
+   */
+  static String unquote(final String s) {
+    if (s == null || s.length() < 2 || s.charAt(0) != '"'
+        || s.charAt(s.length() - 1) != '"') {
+      return s;
+    }
+    final StringBuilder buf = new StringBuilder(s.length());
+    for (int i = 1; i < s.length() - 1; i++) {
+      final char c = s.charAt(i);
+      if (c != '\\' || i + 1 == s.length() - 1) {
+        buf.append(c);
+        continue;
+      }
+      final char escaped = s.charAt(++i);
+      switch (escaped) {
+        case 'n': buf.append('\n'); break;
+        case 't': buf.append('\t'); break;
+        case 'r': buf.append('\r'); break;
+        case 'b': buf.append('\b'); break;
+        case 'f': buf.append('\f'); break;
+        case 'u':
+          if (i + 4 < s.length() - 1) {
+            try {
+              buf.append((char) Integer.parseInt(s.substring(i + 1, i + 5),
+                                                 16));
+              i += 4;
+              break;
+            } catch (NumberFormatException e) {
+              // Fall through and keep the `u'.
+            }
+          }
+          buf.append(escaped);
+          break;
+        default: buf.append(escaped);
+      }
+    }
+    return buf.toString();
+  }
+
+  /** @return the index of the quote closing the string starting at 0 */
+  private static int closingQuote(final String s) {
+    for (int i = 1; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '"') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return a round step (1, 2 or 5 times a power of 10) close to raw */
+  private static double niceStep(final double raw) {
+    if (!(raw > 0) || Double.isInfinite(raw)) {
+      return 1;
+    }
+    final double magnitude = Math.pow(10, Math.floor(Math.log10(raw)));
+    final double normalized = raw / magnitude;
+    if (normalized <= 1) {
+      return magnitude;
+    } else if (normalized <= 2) {
+      return 2 * magnitude;
+    } else if (normalized <= 5) {
+      return 5 * magnitude;
+    }
+    return 10 * magnitude;
+  }
+
+  private boolean hasParam(final String key) {
+    return params != null && params.containsKey(key);
+  }
+
+  private String param(final String key) {
+    return params == null ? null : params.get(key);
+  }
+
+  private static double[] toArray(final List<Double> list) {
+    final double[] array = new double[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+
+}
@@ -0,0 +1,249 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Keeps the TSMeta counters of the time series written through this TSD in
+ * memory, so that every data point doesn't cost a meta table RPC.
+ * <p>
+ * The first time a TSUID is seen by this TSD, its data point goes through
+ * {@link TSMeta#incrementAndGetCounter} as usual, which creates the TSMeta if
+ * the series is new.  The following data points only increment a local
+ * counter, and the counters are periodically flushed to the meta table as
+ * one atomic increment per TSUID.
+ * <p>
+ * In tracking mode, where the counter of a TSUID is only set to 1 to record
+ * that the series was written to, no data point goes through the meta path.
+ * Instead, each TSUID written to since the last flush gets a single put.
+ * <p>
+ * The set of TSUIDs seen is bounded.  When it's full, it's flushed and
+ * cleared, so the next data point of each series goes through the meta path
+ * again, which is harmless as the TSMeta already exists.  Counters are
+ * approximate: a data point counted while the set is being cleared may be
+ * lost.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.1
+ */
+public final class TSMetaCounters {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(TSMetaCounters.class);
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The TSDB to use for storage access. */
+  private final TSDB tsdb;
+
+  /** Maximum number of TSUIDs to remember. */
+  private final int max_size;
+
+  /** Whether to only put a 1 in the counters instead of incrementing. */
+  private final boolean tracking;
+
+  /**
+   * The TSUIDs seen (as ISO-8859-1 strings), with the number of data points
+   * written since the last flush.
+   */
+  private final ConcurrentHashMap<String, AtomicLong> counters =
+    new ConcurrentHashMap<String, AtomicLong>();
+
+  /** Number of data points sent through the meta path or put directly. */
+  private final AtomicLong first_sightings = new AtomicLong();
+  /** Number of data points only counted in memory. */
+  private final AtomicLong coalesced = new AtomicLong();
+  /** Number of increments or puts sent to the meta table by flushes. */
+  private final AtomicLong flushed = new AtomicLong();
+  /** Number of times the set was cleared because it was full. */
+  private final AtomicLong resets = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to use for storage access.
+   * @param max_size Maximum number of TSUIDs to remember.
+   * @param flush_interval How often to flush the counters, in milliseconds.
+   * @param tracking Whether to only track the TSUIDs written to, as with
+   * {@code tsd.core.meta.enable_tsuid_tracking}, instead of incrementing
+   * their counters.
+   * @throws IllegalArgumentException if either number is not greater
+   * than 0.
+   */
+  public TSMetaCounters(final TSDB tsdb, final int max_size,
+                        final long flush_interval, final boolean tracking) {
+    if (max_size < 1) {
+      throw new IllegalArgumentException("Invalid max size: " + max_size);
+    }
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException("Invalid flush interval: "
+          + flush_interval);
+    }
+    this.tsdb = tsdb;
+    this.max_size = max_size;
+    this.tracking = tracking;
+    final Thrd thread = new Thrd(flush_interval);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Counts a data point written for the given TSUID.
+   * @param tsuid The TSUID of the data point.
+   */
+  public void increment(final byte[] tsuid) {
+    final String key = new String(tsuid, CHARSET);
+    AtomicLong counter = counters.get(key);
+    if (counter == null && counters.size() < max_size) {
+      // When tracking, even the first data point waits for the next flush.
+      final AtomicLong existing = counters.putIfAbsent(key,
+          new AtomicLong(tracking ? 1 : 0));
+      if (existing != null) {
+        counter = existing;  // Someone else saw it first.
+      } else if (tracking) {
+        coalesced.incrementAndGet();
+        return;
+      }
+    }
+    if (counter != null) {
+      counter.incrementAndGet();
+      coalesced.incrementAndGet();
+      return;
+    }
+    first_sightings.incrementAndGet();
+    if (tracking) {
+      tsdb.getClient().put(newTrackingPut(tsuid));
+    } else {
+      TSMeta.incrementAndGetCounter(tsdb, tsuid);
+    }
+  }
+
+  /**
+   * Sends the counters to the meta table and resets them.  Counters are sent
+   * as buffered atomic increments, which go out when the HBase client
+   * flushes, or as puts of 1 in tracking mode.
+   * @return A deferred that's called back once all the increments or puts
+   * were buffered.  The value is meaningless.
+   */
+  public Deferred<ArrayList<Object>> flush() {
+    final boolean reset = counters.size() >= max_size;
+    if (reset) {
+      resets.incrementAndGet();
+    }
+    final ArrayList<Deferred<Object>> updates =
+      new ArrayList<Deferred<Object>>();
+    final Iterator<Map.Entry<String, AtomicLong>> it =
+      counters.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<String, AtomicLong> entry = it.next();
+      if (reset) {
+        it.remove();
+      }
+      final long count = entry.getValue().getAndSet(0);
+      if (count < 1) {
+        continue;
+      }
+      final byte[] tsuid = entry.getKey().getBytes(CHARSET);
+      if (tracking) {
+        updates.add(tsdb.getClient().put(newTrackingPut(tsuid)));
+      } else {
+        final AtomicIncrementRequest inc = new AtomicIncrementRequest(
+            tsdb.metaTable(), tsuid, TSMeta.FAMILY(),
+            TSMeta.COUNTER_QUALIFIER(), count);
+        updates.add(tsdb.getClient().bufferAtomicIncrement(inc)
+                    .addCallback(new IgnoreValueCB()));
+      }
+    }
+    flushed.addAndGet(updates.size());
+    return Deferred.group(updates);
+  }
+
+  /** @return a put recording that the TSUID was written to */
+  private PutRequest newTrackingPut(final byte[] tsuid) {
+    return new PutRequest(tsdb.metaTable(), tsuid, TSMeta.FAMILY(),
+        TSMeta.COUNTER_QUALIFIER(), Bytes.fromLong(1));
+  }
+
+  /** Turns the result of an increment into an Object to group them. */
+  private static final class IgnoreValueCB implements Callback<Object, Long> {
+    public Object call(final Long value) {
+      return value;
+    }
+    public String toString() {
+      return "ignore increment value";
+    }
+  }
+
+  /** @return the number of TSUIDs remembered */
+  public int size() {
+    return counters.size();
+  }
+
+  /**
+   * Collects the stats of the counters.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("meta.counters.size", counters.size());
+    collector.record("meta.counters.points", first_sightings,
+                     "type=first");
+    collector.record("meta.counters.points", coalesced,
+                     "type=coalesced");
+    collector.record("meta.counters.flushed", flushed);
+    collector.record("meta.counters.resets", resets);
+  }
+
+  /** Periodically flushes the counters. */
+  final class Thrd extends Thread {
+    private final long interval;
+
+    public Thrd(final long interval) {
+      super("TSMetaCounterFlush");
+      this.interval = interval;
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          LOG.error("TSMeta counter flush thread interrupted", e);
+          return;
+        }
+        try {
+          flush();
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in TSMeta counter flush thread", e);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,507 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * A search plugin keeping an inverted index of the meta data in the TSD's
+ * memory, so that {@code /api/search} works without an external search
+ * engine.  Enable it with {@code tsd.search.plugin} set to
+ * {@code net.opentsdb.search.EmbeddedSearchPlugin}.
+ * <p>
+ * The index is built at startup from the TSMetas of the meta table, with the
+ * UIDMetas of their metric and tags, and kept up to date through the
+ * indexing calls.  Annotations are only indexed as they are written through
+ * this TSD.
+ * <p>
+ * Queries are lists of whitespace separated terms that must all match,
+ * case insensitive, where {@code *} matches any number of characters:
+ * <ul><li>{@code key=value} matches a tag pair or a custom field</li>
+ * <li>{@code metric:}, {@code tagk:}, {@code tagv:}, {@code name:},
+ * {@code type:}, {@code tsuid:}, {@code uid:} or {@code text:} followed by
+ * a value matches that field only, {@code text} being the words of the
+ * display name, description and notes</li>
+ * <li>any other term matches the names and text of the object</li></ul>
+ * For example {@code sys.cpu.* host=web* dc=lga} finds the CPU series of
+ * the web servers in LGA.
+ * @since 2.1
+ */
+public final class EmbeddedSearchPlugin extends SearchPlugin {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(EmbeddedSearchPlugin.class);
+
+  /** Fields a query term may be restricted to. */
+  private static final Set<String> FIELDS = new HashSet<String>(
+      Arrays.asList("metric", "tagk", "tagv", "name", "type", "tsuid", "uid",
+          "text"));
+
+  /** The TSMetas, by TSUID. */
+  private final InvertedIndex<TSMeta> tsmetas = new InvertedIndex<TSMeta>();
+  /** The UIDMetas, by type and UID. */
+  private final InvertedIndex<UIDMeta> uidmetas = new InvertedIndex<UIDMeta>();
+  /** The annotations, by TSUID and start time. */
+  private final InvertedIndex<Annotation> annotations =
+    new InvertedIndex<Annotation>();
+
+  /** Number of queries executed. */
+  private final AtomicLong queries = new AtomicLong();
+
+  @Override
+  public void initialize(final TSDB tsdb) {
+    if (tsdb == null) {
+      throw new IllegalArgumentException("The TSDB object was null");
+    }
+    if (tsdb.getConfig().getBoolean("tsd.search.embedded.load_on_start")) {
+      final Thrd thread = new Thrd(tsdb);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  @Override
+  public Deferred<Object> shutdown() {
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public String version() {
+    return "2.1.0";
+  }
+
+  @Override
+  public void collectStats(final StatsCollector collector) {
+    collector.record("search.embedded.documents", tsmetas.size(),
+                     "type=tsmeta");
+    collector.record("search.embedded.documents", uidmetas.size(),
+                     "type=uidmeta");
+    collector.record("search.embedded.documents", annotations.size(),
+                     "type=annotation");
+    collector.record("search.embedded.queries", queries);
+  }
+
+  @Override
+  public Deferred<Object> indexTSMeta(final TSMeta meta) {
+    if (meta == null) {
+      return Deferred.fromError(new IllegalArgumentException("Meta was null"));
+    }
+    index(meta);
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public Deferred<Object> indexTSMetaBatch(final List<TSMeta> metas) {
+    for (final TSMeta meta : metas) {
+      if (meta != null) {
+        index(meta);
+      }
+    }
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public Deferred<Object> deleteTSMeta(final String tsuid) {
+    if (tsuid == null || tsuid.isEmpty()) {
+      return Deferred.fromError(
+          new IllegalArgumentException("tsuid was null or empty"));
+    }
+    tsmetas.remove(tsuid);
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public Deferred<Object> indexUIDMeta(final UIDMeta meta) {
+    if (meta == null) {
+      return Deferred.fromError(new IllegalArgumentException("Meta was null"));
+    }
+    index(meta);
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public Deferred<Object> indexUIDMetaBatch(final List<UIDMeta> metas) {
+    for (final UIDMeta meta : metas) {
+      if (meta != null) {
+        index(meta);
+      }
+    }
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public Deferred<Object> deleteUIDMeta(final UIDMeta meta) {
+    if (meta == null) {
+      return Deferred.fromError(new IllegalArgumentException("Meta was null"));
+    }
+    uidmetas.remove(uidMetaId(meta));
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public Deferred<Object> indexAnnotation(final Annotation note) {
+    if (note == null) {
+      return Deferred.fromError(new IllegalArgumentException("Note was null"));
+    }
+    index(note);
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public Deferred<Object> indexAnnotationBatch(final List<Annotation> notes) {
+    for (final Annotation note : notes) {
+      if (note != null) {
+        index(note);
+      }
+    }
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public Deferred<Object> deleteAnnotation(final Annotation note) {
+    if (note == null) {
+      return Deferred.fromError(new IllegalArgumentException("Note was null"));
+    }
+    annotations.remove(annotationId(note));
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public Deferred<SearchQuery> executeQuery(final SearchQuery query) {
+    if (query == null) {
+      return Deferred.fromError(new IllegalArgumentException("Query was null"));
+    }
+    if (query.getType() == null) {
+      return Deferred.fromError(
+          new IllegalArgumentException("Missing query type"));
+    }
+    final long start = System.nanoTime();
+    queries.incrementAndGet();
+
+    final InvertedIndex<?> index;
+    switch (query.getType()) {
+      case UIDMETA:
+        index = uidmetas;
+        break;
+      case ANNOTATION:
+        index = annotations;
+        break;
+      default:
+        index = tsmetas;
+    }
+    final TreeSet<String> ids =
+      index.search(parseQuery(query.getQuery(), query.getType()));
+    query.setTotalResults(ids.size());
+
+    // page through the sorted IDs
+    final List<String> page = new ArrayList<String>(
+        Math.max(0, Math.min(query.getLimit(),
+            ids.size() - query.getStartIndex())));
+    int skip = query.getStartIndex();
+    for (final String id : ids) {
+      if (page.size() >= query.getLimit()) {
+        break;
+      }
+      if (skip > 0) {
+        skip--;
+        continue;
+      }
+      page.add(id);
+    }
+
+    final List<Object> results = new ArrayList<Object>(page.size());
+    switch (query.getType()) {
+      case TSUIDS:
+        results.addAll(page);
+        break;
+      case TSMETA_SUMMARY:
+        for (final TSMeta meta : tsmetas.get(page)) {
+          results.add(summarize(meta));
+        }
+        break;
+      default:
+        results.addAll(index.get(page));
+    }
+    query.setResults(results);
+    query.setTime((System.nanoTime() - start) / 1000000F);
+    return Deferred.fromResult(query);
+  }
+
+  /**
+   * Indexes a TSMeta, and the UIDMetas of its metric and tags that aren't
+   * indexed yet.
+   */
+  private void index(final TSMeta meta) {
+    final Set<String> terms = new HashSet<String>();
+    addTerm(terms, "tsuid", meta.getTSUID());
+    if (meta.getMetric() != null) {
+      addTerm(terms, "metric", meta.getMetric().getName());
+      indexIfAbsent(meta.getMetric());
+    }
+    if (meta.getTags() != null) {
+      String tagk = null;
+      for (final UIDMeta tag : meta.getTags()) {
+        if (tag == null) {
+          continue;
+        }
+        indexIfAbsent(tag);
+        if (tagk == null) {
+          tagk = tag.getName();
+          addTerm(terms, "tagk", tagk);
+        } else {
+          addTerm(terms, "tagv", tag.getName());
+          addTerm(terms, "tag", tagk + "=" + tag.getName());
+          tagk = null;
+        }
+      }
+    }
+    addCustomTerms(terms, meta.getCustom());
+    addTextTerms(terms, meta.getDisplayName(), meta.getDescription(),
+        meta.getNotes());
+    tsmetas.put(meta.getTSUID(), meta, terms);
+  }
+
+  /** Indexes a UIDMeta. */
+  private void index(final UIDMeta meta) {
+    final Set<String> terms = new HashSet<String>();
+    addTerm(terms, "uid", meta.getUID());
+    if (meta.getType() != null) {
+      addTerm(terms, "type", meta.getType().toString());
+    }
+    addTerm(terms, "name", meta.getName());
+    addCustomTerms(terms, meta.getCustom());
+    addTextTerms(terms, meta.getDisplayName(), meta.getDescription(),
+        meta.getNotes());
+    uidmetas.put(uidMetaId(meta), meta, terms);
+  }
+
+  /** Indexes a UIDMeta of a TSMeta unless it was indexed on its own. */
+  private void indexIfAbsent(final UIDMeta meta) {
+    if (!uidmetas.contains(uidMetaId(meta))) {
+      index(meta);
+    }
+  }
+
+  /** Indexes an annotation. */
+  private void index(final Annotation note) {
+    final Set<String> terms = new HashSet<String>();
+    addTerm(terms, "tsuid", note.getTSUID());
+    addCustomTerms(terms, note.getCustom());
+    addTextTerms(terms, note.getDescription(), note.getNotes());
+    annotations.put(annotationId(note), note, terms);
+  }
+
+  /**
+   * Parses a query into the clauses of the inverted index.
+   * @param query The query, may be null or empty to match everything.
+   * @param type The type of query, to pick the fields of bare terms.
+   * @return The clauses.
+   */
+  static List<List<String>> parseQuery(final String query,
+      final SearchQuery.SearchType type) {
+    final List<List<String>> clauses = new ArrayList<List<String>>();
+    if (query == null) {
+      return clauses;
+    }
+    for (final String token : query.trim().toLowerCase().split("\\s+")) {
+      if (token.isEmpty() || token.equals("*")) {
+        continue;
+      }
+      final List<String> clause = new ArrayList<String>(4);
+      final int equals = token.indexOf('=');
+      final int colon = token.indexOf(':');
+      if (equals > 0) {
+        clause.add("tag:" + token);
+        clause.add("custom:" + token);
+      } else if (colon > 0 && FIELDS.contains(token.substring(0, colon))) {
+        final String field = token.substring(0, colon);
+        final String value = token.substring(colon + 1);
+        if (field.equals("name") && type != SearchQuery.SearchType.UIDMETA) {
+          clause.add("metric:" + value);
+          clause.add("tagk:" + value);
+          clause.add("tagv:" + value);
+        } else {
+          clause.add(token);
+        }
+      } else {
+        switch (type) {
+          case UIDMETA:
+            clause.add("name:" + token);
+            break;
+          case ANNOTATION:
+            break;
+          default:
+            clause.add("metric:" + token);
+            clause.add("tagk:" + token);
+            clause.add("tagv:" + token);
+        }
+        clause.add("text:" + token);
+      }
+      clauses.add(clause);
+    }
+    return clauses;
+  }
+
+  /** @return a summary of the TSMeta with its TSUID, metric and tags */
+  private static Map<String, Object> summarize(final TSMeta meta) {
+    final HashMap<String, Object> summary = new HashMap<String, Object>(3);
+    summary.put("tsuid", meta.getTSUID());
+    if (meta.getMetric() != null) {
+      summary.put("metric", meta.getMetric().getName());
+    }
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    if (meta.getTags() != null) {
+      String tagk = null;
+      for (final UIDMeta tag : meta.getTags()) {
+        if (tag == null) {
+          continue;
+        }
+        if (tagk == null) {
+          tagk = tag.getName();
+        } else {
+          tags.put(tagk, tag.getName());
+          tagk = null;
+        }
+      }
+    }
+    summary.put("tags", tags);
+    return summary;
+  }
+
+  /** @return the document ID of a UIDMeta */
+  private static String uidMetaId(final UIDMeta meta) {
+    return meta.getType() + ":" + meta.getUID();
+  }
+
+  /** @return the document ID of an annotation */
+  private static String annotationId(final Annotation note) {
+    return note.getTSUID() + ":" + note.getStartTime();
+  }
+
+  private static void addTerm(final Set<String> terms, final String field,
+                              final String value) {
+    if (value != null && !value.isEmpty()) {
+      terms.add(field + ":" + value.toLowerCase());
+    }
+  }
+
+  private static void addCustomTerms(final Set<String> terms,
+                                     final Map<String, String> custom) {
+    if (custom == null) {
+      return;
+    }
+    for (final Map.Entry<String, String> field : custom.entrySet()) {
+      if (field.getKey() != null && field.getValue() != null) {
+        addTerm(terms, "custom", field.getKey() + "=" + field.getValue());
+      }
+    }
+  }
+
+  private static void addTextTerms(final Set<String> terms,
+                                   final String... texts) {
+    for (final String text : texts) {
+      if (text == null) {
+        continue;
+      }
+      for (final String word : text.split("\\s+")) {
+        addTerm(terms, "text", word);
+      }
+    }
+  }
+
+  /**
+   * Loads the TSMetas of the meta table, with their UIDMetas, into the
+   * index.
+   */
+  final class Thrd extends Thread {
+    private final TSDB tsdb;
+
+    public Thrd(final TSDB tsdb) {
+      super("EmbeddedSearchLoad");
+      this.tsdb = tsdb;
+    }
+
+    public void run() {
+      final long start = System.currentTimeMillis();
+      long count = 0;
+      try {
+        final Scanner scanner = tsdb.getClient().newScanner(tsdb.metaTable());
+        scanner.setFamily(TSMeta.FAMILY());
+        scanner.setQualifier(TSMeta.META_QUALIFIER());
+        ArrayList<ArrayList<KeyValue>> rows;
+        while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+          final ArrayList<Deferred<TSMeta>> metas =
+            new ArrayList<Deferred<TSMeta>>(rows.size());
+          for (final ArrayList<KeyValue> row : rows) {
+            for (final KeyValue column : row) {
+              if (Arrays.equals(TSMeta.META_QUALIFIER(), column.qualifier())) {
+                metas.add(TSMeta.parseFromColumn(tsdb, column, true)
+                    .addErrback(new LoadErrCB(column.key())));
+              }
+            }
+          }
+          for (final TSMeta meta : Deferred.group(metas)
+               .joinUninterruptibly()) {
+            if (meta != null) {
+              index(meta);
+              count++;
+            }
+          }
+        }
+        LOG.info("Loaded " + count + " TSMetas into the search index in "
+                 + (System.currentTimeMillis() - start) + "ms");
+      } catch (Exception e) {
+        LOG.error("Failed to load the search index after " + count
+                  + " TSMetas", e);
+      }
+    }
+  }
+
+  /** Skips the TSMetas that can't be loaded. */
+  private static final class LoadErrCB implements Callback<TSMeta, Exception> {
+    private final byte[] tsuid;
+
+    LoadErrCB(final byte[] tsuid) {
+      this.tsuid = tsuid;
+    }
+
+    public TSMeta call(final Exception e) {
+      LOG.warn("Unable to load TSMeta " + UniqueId.uidToString(tsuid)
+               + " into the search index", e);
+      return null;
+    }
+  }
+
+}
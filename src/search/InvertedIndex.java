@@ -0,0 +1,210 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory inverted index mapping terms to the IDs of the documents they
+ * appear in, used by the {@link EmbeddedSearchPlugin}.
+ * <p>
+ * Terms are kept sorted so that a pattern only looks at the terms starting
+ * with its literal prefix.  Patterns may contain {@code *} wildcards
+ * matching any number of characters.  A query is a list of clauses that
+ * must all match, each clause being a list of patterns of which at least
+ * one must match.
+ * <p>
+ * Each document remembers its terms so that indexing it again or removing
+ * it cleans up the terms it no longer has.
+ * <p>
+ * This class is thread-safe.
+ * @param <T> The type of documents indexed.
+ * @since 2.1
+ */
+final class InvertedIndex<T> {
+
+  /** Terms to the IDs of the documents they appear in. */
+  private final TreeMap<String, TreeSet<String>> terms =
+    new TreeMap<String, TreeSet<String>>();
+
+  /** Document IDs to their document. */
+  private final HashMap<String, Document<T>> documents =
+    new HashMap<String, Document<T>>();
+
+  /**
+   * Indexes a document, replacing the previous version if any.
+   * @param id The unique ID of the document.
+   * @param object The document.
+   * @param document_terms The terms the document can be found with.
+   */
+  synchronized void put(final String id, final T object,
+                        final Set<String> document_terms) {
+    remove(id);
+    documents.put(id, new Document<T>(object, document_terms));
+    for (final String term : document_terms) {
+      TreeSet<String> ids = terms.get(term);
+      if (ids == null) {
+        ids = new TreeSet<String>();
+        terms.put(term, ids);
+      }
+      ids.add(id);
+    }
+  }
+
+  /**
+   * Removes a document from the index.
+   * @param id The unique ID of the document.
+   * @return Whether or not the document was indexed.
+   */
+  synchronized boolean remove(final String id) {
+    final Document<T> document = documents.remove(id);
+    if (document == null) {
+      return false;
+    }
+    for (final String term : document.terms) {
+      final TreeSet<String> ids = terms.get(term);
+      if (ids != null) {
+        ids.remove(id);
+        if (ids.isEmpty()) {
+          terms.remove(term);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tells whether a document is indexed.
+   * @param id The unique ID of the document.
+   */
+  synchronized boolean contains(final String id) {
+    return documents.containsKey(id);
+  }
+
+  /**
+   * Finds the documents matching all the clauses of a query.
+   * @param clauses The clauses, each a list of patterns at least one of
+   * which must match a term of the document.  No clause matches every
+   * document.
+   * @return The IDs of the matching documents, sorted.
+   */
+  synchronized TreeSet<String> search(final List<List<String>> clauses) {
+    if (clauses.isEmpty()) {
+      return new TreeSet<String>(documents.keySet());
+    }
+    TreeSet<String> matches = null;
+    for (final List<String> clause : clauses) {
+      final TreeSet<String> clause_matches = new TreeSet<String>();
+      for (final String pattern : clause) {
+        match(pattern, clause_matches);
+      }
+      if (matches == null) {
+        matches = clause_matches;
+      } else {
+        matches.retainAll(clause_matches);
+      }
+      if (matches.isEmpty()) {
+        break;
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Fetches the documents with the given IDs.
+   * @param ids The IDs of the documents.
+   * @return The documents still indexed, in the order of the IDs.
+   */
+  synchronized List<T> get(final List<String> ids) {
+    final List<T> objects = new ArrayList<T>(ids.size());
+    for (final String id : ids) {
+      final Document<T> document = documents.get(id);
+      if (document != null) {
+        objects.add(document.object);
+      }
+    }
+    return objects;
+  }
+
+  /** @return the number of documents indexed */
+  synchronized int size() {
+    return documents.size();
+  }
+
+  /** @return the number of distinct terms indexed */
+  synchronized int terms() {
+    return terms.size();
+  }
+
+  /** Adds the IDs of the documents with a term matching the pattern. */
+  private void match(final String pattern, final TreeSet<String> ids) {
+    final int wildcard = pattern.indexOf('*');
+    if (wildcard < 0) {
+      final TreeSet<String> exact = terms.get(pattern);
+      if (exact != null) {
+        ids.addAll(exact);
+      }
+      return;
+    }
+
+    final String prefix = pattern.substring(0, wildcard);
+    final Map<String, TreeSet<String>> candidates = prefix.isEmpty()
+      ? terms : terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    // "prefix*" matches everything in range, no need for a regex
+    final Pattern regex = wildcard == pattern.length() - 1 ? null
+      : compile(pattern);
+    for (final Map.Entry<String, TreeSet<String>> entry :
+         candidates.entrySet()) {
+      if (regex == null || regex.matcher(entry.getKey()).matches()) {
+        ids.addAll(entry.getValue());
+      }
+    }
+  }
+
+  /** Compiles a wildcard pattern to a regular expression. */
+  private static Pattern compile(final String pattern) {
+    final StringBuilder regex = new StringBuilder(pattern.length() + 16);
+    int start = 0;
+    int wildcard;
+    while ((wildcard = pattern.indexOf('*', start)) >= 0) {
+      if (wildcard > start) {
+        regex.append(Pattern.quote(pattern.substring(start, wildcard)));
+      }
+      regex.append(".*");
+      start = wildcard + 1;
+    }
+    if (start < pattern.length()) {
+      regex.append(Pattern.quote(pattern.substring(start)));
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+
+  /** A document with the terms it was indexed with. */
+  private static final class Document<T> {
+    final T object;
+    final Set<String> terms;
+
+    Document(final T object, final Set<String> terms) {
+      this.object = object;
+      this.terms = terms;
+    }
+  }
+
+}
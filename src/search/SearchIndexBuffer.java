@@ -0,0 +1,291 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Buffers the objects to index and hands them to the {@link SearchPlugin} in
+ * batches, so that plugins can use the bulk API of their search engine.
+ * <p>
+ * The buffer is flushed when it holds {@code batch_size} objects and
+ * periodically by a background thread.  Objects are buffered by document
+ * ID, so indexing the same object again before a flush only sends the last
+ * version, and deleting an object drops it from the buffer.  Objects still
+ * buffered when the TSD dies are lost, run the meta sync utility to index
+ * them again.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.1
+ */
+public final class SearchIndexBuffer {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(SearchIndexBuffer.class);
+
+  /** The plugin to send the batches to. */
+  private final SearchPlugin search;
+
+  /** Number of objects to buffer before flushing. */
+  private final int batch_size;
+
+  /** TSMetas to index, by TSUID. */
+  private LinkedHashMap<String, TSMeta> tsmetas =
+    new LinkedHashMap<String, TSMeta>();
+  /** UIDMetas to index, by type and UID. */
+  private LinkedHashMap<String, UIDMeta> uidmetas =
+    new LinkedHashMap<String, UIDMeta>();
+  /** Annotations to index, by TSUID and start time. */
+  private LinkedHashMap<String, Annotation> notes =
+    new LinkedHashMap<String, Annotation>();
+
+  /** Number of objects sent to the plugin. */
+  private final AtomicLong indexed = new AtomicLong();
+  /** Number of batches sent to the plugin. */
+  private final AtomicLong batches = new AtomicLong();
+  /** Number of batches the plugin failed to index. */
+  private final AtomicLong errors = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param search The plugin to send the batches to.
+   * @param batch_size Number of objects to buffer before flushing.
+   * @param flush_interval How often to flush the buffer, in milliseconds.
+   * @throws IllegalArgumentException if either number is not greater
+   * than 0.
+   */
+  public SearchIndexBuffer(final SearchPlugin search, final int batch_size,
+                           final long flush_interval) {
+    if (batch_size < 1) {
+      throw new IllegalArgumentException("Invalid batch size: " + batch_size);
+    }
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException("Invalid flush interval: "
+          + flush_interval);
+    }
+    this.search = search;
+    this.batch_size = batch_size;
+    final Thrd thread = new Thrd(flush_interval);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Buffers a TSMeta to index.
+   * @param meta The TSMeta to index.
+   */
+  public void indexTSMeta(final TSMeta meta) {
+    final boolean full;
+    synchronized (this) {
+      tsmetas.put(meta.getTSUID(), meta);
+      full = size() >= batch_size;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Drops a buffered TSMeta that's about to be deleted from the index.
+   * @param tsuid The TSUID of the TSMeta.
+   */
+  public synchronized void deleteTSMeta(final String tsuid) {
+    tsmetas.remove(tsuid);
+  }
+
+  /**
+   * Buffers a UIDMeta to index.
+   * @param meta The UIDMeta to index.
+   */
+  public void indexUIDMeta(final UIDMeta meta) {
+    final boolean full;
+    synchronized (this) {
+      uidmetas.put(uidMetaKey(meta), meta);
+      full = size() >= batch_size;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Drops a buffered UIDMeta that's about to be deleted from the index.
+   * @param meta The UIDMeta.
+   */
+  public synchronized void deleteUIDMeta(final UIDMeta meta) {
+    uidmetas.remove(uidMetaKey(meta));
+  }
+
+  /**
+   * Buffers an annotation to index.
+   * @param note The annotation to index.
+   */
+  public void indexAnnotation(final Annotation note) {
+    final boolean full;
+    synchronized (this) {
+      notes.put(annotationKey(note), note);
+      full = size() >= batch_size;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Drops a buffered annotation that's about to be deleted from the index.
+   * @param note The annotation.
+   */
+  public synchronized void deleteAnnotation(final Annotation note) {
+    notes.remove(annotationKey(note));
+  }
+
+  /**
+   * Sends the buffered objects to the plugin and empties the buffer.
+   * @return A deferred that's called back once the plugin indexed the
+   * batches.  Failures are logged and counted, not passed on.  The value is
+   * meaningless.
+   */
+  public Deferred<ArrayList<Object>> flush() {
+    final LinkedHashMap<String, TSMeta> flushed_tsmetas;
+    final LinkedHashMap<String, UIDMeta> flushed_uidmetas;
+    final LinkedHashMap<String, Annotation> flushed_notes;
+    synchronized (this) {
+      flushed_tsmetas = tsmetas;
+      flushed_uidmetas = uidmetas;
+      flushed_notes = notes;
+      tsmetas = new LinkedHashMap<String, TSMeta>();
+      uidmetas = new LinkedHashMap<String, UIDMeta>();
+      notes = new LinkedHashMap<String, Annotation>();
+    }
+
+    final ArrayList<Deferred<Object>> deferreds =
+      new ArrayList<Deferred<Object>>(3);
+    if (!flushed_tsmetas.isEmpty()) {
+      deferreds.add(track(search.indexTSMetaBatch(
+          new ArrayList<TSMeta>(flushed_tsmetas.values())),
+          flushed_tsmetas.size(), "TSMetas"));
+    }
+    if (!flushed_uidmetas.isEmpty()) {
+      deferreds.add(track(search.indexUIDMetaBatch(
+          new ArrayList<UIDMeta>(flushed_uidmetas.values())),
+          flushed_uidmetas.size(), "UIDMetas"));
+    }
+    if (!flushed_notes.isEmpty()) {
+      deferreds.add(track(search.indexAnnotationBatch(
+          new ArrayList<Annotation>(flushed_notes.values())),
+          flushed_notes.size(), "annotations"));
+    }
+    return Deferred.group(deferreds);
+  }
+
+  /** @return the number of objects buffered */
+  public synchronized int size() {
+    return tsmetas.size() + uidmetas.size() + notes.size();
+  }
+
+  /**
+   * Collects the stats of the buffer.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("search.batch.size", size());
+    collector.record("search.batch.indexed", indexed);
+    collector.record("search.batch.batches", batches);
+    collector.record("search.batch.errors", errors);
+  }
+
+  /**
+   * Counts a batch sent to the plugin and logs its failure.
+   * @param result The deferred returned by the plugin.
+   * @param count The number of objects in the batch.
+   * @param type What the objects are, for logging.
+   */
+  private Deferred<Object> track(final Deferred<Object> result,
+                                 final int count, final String type) {
+    batches.incrementAndGet();
+    indexed.addAndGet(count);
+    return result.addErrback(new BatchErrCB(count, type));
+  }
+
+  /** @return the document ID of a UIDMeta */
+  private static String uidMetaKey(final UIDMeta meta) {
+    return meta.getType() + meta.getUID();
+  }
+
+  /** @return the document ID of an annotation */
+  private static String annotationKey(final Annotation note) {
+    return note.getTSUID() + ':' + note.getStartTime();
+  }
+
+  /** Logs and counts the batches the plugin failed to index. */
+  private final class BatchErrCB implements Callback<Object, Exception> {
+    private final int count;
+    private final String type;
+
+    BatchErrCB(final int count, final String type) {
+      this.count = count;
+      this.type = type;
+    }
+
+    public Object call(final Exception e) {
+      errors.incrementAndGet();
+      LOG.error("Search plugin failed to index a batch of " + count + " "
+                + type, e);
+      return null;
+    }
+
+    public String toString() {
+      return "search batch errback";
+    }
+  }
+
+  /** Periodically flushes the buffer. */
+  final class Thrd extends Thread {
+    private final long interval;
+
+    public Thrd(final long interval) {
+      super("SearchIndexFlush");
+      this.interval = interval;
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          LOG.error("Search index flush thread interrupted", e);
+          return;
+        }
+        try {
+          flush();
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in search index flush thread", e);
+        }
+      }
+    }
+  }
+
+}
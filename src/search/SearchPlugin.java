@@ -12,12 +12,16 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.search;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.meta.TSMeta;
 import net.opentsdb.meta.UIDMeta;
 import net.opentsdb.stats.StatsCollector;
 
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 /**
@@ -41,6 +45,11 @@ import com.stumbleupon.async.Deferred;
  * may want to create a queue in the implementation to store data until you can 
  * ship it off to the service. Every indexing method should return as quickly as 
  * possible.
+ * <p>
+ * When {@code tsd.search.batch.size} is set, the TSD buffers the objects to
+ * index and hands them over in batches through the {@code index*Batch}
+ * methods. By default these call the single object methods, plugins backed
+ * by an engine with a bulk API should override them.
  * @since 2.0
  */
 public abstract class SearchPlugin {
@@ -144,6 +153,64 @@ public abstract class SearchPlugin {
    */
   public abstract Deferred<Object> deleteAnnotation(final Annotation note);
 
+  /**
+   * Indexes a batch of timeseries metadata objects in the search engine.
+   * The default implementation calls {@link #indexTSMeta} for each object.
+   * <b>Note:</b> Unique Document ID = TSUID 
+   * @param metas The TSMetas to index
+   * @return A deferred object that indicates the completion of the request.
+   * The {@link Object} has not special meaning and can be {@code null}
+   * (think of it as {@code Deferred<Void>}).
+   * @since 2.1
+   */
+  public Deferred<Object> indexTSMetaBatch(final List<TSMeta> metas) {
+    final ArrayList<Deferred<Object>> deferreds = 
+      new ArrayList<Deferred<Object>>(metas.size());
+    for (final TSMeta meta : metas) {
+      deferreds.add(indexTSMeta(meta));
+    }
+    return Deferred.group(deferreds).addCallback(new GroupCB());
+  }
+  
+  /**
+   * Indexes a batch of UID metadata objects in the search engine.
+   * The default implementation calls {@link #indexUIDMeta} for each object.
+   * <b>Note:</b> Unique Document ID = UID and the Type "TYPEUID"
+   * @param metas The UIDMetas to index
+   * @return A deferred object that indicates the completion of the request.
+   * The {@link Object} has not special meaning and can be {@code null}
+   * (think of it as {@code Deferred<Void>}).
+   * @since 2.1
+   */
+  public Deferred<Object> indexUIDMetaBatch(final List<UIDMeta> metas) {
+    final ArrayList<Deferred<Object>> deferreds = 
+      new ArrayList<Deferred<Object>>(metas.size());
+    for (final UIDMeta meta : metas) {
+      deferreds.add(indexUIDMeta(meta));
+    }
+    return Deferred.group(deferreds).addCallback(new GroupCB());
+  }
+  
+  /**
+   * Indexes a batch of annotation objects.
+   * The default implementation calls {@link #indexAnnotation} for each 
+   * object.
+   * <b>Note:</b> Unique Document ID = TSUID and Start Time
+   * @param notes The annotations to index
+   * @return A deferred object that indicates the completion of the request.
+   * The {@link Object} has not special meaning and can be {@code null}
+   * (think of it as {@code Deferred<Void>}).
+   * @since 2.1
+   */
+  public Deferred<Object> indexAnnotationBatch(final List<Annotation> notes) {
+    final ArrayList<Deferred<Object>> deferreds = 
+      new ArrayList<Deferred<Object>>(notes.size());
+    for (final Annotation note : notes) {
+      deferreds.add(indexAnnotation(note));
+    }
+    return Deferred.group(deferreds).addCallback(new GroupCB());
+  }
+  
   /**
    * Executes a very basic search query, returning the results in the SearchQuery
    * object passed in.
@@ -151,4 +218,12 @@ public abstract class SearchPlugin {
    * @return The query results
    */
   public abstract Deferred<SearchQuery> executeQuery(final SearchQuery query); 
+  
+  /** Turns the results of a group of index calls into a single Object */
+  private static final class GroupCB 
+    implements Callback<Object, ArrayList<Object>> {
+    public Object call(final ArrayList<Object> results) {
+      return null;
+    }
+  }
 }
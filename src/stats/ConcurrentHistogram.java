@@ -0,0 +1,228 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram with a bounded relative error, to keep track of
+ * latency distributions updated from many threads.
+ * <p>
+ * The buckets are laid out log-linearly: values below {@code 2^precision}
+ * each get their own bucket, then every range between two consecutive powers
+ * of 2 is split into {@code 2^(precision - 1)} buckets of equal width.  So a
+ * percentile is never off by more than {@code 1 / 2^(precision - 1)} of its
+ * value, no matter how far in the tail it is.  For instance with a precision
+ * of 5, values up to 32 are exact and larger ones are within 6.25%.
+ * <p>
+ * Adding a value is lock-free.  Reading percentiles while values are being
+ * added is safe but may or may not account for the values added
+ * concurrently.
+ * <p>
+ * All values must be positive ({@code >= 0}).  Values greater than the
+ * maximum given to the constructor are counted as the maximum.
+ * @since 2.1
+ */
+public final class ConcurrentHistogram {
+
+  /** Number of bits of precision. */
+  private final int precision;
+
+  /** The largest value tracked. */
+  private final long max;
+
+  /** Number of values in each bucket. */
+  private final AtomicLongArray buckets;
+
+  /**
+   * Constructor.
+   * @param max The maximum value of the histogram.  Any value greater
+   * than this will be counted as this value.
+   * @param precision The number of bits of precision, between 1 and 16.
+   * @throws IllegalArgumentException if {@code max} is not greater than 0 or
+   * the precision isn't valid.
+   */
+  public ConcurrentHistogram(final long max, final int precision) {
+    if (max < 1) {
+      throw new IllegalArgumentException("max < 1! max=" + max);
+    } else if (precision < 1 || precision > 16) {
+      throw new IllegalArgumentException("invalid precision: " + precision);
+    }
+    this.max = max;
+    this.precision = precision;
+    buckets = new AtomicLongArray(bucketIndexFor(max) + 1);
+  }
+
+  /** Returns the number of buckets in this histogram. */
+  public int buckets() {
+    return buckets.length();
+  }
+
+  /**
+   * Adds a value to the histogram.
+   * @param value The value to add.
+   * @throws IllegalArgumentException if the value given is negative.
+   */
+  public void add(final long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("negative value: " + value);
+    }
+    buckets.incrementAndGet(bucketIndexFor(Math.min(value, max)));
+  }
+
+  /** Returns the number of values in this histogram. */
+  public long count() {
+    long count = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      count += buckets.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the value of the <i>p</i>th percentile in this histogram, that
+   * is the highest value of the bucket that holds it.
+   * @param p The percentile, in the range {@code ]0; 100]}, e.g. 99.9
+   * @return The value or 0 if the histogram is empty.
+   * @throws IllegalArgumentException if {@code p} is not valid.
+   */
+  public long percentile(final double p) {
+    if (!(p > 0 && p <= 100)) {
+      throw new IllegalArgumentException("invalid percentile: " + p);
+    }
+    final long[] counts = new long[buckets.length()];
+    long count = 0;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = buckets.get(i);
+      count += counts[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    // The rank of the value we're looking for, starting from 1.
+    final long rank = Math.max(1, (long) Math.ceil(count * p / 100));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(bucketHighValue(i), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Returns a copy of this histogram, e.g. to compute several percentiles
+   * out of the same set of values.
+   */
+  public ConcurrentHistogram snapshot() {
+    final ConcurrentHistogram copy = new ConcurrentHistogram(max, precision);
+    for (int i = 0; i < buckets.length(); i++) {
+      copy.buckets.set(i, buckets.get(i));
+    }
+    return copy;
+  }
+
+  /**
+   * Returns a copy of this histogram and clears it, so that successive calls
+   * return the distribution of the values added in between.  No value added
+   * concurrently is lost: it's either in the copy or left in this histogram.
+   */
+  public ConcurrentHistogram snapshotAndReset() {
+    final ConcurrentHistogram copy = new ConcurrentHistogram(max, precision);
+    for (int i = 0; i < buckets.length(); i++) {
+      copy.buckets.set(i, buckets.getAndSet(i, 0));
+    }
+    return copy;
+  }
+
+  /**
+   * Returns a copy of this histogram as a {@link Histogram}, for code written
+   * against that class.  Each value is counted as the highest value of its
+   * bucket.
+   * @param max The maximum value of the copy.
+   * @param interval The interval of each linear bucket of the copy.
+   * @param cutoff The value beyond which the copy has exponential buckets.
+   * @throws IllegalArgumentException if the parameters are not valid for a
+   * {@link Histogram}.
+   */
+  public Histogram toHistogram(final int max, final short interval,
+                               final int cutoff) {
+    final Histogram histo = new Histogram(max, interval, cutoff);
+    for (int i = 0; i < buckets.length(); i++) {
+      final long count = buckets.get(i);
+      if (count > 0) {
+        final long value = Math.min(bucketHighValue(i), this.max);
+        histo.add((int) Math.min(value, Integer.MAX_VALUE),
+                  (int) Math.min(count, Integer.MAX_VALUE));
+      }
+    }
+    return histo;
+  }
+
+  /** Removes all the values from this histogram. */
+  public void reset() {
+    for (int i = 0; i < buckets.length(); i++) {
+      buckets.set(i, 0);
+    }
+  }
+
+  /** Helper for unit tests that returns the value in the given bucket. */
+  long valueInBucket(final int index) {
+    return buckets.get(index);
+  }
+
+  /** Finds the index of the bucket in which the given value should be. */
+  int bucketIndexFor(final long value) {
+    if (value < 1L << precision) {
+      return (int) value;
+    }
+    // Position of the highest bit set, at least `precision'.
+    final int log2 = 63 - Long.numberOfLeadingZeros(value);
+    final int shift = log2 - precision + 1;
+    return (1 << precision)
+      + (log2 - precision) * (1 << (precision - 1))
+      + (int) (value >>> shift) - (1 << (precision - 1));
+  }
+
+  /** Returns the lowest value (inclusive) of the given bucket. */
+  long bucketLowValue(final int index) {
+    if (index < 1 << precision) {
+      return index;
+    }
+    final int half = 1 << (precision - 1);
+    final int k = index - (1 << precision);
+    final int shift = k / half + 1;
+    return (long) (k % half + half) << shift;
+  }
+
+  /** Returns the highest value (inclusive) of the given bucket. */
+  long bucketHighValue(final int index) {
+    return bucketLowValue(index + 1) - 1;
+  }
+
+  public String toString() {
+    final StringBuilder buf = new StringBuilder();
+    buf.append("ConcurrentHistogram(max=").append(max)
+      .append(", precision=").append(precision)
+      .append(", buckets=[");
+    for (int i = 0; i < buckets.length(); i++) {
+      if (i > 0) {
+        buf.append(", ");
+      }
+      buf.append(buckets.get(i));
+    }
+    return buf.append("])").toString();
+  }
+
+}
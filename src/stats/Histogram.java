@@ -164,6 +164,22 @@ public final class Histogram {
     buckets[bucketIndexFor(value)]++;
   }
 
+  /**
+   * Adds the same value several times to the histogram.
+   * @param value The value to add.
+   * @param count How many times to add it.
+   * @throws IllegalArgumentException if the value or count is negative.
+   * @since 2.1
+   */
+  void add(final int value, final int count) {
+    if (value < 0) {
+      throw new IllegalArgumentException("negative value: " + value);
+    } else if (count < 0) {
+      throw new IllegalArgumentException("negative count: " + count);
+    }
+    buckets[bucketIndexFor(value)] += count;
+  }
+
   /**
    * Returns the value of the <i>p</i>th  percentile in this histogram.
    * <p>
@@ -0,0 +1,100 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The execution profile of a single query: how much time was spent in each
+ * stage (scanning HBase, decoding rows, grouping, serializing...) and how
+ * many rows, cells, bytes or data points went through it.
+ * <p>
+ * Stages and counters are identified by name and reported in the order in
+ * which they were first recorded.  Times are recorded in nanoseconds and
+ * reported in milliseconds.
+ * <p>
+ * This class is thread-safe, although a query usually records its stats from
+ * one thread at a time.
+ * @since 2.1
+ */
+public final class QueryStats {
+
+  /** Time spent in each stage, in nanoseconds. */
+  private final LinkedHashMap<String, Long> times =
+    new LinkedHashMap<String, Long>();
+
+  /** Counters. */
+  private final LinkedHashMap<String, Long> counts =
+    new LinkedHashMap<String, Long>();
+
+  /**
+   * Adds some time to a stage.
+   * @param stage The name of the stage, e.g. "scanTime"
+   * @param nanos The time spent in that stage, in nanoseconds
+   */
+  public synchronized void addTime(final String stage, final long nanos) {
+    final Long time = times.get(stage);
+    times.put(stage, time == null ? nanos : time + nanos);
+  }
+
+  /**
+   * Increments a counter.
+   * @param name The name of the counter, e.g. "rows"
+   * @param n The value to add to the counter
+   */
+  public synchronized void addCount(final String name, final long n) {
+    final Long count = counts.get(name);
+    counts.put(name, count == null ? n : count + n);
+  }
+
+  /**
+   * Returns the time spent in a stage.
+   * @param stage The name of the stage
+   * @return The time in nanoseconds, 0 if nothing was recorded for that stage
+   */
+  public synchronized long getTime(final String stage) {
+    final Long time = times.get(stage);
+    return time == null ? 0 : time;
+  }
+
+  /**
+   * Returns the value of a counter.
+   * @param name The name of the counter
+   * @return The value of the counter, 0 if it was never incremented
+   */
+  public synchronized long getCount(final String name) {
+    final Long count = counts.get(name);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Returns all the stats recorded so far, times first, so they can be
+   * serialized.  Times are converted to milliseconds.
+   * @return A new map of stat name to value
+   */
+  public synchronized Map<String, Object> toMap() {
+    final LinkedHashMap<String, Object> map =
+      new LinkedHashMap<String, Object>(times.size() + counts.size());
+    for (final Map.Entry<String, Long> entry : times.entrySet()) {
+      map.put(entry.getKey(), entry.getValue() / 1000000.0);
+    }
+    map.putAll(counts);
+    return map;
+  }
+
+  public String toString() {
+    return "QueryStats" + toMap();
+  }
+
+}
@@ -113,6 +113,30 @@ public abstract class StatsCollector {
     record(name + "_95pct", histo.percentile(95), xtratag);
   }
 
+  /**
+   * Records a number of data points from a {@link ConcurrentHistogram},
+   * including the 99th and 99.9th percentiles.
+   * @param name The name of the metric.
+   * @param histo The histogram to collect data points from.
+   * @param xtratag An extra tag ({@code name=value}) to add to those
+   * data points (ignored if {@code null}).
+   * @throws IllegalArgumentException if {@code xtratag != null} and it
+   * doesn't follow the {@code name=value} format.
+   * @since 2.1
+   */
+  public final void record(final String name,
+                           final ConcurrentHistogram histo,
+                           final String xtratag) {
+    // Work on a copy so that all the percentiles are consistent.
+    final ConcurrentHistogram snapshot = histo.snapshot();
+    record(name + "_50pct", snapshot.percentile(50), xtratag);
+    record(name + "_75pct", snapshot.percentile(75), xtratag);
+    record(name + "_90pct", snapshot.percentile(90), xtratag);
+    record(name + "_95pct", snapshot.percentile(95), xtratag);
+    record(name + "_99pct", snapshot.percentile(99), xtratag);
+    record(name + "_999pct", snapshot.percentile(99.9), xtratag);
+  }
+
   /**
    * Records a data point.
    * @param name The name of the metric.
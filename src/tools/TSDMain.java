@@ -146,6 +146,7 @@ final class TSDMain {
       
       // Make sure we don't even start if we can't find our tables.
       tsdb.checkNecessaryTablesExist().joinUninterruptibly();
+      tsdb.loadUidCaches().joinUninterruptibly();
 
       registerShutdownHook(tsdb);
       final ServerBootstrap server = new ServerBootstrap(factory);
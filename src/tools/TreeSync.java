@@ -12,11 +12,22 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tools;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.TSMeta;
@@ -66,15 +77,24 @@ final class TreeSync extends Thread {
   /** TSDB to use for storage access */
   final TSDB tsdb;
   
-  /** The ID to start the sync with for this thread */
-  final long start_id;
+  /** 
+   * The metric ID ranges left to sync, shared by all the threads. Each range
+   * is a {start, end} pair, the end is exclusive.
+   */
+  final Queue<long[]> ranges;
   
-  /** The end of the ID block to work on */
-  final long end_id;
+  /** Where to record the completed ranges, may be null */
+  final Checkpoint checkpoint;
   
   /** Diagnostic ID for this thread */
   final int thread_id;
   
+  /** Number of TSMetas processed by this thread */
+  private final AtomicLong processed = new AtomicLong();
+  
+  /** Number of ranges this thread failed to sync */
+  private int failed_ranges;
+  
   /**
    * Default constructor, stores the TSDB to use
    * @param tsdb The TSDB to use for access
@@ -84,19 +104,32 @@ final class TreeSync extends Thread {
    */
   public TreeSync(final TSDB tsdb, final long start_id, final double quotient,
       final int thread_id) {
+    this(tsdb, new ConcurrentLinkedQueue<long[]>(), null, thread_id);
+    // teensy bit of overlap
+    ranges.add(new long[] { start_id, start_id + (long) quotient + 1 });
+  }
+  
+  /**
+   * Constructor for a thread taking its work from a shared queue of ranges
+   * @param tsdb The TSDB to use for access
+   * @param ranges The metric ID ranges to sync, shared between threads
+   * @param checkpoint Where to record the completed ranges, may be null
+   * @param thread_id The ID of this thread (starts at 0)
+   * @since 2.1
+   */
+  public TreeSync(final TSDB tsdb, final Queue<long[]> ranges, 
+      final Checkpoint checkpoint, final int thread_id) {
     this.tsdb = tsdb;
-    this.start_id = start_id;
-    this.end_id = start_id + (long) quotient + 1; // teensy bit of overlap
+    this.ranges = ranges;
+    this.checkpoint = checkpoint;
     this.thread_id = thread_id;
   }
   
   /**
-   * Performs a tree synchronization using a table scanner across the UID table
-   * @return 0 if completed successfully, something else if an error occurred
+   * Performs a tree synchronization using a table scanner across the UID 
+   * table, one range at a time until the shared queue is empty
    */
   public void run() {
-    final Scanner scanner = getScanner();
-
     // start the process by loading all of the trees in the system
     final List<Tree> trees;
     try {
@@ -125,6 +158,40 @@ final class TreeSync extends Thread {
       LOG.info("Found [" + trees.size() + "] trees");
     }
     
+    final long start = System.currentTimeMillis();
+    long[] range;
+    while ((range = ranges.poll()) != null) {
+      final long range_start = System.currentTimeMillis();
+      final long before = processed.get();
+      if (!syncRange(range[0], range[1], trees)) {
+        LOG.error("[" + thread_id + "] Failed to sync range [" + range[0] 
+            + ", " + range[1] + "), it will be retried on resume");
+        failed_ranges++;
+        continue;
+      }
+      if (checkpoint != null) {
+        checkpoint.done(range[0], range[1]);
+      }
+      LOG.info("[" + thread_id + "] Synced range [" + range[0] + ", " 
+          + range[1] + "): " + (processed.get() - before) + " TSMetas, " 
+          + rate(processed.get() - before, range_start) + " TSMetas/s");
+    }
+    LOG.info("[" + thread_id + "] Complete, processed " + processed.get() 
+        + " TSMetas at " + rate(processed.get(), start) + " TSMetas/s");
+  }
+  
+  /**
+   * Runs all the TSMetas of a metric ID range through the trees
+   * @param start_id The first metric ID of the range
+   * @param end_id The end of the range, exclusive
+   * @param trees The trees to process the TSMetas through
+   * @return True if the whole range was processed, false if the scanner
+   * failed
+   */
+  private boolean syncRange(final long start_id, final long end_id, 
+      final List<Tree> trees) {
+    final Scanner scanner = getScanner(start_id, end_id);
+    
     // setup an array for storing the tree processing calls so we can block 
     // until each call has completed
     final ArrayList<Deferred<Boolean>> tree_calls = 
@@ -194,6 +261,7 @@ final class TreeSync extends Thread {
             @Override
             public Deferred<Boolean> call(TSMeta meta) throws Exception {
               if (meta != null) {
+                processed.incrementAndGet();
                 LOG.debug("Processing TSMeta: " + meta + " w value: " + 
                     JSON.serializeToString(meta));
                 
@@ -304,13 +372,22 @@ final class TreeSync extends Thread {
     final TsuidScanner tree_scanner = new TsuidScanner();
     tree_scanner.scan().addErrback(new ErrBack());
     try {
-      completed.joinUninterruptibly();
-      LOG.info("[" + thread_id + "] Complete");
+      return completed.joinUninterruptibly();
     } catch (Exception e) {
       LOG.error("[" + thread_id + "] Scanner Exception", e);
       throw new RuntimeException("[" + thread_id + "] Scanner exception", e);
     }
-    return;
+  }
+  
+  /** @return the number of ranges this thread failed to sync */
+  public int failedRanges() {
+    return failed_ranges;
+  }
+  
+  /** @return the number of items processed per second since the start */
+  private static long rate(final long count, final long start) {
+    final long elapsed = System.currentTimeMillis() - start;
+    return elapsed > 0 ? count * 1000 / elapsed : count;
   }
 
   /**
@@ -334,11 +411,14 @@ final class TreeSync extends Thread {
   }
 
   /**
-   * Returns a scanner set to scan the range configured for this thread
+   * Returns a scanner set to scan the given range of metric IDs
+   * @param start_id The first metric ID of the range
+   * @param end_id The end of the range, exclusive
    * @return A scanner on the "name" CF configured for the specified range
    * @throws HBaseException if something goes boom
    */
-  private Scanner getScanner() throws HBaseException {
+  private Scanner getScanner(final long start_id, final long end_id) 
+    throws HBaseException {
     final short metric_width = TSDB.metrics_width();
     final byte[] start_row = 
       Arrays.copyOfRange(Bytes.fromLong(start_id), 8 - metric_width, 8);
@@ -354,4 +434,103 @@ final class TreeSync extends Thread {
     scanner.setQualifier("ts_meta".getBytes(CHARSET));
     return scanner;
   }
+
+  /**
+   * Records the metric ID ranges completed by a sync in a local file, so that
+   * an interrupted sync can skip them when it's started again.
+   * <p>
+   * The first line of the file holds the max metric ID and number of ranges
+   * the sync was started with, the following lines the start and end of each
+   * completed range. If the max metric ID or number of ranges changed, the
+   * ranges don't line up anymore and the file is started over.
+   */
+  static final class Checkpoint {
+    
+    /** The file to write to */
+    private final File file;
+    
+    /** Start IDs of the completed ranges */
+    private final HashSet<Long> completed = new HashSet<Long>();
+    
+    /** Appends to the file */
+    private final Writer writer;
+    
+    /**
+     * Loads or creates the checkpoint file
+     * @param file The file to use
+     * @param max_id The max metric ID of this sync
+     * @param num_ranges The number of ranges of this sync
+     * @throws IOException if the file couldn't be read or written
+     */
+    Checkpoint(final File file, final long max_id, final int num_ranges) 
+      throws IOException {
+      this.file = file;
+      final String header = max_id + " " + num_ranges;
+      if (file.exists()) {
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+          String line = reader.readLine();
+          if (header.equals(line)) {
+            while ((line = reader.readLine()) != null) {
+              final int space = line.indexOf(' ');
+              if (space > 0) {
+                completed.add(Long.parseLong(line.substring(0, space)));
+              }
+            }
+          } else {
+            LOG.warn("Checkpoint " + file + " was written for a different " 
+                + "sync [" + line + "], starting over");
+          }
+        } finally {
+          reader.close();
+        }
+      }
+      final boolean resume = !completed.isEmpty();
+      writer = new BufferedWriter(new FileWriter(file, resume));
+      if (resume) {
+        LOG.info("Resuming from checkpoint " + file + " with [" 
+            + completed.size() + "] completed ranges");
+      } else {
+        writer.write(header + "\n");
+        writer.flush();
+      }
+    }
+    
+    /**
+     * @param start_id The first metric ID of the range
+     * @return whether the range was already completed
+     */
+    synchronized boolean isDone(final long start_id) {
+      return completed.contains(start_id);
+    }
+    
+    /**
+     * Records a completed range
+     * @param start_id The first metric ID of the range
+     * @param end_id The end of the range, exclusive
+     */
+    synchronized void done(final long start_id, final long end_id) {
+      completed.add(start_id);
+      try {
+        writer.write(start_id + " " + end_id + "\n");
+        writer.flush();
+      } catch (IOException e) {
+        LOG.error("Failed to write to checkpoint " + file, e);
+      }
+    }
+    
+    /**
+     * Closes and removes the file, once the sync completed
+     */
+    synchronized void delete() {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        LOG.error("Failed to close checkpoint " + file, e);
+      }
+      if (!file.delete()) {
+        LOG.warn("Failed to delete checkpoint " + file);
+      }
+    }
+  }
 }
@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tools;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
@@ -23,6 +24,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -112,6 +114,7 @@ final class UidManager {
         + "            created timestamps\n"
         + "  metapurge: Removes meta data entries from the UID table\n"
         + "  treesync: Process all timeseries meta objects through tree rules\n"
+        + "            with --workers threads, resuming from --checkpoint\n"
         + "  treepurge <id> [definition]: Purge a tree and/or the branches\n"
         + "            from storage. Provide an integer Tree ID and optionally\n"
         + "            add \"true\" to delete the tree definition\n\n"
@@ -131,6 +134,10 @@ final class UidManager {
     argp.addOption("--ignore-case",
                    "Ignore case distinctions when matching a regexp.");
     argp.addOption("-i", "Short for --ignore-case.");
+    argp.addOption("--workers", "N",
+                   "Number of threads to use for treesync.");
+    argp.addOption("--checkpoint", "PATH",
+                   "File to record the treesync progress in, to resume it.");
     args = CliOptions.parse(argp, args);
     if (args == null) {
       usage(argp, "Invalid usage");
@@ -150,6 +157,14 @@ final class UidManager {
     
     // get a config object
     Config config = CliOptions.getConfig(argp);
+    if (argp.has("--workers")) {
+      config.overrideConfig("tsd.tools.treesync.workers", 
+          argp.get("--workers"));
+    }
+    if (argp.has("--checkpoint")) {
+      config.overrideConfig("tsd.tools.treesync.checkpoint", 
+          argp.get("--checkpoint"));
+    }
     final byte[] table = config.getString("tsd.storage.hbase.uid_table")
       .getBytes();
     
@@ -889,23 +904,39 @@ final class UidManager {
     final long start_time = System.currentTimeMillis() / 1000;
     final long max_id = getMaxMetricID(tsdb);
     
- // now figure out how many IDs to divy up between the workers
-    final int workers = Runtime.getRuntime().availableProcessors() * 2;
-    final double quotient = (double)max_id / (double)workers;
+    // split the metric IDs in more ranges than workers so that the threads
+    // that are done early can help with the rest
+    int workers = tsdb.getConfig().getInt("tsd.tools.treesync.workers");
+    if (workers < 1) {
+      workers = Runtime.getRuntime().availableProcessors() * 2;
+    }
+    final int num_ranges = (int) Math.max(1, Math.min(max_id, workers * 16));
+    final long range_size = (max_id + num_ranges - 1) / num_ranges;
     
-    long index = 1;
+    final String checkpoint_file = 
+      tsdb.getConfig().getString("tsd.tools.treesync.checkpoint");
+    final TreeSync.Checkpoint checkpoint = checkpoint_file.isEmpty() ? null :
+      new TreeSync.Checkpoint(new File(checkpoint_file), max_id, num_ranges);
+    
+    final ConcurrentLinkedQueue<long[]> ranges = 
+      new ConcurrentLinkedQueue<long[]>();
+    int skipped = 0;
+    for (long index = 1; index <= max_id; index += range_size) {
+      if (checkpoint != null && checkpoint.isDone(index)) {
+        skipped++;
+        continue;
+      }
+      ranges.add(new long[] { index, Math.min(index + range_size, max_id + 1) });
+    }
     
     LOG.info("Max metric ID is [" + max_id + "]");
-    LOG.info("Spooling up [" + workers + "] worker threads");
-    final Thread[] threads = new Thread[workers];
+    LOG.info("Spooling up [" + workers + "] worker threads for [" 
+        + ranges.size() + "] ranges, [" + skipped + "] already completed");
+    final TreeSync[] threads = new TreeSync[workers];
     for (int i = 0; i < workers; i++) {
-      threads[i] = new TreeSync(tsdb, index, quotient, i);
+      threads[i] = new TreeSync(tsdb, ranges, checkpoint, i);
       threads[i].setName("TreeSync # " + i);
       threads[i].start();
-      index += quotient;
-      if (index < max_id) {
-        index++;
-      }
     }
     
     // wait till we're all done
@@ -916,6 +947,18 @@ final class UidManager {
     
     // make sure buffered data is flushed to storage before exiting
     tsdb.flush().joinUninterruptibly();
+    int failed = 0;
+    for (final TreeSync thread : threads) {
+      failed += thread.failedRanges();
+    }
+    if (failed > 0) {
+      LOG.error("[" + failed + "] ranges failed to sync" + (checkpoint == null 
+          ? "" : ", run the sync again to resume from " + checkpoint_file));
+      return 1;
+    }
+    if (checkpoint != null) {
+      checkpoint.delete();
+    }
     
     final long duration = (System.currentTimeMillis() / 1000) - start_time;
     LOG.info("Completed meta data synchronization in [" + 
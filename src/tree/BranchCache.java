@@ -0,0 +1,148 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tree;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Remembers the branches and leaves of a tree known to be in storage, so
+ * that the {@link TreeBuilder} only writes the new ones.
+ * <p>
+ * Each branch ID maps to the leaves written to it, by display name, with
+ * their TSUID.  The cache is bounded by the total number of branches and
+ * leaves, and evicts the least recently used branches with their leaves.
+ * Forgetting an entry is harmless, it's just written again.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.1
+ */
+final class BranchCache {
+
+  /** Number of branches or leaves found in the cache. */
+  private static final AtomicLong hits = new AtomicLong();
+  /** Number of branches or leaves that had to be written. */
+  private static final AtomicLong misses = new AtomicLong();
+  /** Number of branches evicted. */
+  private static final AtomicLong evictions = new AtomicLong();
+
+  /** Maximum number of branches and leaves to remember. */
+  private final int max_size;
+
+  /** Branch IDs to their leaves, in access order. */
+  private final LinkedHashMap<String, HashMap<String, String>> branches =
+    new LinkedHashMap<String, HashMap<String, String>>(16, 0.75f, true);
+
+  /** Current number of branches and leaves. */
+  private int size;
+
+  /**
+   * Constructor.
+   * @param max_size Maximum number of branches and leaves to remember.
+   * @throws IllegalArgumentException if the size is not greater than 0.
+   */
+  BranchCache(final int max_size) {
+    if (max_size < 1) {
+      throw new IllegalArgumentException("Invalid max size: " + max_size);
+    }
+    this.max_size = max_size;
+  }
+
+  /**
+   * Tells whether the branch is known to be stored.
+   * @param branch_id The ID of the branch.
+   */
+  synchronized boolean hasBranch(final String branch_id) {
+    return record(branches.get(branch_id) != null);
+  }
+
+  /**
+   * Tells whether the leaf is known to be stored on the branch.
+   * @param branch_id The ID of the branch.
+   * @param leaf The leaf.
+   */
+  synchronized boolean hasLeaf(final String branch_id, final Leaf leaf) {
+    final HashMap<String, String> leaves = branches.get(branch_id);
+    return record(leaves != null
+        && leaf.getTsuid().equals(leaves.get(leaf.getDisplayName())));
+  }
+
+  /**
+   * Remembers that a branch is stored.
+   * @param branch_id The ID of the branch.
+   */
+  synchronized void addBranch(final String branch_id) {
+    if (branches.get(branch_id) == null) {
+      branches.put(branch_id, new HashMap<String, String>());
+      size++;
+      evict();
+    }
+  }
+
+  /**
+   * Remembers that a leaf is stored on the branch, and so is the branch.
+   * @param branch_id The ID of the branch.
+   * @param leaf The leaf.
+   */
+  synchronized void addLeaf(final String branch_id, final Leaf leaf) {
+    HashMap<String, String> leaves = branches.get(branch_id);
+    if (leaves == null) {
+      leaves = new HashMap<String, String>();
+      branches.put(branch_id, leaves);
+      size++;
+    }
+    if (leaves.put(leaf.getDisplayName(), leaf.getTsuid()) == null) {
+      size++;
+    }
+    evict();
+  }
+
+  /** @return the number of branches and leaves remembered */
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Collects the stats of all the branch caches.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("tree.branch_cache.lookups", hits, "kind=hit");
+    collector.record("tree.branch_cache.lookups", misses, "kind=miss");
+    collector.record("tree.branch_cache.evictions", evictions);
+  }
+
+  /** Counts a lookup and returns its result. */
+  private static boolean record(final boolean hit) {
+    (hit ? hits : misses).incrementAndGet();
+    return hit;
+  }
+
+  /** Evicts the least recently used branches until we fit. */
+  private void evict() {
+    final Iterator<Map.Entry<String, HashMap<String, String>>> it =
+      branches.entrySet().iterator();
+    // Never evict the most recent branch, even if it has too many leaves.
+    while (size > max_size && branches.size() > 1) {
+      size -= it.next().getValue().size() + 1;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+}
@@ -800,6 +800,7 @@ public final class Tree {
     if (tree_id < 1 || tree_id > 65535) {
       throw new IllegalArgumentException("Invalid Tree ID");
     }
+    TreeBuilder.clearBranchCache(tree_id);
 
     // scan all of the rows starting with the tree ID. We can't just delete the
     // rows as there may be other types of data. Thus we have to check the
@@ -25,6 +25,7 @@ import java.util.regex.Matcher;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.TSMeta;
 import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.tree.TreeRule.TreeRuleType;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
 
@@ -44,7 +45,8 @@ import com.stumbleupon.async.Deferred;
  * When processing, the builder runs the meta data through each of the rules in
  * the rule set and recursively builds a tree. After running through all of the
  * rules, if valid results were obtained, each branch is saved to storage if 
- * they haven't been processed before (in the {@link #processed_branches} map).
+ * they haven't been processed before (in the {@link #processed_branches} map,
+ * or in the tree's {@link BranchCache} if enabled).
  * If a leaf was found, it will be saved. If any collisions or not-matched
  * reports occurred, they will be saved to storage.
  * <p>
@@ -72,6 +74,10 @@ public final class TreeBuilder {
   /** Timestamp when we last reloaded all of the trees */
   private static long last_tree_load;
   
+  /** Caches of the branches known to be stored, by tree ID */
+  private static final ConcurrentHashMap<Integer, BranchCache> branch_caches = 
+    new ConcurrentHashMap<Integer, BranchCache>();
+  
   /** Lock used to synchronize loading of the tree list */
   private static final Lock trees_lock = new ReentrantLock();
   
@@ -90,6 +96,9 @@ public final class TreeBuilder {
   /** Filled with messages when the user has asked for a test run */
   private ArrayList<String> test_messages;
   
+  /** Whether or not the current run is a test run */
+  private boolean testing;
+  
   /** The tree to work with */
   private Tree tree;
   
@@ -179,6 +188,7 @@ public final class TreeBuilder {
     // reset the state in case the caller is reusing this object
     resetState();
     this.meta = meta;
+    testing = is_testing;
     
     // setup a list of deferreds to return to the caller so they can wait for
     // storage calls to complete
@@ -214,7 +224,7 @@ public final class TreeBuilder {
           // failed to match, then we don't want to store the resulting branches,
           // only the TSUID that failed to match
           testMessage(
-              "TSUID failed to match one or more rule levels, will not add: " + 
+              "TSUID failed to match one or more rule levels, will not add: ",
               meta);
           if (!is_testing && tree.getNotMatched() != null && 
               !tree.getNotMatched().isEmpty()) {
@@ -237,8 +247,11 @@ public final class TreeBuilder {
           Branch cb = current_branch;
           Map<Integer, String> path = branch.getPath();
           cb.prependParentPath(path);
+          final BranchCache cache = getBranchCache(tsdb, tree.getTreeId());
           while (cb != null) {
-            if (cb.getLeaves() != null || 
+            if (cache != null) {
+              storeUncached(cb, cache, storage_calls);
+            } else if (cb.getLeaves() != null || 
                 !processed_branches.containsKey(cb.getBranchId())) {
               LOG.debug("Flushing branch to storage: " + cb);
 
@@ -489,6 +502,20 @@ public final class TreeBuilder {
       
     }
     
+    return fetchEnabledTrees(tsdb).addCallbackDeferring(new ProcessTreesCB());
+  }
+  
+  /**
+   * Returns a copy of the list of enabled trees used for real-time processing,
+   * reloading it from storage if it hasn't been loaded in the past 5 minutes.
+   * The {@link Tree} objects are shared and must not be modified.
+   * @param tsdb The TSDB to use for access
+   * @return A deferred with the enabled trees, may be empty
+   * @throws HBaseException if a storage exception occurred
+   * @since 2.1
+   */
+  static Deferred<List<Tree>> fetchEnabledTrees(final TSDB tsdb) {
+    
     /**
      * Callback used when loading or re-loading the cached list of trees
      */
@@ -539,29 +566,124 @@ public final class TreeBuilder {
       final Deferred<List<Tree>> load_deferred = Tree.fetchAllTrees(tsdb)
         .addCallback(new FetchedTreesCB()).addErrback(new ErrorCB());
       last_tree_load = (System.currentTimeMillis() / 1000);
-      return load_deferred.addCallbackDeferring(new ProcessTreesCB());
+      return load_deferred;
     }
     
     // copy the tree list so we don't hold up the other threads while we're
     // processing
-    final List<Tree> local_trees;
+    final List<Tree> local_trees = new ArrayList<Tree>(trees.size());
     if (trees.isEmpty()) {
       LOG.debug("No trees were found to process the meta through");
       trees_lock.unlock();
-      return Deferred.fromResult(true);
+      return Deferred.fromResult(local_trees);
     }
     
-    local_trees = new ArrayList<Tree>(trees.size());
     local_trees.addAll(trees);
     
     // unlock so the next thread can get a copy of the trees and start
     // processing
     trees_lock.unlock();
+    return Deferred.fromResult(local_trees);
+  }
+
+  /**
+   * Returns the cache of stored branches for the given tree, creating it if
+   * needed.
+   * @param tsdb The TSDB to fetch the cache size from
+   * @param tree_id The ID of the tree
+   * @return The cache or null if {@code tsd.core.tree.branch_cache.max_size}
+   * is 0
+   */
+  static BranchCache getBranchCache(final TSDB tsdb, final int tree_id) {
+    final BranchCache cache = branch_caches.get(tree_id);
+    if (cache != null) {
+      return cache;
+    }
+    final int max_size = 
+      tsdb.getConfig().getInt("tsd.core.tree.branch_cache.max_size");
+    if (max_size < 1) {
+      return null;
+    }
+    final BranchCache existing = 
+      branch_caches.putIfAbsent(tree_id, new BranchCache(max_size));
+    return existing != null ? existing : branch_caches.get(tree_id);
+  }
+  
+  /**
+   * Forgets the stored branches of the tree, e.g. after it was deleted.
+   * @param tree_id The ID of the tree
+   */
+  static void clearBranchCache(final int tree_id) {
+    branch_caches.remove(tree_id);
+    tree_roots.remove(tree_id);
+  }
+  
+  /**
+   * Collects the stats of the branch caches.
+   * @param collector The collector to use
+   * @since 2.1
+   */
+  public static void collectStats(final StatsCollector collector) {
+    BranchCache.collectStats(collector);
+  }
+  
+  /**
+   * Stores the branch and its leaves, skipping those the cache knows are
+   * already in storage. Entries are cached once their storage call returned.
+   * @param branch The branch to store
+   * @param cache The cache of the tree
+   * @param storage_calls The list to add the storage calls to
+   */
+  private void storeUncached(final Branch branch, final BranchCache cache, 
+      final ArrayList<Deferred<Boolean>> storage_calls) {
+    final String branch_id = branch.getBranchId();
     
-    try {
-      return new ProcessTreesCB().call(local_trees);
-    } catch (Exception e) {
-      throw new RuntimeException("Failed to process trees", e);
+    /**
+     * Caches the branch once its CAS returned. The CAS fails if the branch
+     * already existed, which is just as good.
+     */
+    final class CacheBranchCB implements Callback<Boolean, ArrayList<Boolean>> {
+      @Override
+      public Boolean call(final ArrayList<Boolean> results) throws Exception {
+        cache.addBranch(branch_id);
+        return true;
+      }
+    }
+    
+    /**
+     * Caches the leaf if it was written or already existed. Collisions aren't
+     * cached so they're reported again.
+     */
+    final class CacheLeafCB implements Callback<Boolean, Boolean> {
+      final Leaf leaf;
+      
+      public CacheLeafCB(final Leaf leaf) {
+        this.leaf = leaf;
+      }
+      
+      @Override
+      public Boolean call(final Boolean success) throws Exception {
+        if (success) {
+          cache.addLeaf(branch_id, leaf);
+        }
+        return success;
+      }
+    }
+    
+    if (!cache.hasBranch(branch_id)) {
+      LOG.debug("Flushing branch to storage: " + branch);
+      storage_calls.add(branch.storeBranch(tsdb, tree, false)
+          .addCallback(new CacheBranchCB()));
+    }
+    if (branch.getLeaves() == null) {
+      return;
+    }
+    final byte[] row = branch.compileBranchId();
+    for (final Leaf leaf : branch.getLeaves()) {
+      if (!cache.hasLeaf(branch_id, leaf)) {
+        storage_calls.add(leaf.storeLeaf(tsdb, row, tree)
+            .addCallback(new CacheLeafCB(leaf)));
+      }
     }
   }
 
@@ -615,7 +737,7 @@ public final class TreeBuilder {
     for (Map.Entry<Integer, TreeRule> entry : rule_level.entrySet()) {
       // set the local rule
       rule = entry.getValue();
-      testMessage("Processing rule: " + rule);
+      testMessage("Processing rule: ", rule);
       
       // route to the proper handler based on the rule type
       if (rule.getType() == TreeRuleType.METRIC) {
@@ -683,7 +805,7 @@ public final class TreeBuilder {
       // if the parent has an empty ID, we need to roll back till we find one
       if (parent_branch.getDisplayName() == null || 
           parent_branch.getDisplayName().isEmpty()) {
-        testMessage("Depth [" + depth + 
+        testMessage("Depth [", depth,
             "] Parent branch was empty, rolling back");
         return true;
       }
@@ -692,8 +814,8 @@ public final class TreeBuilder {
       final Leaf leaf = new Leaf(current_branch.getDisplayName(), 
           meta.getTSUID());
       parent_branch.addLeaf(leaf, tree);
-      testMessage("Depth [" + depth + "] Adding leaf [" + leaf + 
-          "] to parent branch [" + parent_branch + "]");
+      testMessage("Depth [", depth, "] Adding leaf [", leaf,
+          "] to parent branch [", parent_branch, "]");
       current_branch = previous_branch;
       return false;
     }
@@ -702,8 +824,8 @@ public final class TreeBuilder {
     if ((previous_branch == null || previous_branch.getDisplayName().isEmpty()) 
         && !current_branch.getDisplayName().isEmpty()) {
       if (depth > 2) {
-        testMessage("Depth [" + depth + 
-            "] Skipping a non-matched branch, returning: " + current_branch);
+        testMessage("Depth [", depth,
+            "] Skipping a non-matched branch, returning: ", current_branch);
       }
       return false;
     }
@@ -711,7 +833,7 @@ public final class TreeBuilder {
     // if the current branch is empty, skip it
     if (current_branch.getDisplayName() == null || 
         current_branch.getDisplayName().isEmpty()) {
-      testMessage("Depth [" + depth + "] Branch was empty");
+      testMessage("Depth [", depth, "] Branch was empty");
       current_branch = previous_branch;
       return false;
     }
@@ -719,14 +841,14 @@ public final class TreeBuilder {
     // if the previous and current branch are the same, we just discard the 
     // previous, since the current may have a leaf
     if (current_branch.getDisplayName().equals(previous_branch.getDisplayName())){
-      testMessage("Depth [" + depth + "] Current was the same as previous");
+      testMessage("Depth [", depth, "] Current was the same as previous");
       return false;
     }
     
     // we've found a new branch, so add it
     parent_branch.addChild(current_branch);
-    testMessage("Depth [" + depth + "] Adding branch: " + current_branch + 
-        " to parent: " + parent_branch);
+    testMessage("Depth [", depth, "] Adding branch: ", current_branch,
+        " to parent: ", parent_branch);
     current_branch = previous_branch;
     return false;
   }
@@ -783,13 +905,13 @@ public final class TreeBuilder {
     
     // if we didn't find a match, return
     if (!found || tag_name.isEmpty()) {
-      testMessage("No match on tagk [" + rule.getField() + "] for rule: " + 
+      testMessage("No match on tagk [", rule.getField(), "] for rule: ",
           rule);
       return;
     }
     
     // matched!
-    testMessage("Matched tagk [" + rule.getField() + "] for rule: " + rule);
+    testMessage("Matched tagk [", rule.getField(), "] for rule: ", rule);
     processParsedValue(tag_name);    
   }
   
@@ -813,12 +935,12 @@ public final class TreeBuilder {
             "] was null");
       }
       processParsedValue(custom.get(rule.getCustomField()));
-      testMessage("Matched custom tag [" + rule.getCustomField() 
-          + "] for rule: " + rule);
+      testMessage("Matched custom tag [", rule.getCustomField() ,
+          "] for rule: ", rule);
     } else {
       // no match
-      testMessage("No match on custom tag [" + rule.getCustomField() 
-          + "] for rule: " + rule);
+      testMessage("No match on custom tag [", rule.getCustomField() ,
+          "] for rule: ", rule);
     }
   }
   
@@ -846,13 +968,13 @@ public final class TreeBuilder {
     }
     
     if (tagk == null) {
-      testMessage("No match on tagk [" + rule.getField() + "] for rule: " + 
+      testMessage("No match on tagk [", rule.getField(), "] for rule: ",
           rule);
       return;
     }
     
     // now scan the custom tags for a matching tag name and it's value
-    testMessage("Matched tagk [" + rule.getField() + "] for rule: " + 
+    testMessage("Matched tagk [", rule.getField(), "] for rule: ",
         rule);
     final Map<String, String> custom = tagk.getCustom();
     if (custom != null && custom.containsKey(rule.getCustomField())) {
@@ -862,11 +984,11 @@ public final class TreeBuilder {
             "] was null");
       }
       processParsedValue(custom.get(rule.getCustomField()));
-      testMessage("Matched custom tag [" + rule.getCustomField() + 
-          "] for rule: " + rule);
+      testMessage("Matched custom tag [", rule.getCustomField(),
+          "] for rule: ", rule);
     } else {
-      testMessage("No match on custom tag [" + rule.getCustomField() + 
-          "] for rule: " + rule);
+      testMessage("No match on custom tag [", rule.getCustomField(),
+          "] for rule: ", rule);
       return;
     }
   }
@@ -895,13 +1017,13 @@ public final class TreeBuilder {
     }
     
     if (tagv == null) {
-      testMessage("No match on tagv [" + rule.getField() + "] for rule: " + 
+      testMessage("No match on tagv [", rule.getField(), "] for rule: ",
           rule);
       return;
     }
     
     // now scan the custom tags for a matching tag name and it's value
-    testMessage("Matched tagv [" + rule.getField() + "] for rule: " + 
+    testMessage("Matched tagv [", rule.getField(), "] for rule: ",
         rule);
     final Map<String, String> custom = tagv.getCustom();
     if (custom != null && custom.containsKey(rule.getCustomField())) {
@@ -911,11 +1033,11 @@ public final class TreeBuilder {
             "] was null");
       }
       processParsedValue(custom.get(rule.getCustomField()));
-      testMessage("Matched custom tag [" + rule.getCustomField() + 
-          "] for rule: " + rule);
+      testMessage("Matched custom tag [", rule.getCustomField(),
+          "] for rule: ", rule);
     } else {
-      testMessage("No match on custom tag [" + rule.getCustomField() + 
-          "] for rule: " + rule);
+      testMessage("No match on custom tag [", rule.getCustomField(),
+          "] for rule: ", rule);
       return;
     }
   }  
@@ -973,9 +1095,9 @@ public final class TreeBuilder {
       }      
       
       // split it
-      splits = parsed_value.split(rule.getSeparator());
+      splits = rule.getCompiledSeparator().split(parsed_value);
       if (splits.length < 1) { 
-        testMessage("Separator did not match, created an empty list on rule: " + 
+        testMessage("Separator did not match, created an empty list on rule: ",
             rule);
         // set the index to 1 so the next time through it thinks we're done and
         // moves on to the next rule
@@ -1015,18 +1137,18 @@ public final class TreeBuilder {
           matcher.group(rule.getRegexGroupIdx() + 1);
         if (extracted == null || extracted.isEmpty()) {
           // can't use empty values as a branch/leaf name
-          testMessage("Extracted value for rule " + 
-              rule + " was null or empty");
+          testMessage("Extracted value for rule ",
+              rule, " was null or empty");
         } else {
           // found a branch or leaf!
           setCurrentName(parsed_value, extracted);
         }
       } else {
         // the group index was out of range
-        testMessage("Regex group index [" + 
-            rule.getRegexGroupIdx() + "] for rule " + 
-            rule + " was out of bounds [" +
-            matcher.groupCount() + "]");
+        testMessage("Regex group index [",
+            rule.getRegexGroupIdx(), "] for rule ",
+            rule, " was out of bounds [",
+            matcher.groupCount(), "]");
       }
     }
   }
@@ -1100,12 +1222,22 @@ public final class TreeBuilder {
   }
   
   /**
-   * Adds the given message to the local {@link #test_messages} array if it has
-   * been configured. Also logs each message to TRACE for debugging purposes.
-   * @param message The message to log
+   * Adds the given message to the local {@link #test_messages} array if this
+   * is a test run. Also logs each message to TRACE for debugging purposes.
+   * The message is only built when needed as this is called for every rule of
+   * every TSMeta processed.
+   * @param parts The parts of the message to concatenate
    */
-  private void testMessage(final String message) {
-    if (test_messages != null) {
+  private void testMessage(final Object... parts) {
+    if (!testing && !LOG.isTraceEnabled()) {
+      return;
+    }
+    final StringBuilder buf = new StringBuilder();
+    for (final Object part : parts) {
+      buf.append(part);
+    }
+    final String message = buf.toString();
+    if (testing && test_messages != null) {
       test_messages.add(message);
     }
     LOG.trace(message);
@@ -0,0 +1,222 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Runs new TSMeta objects through the trees in the background, so that the
+ * tree storage calls aren't part of the data point write path.
+ * <p>
+ * TSMetas are put in a bounded queue and processed in batches by a pool of
+ * worker threads.  Each worker keeps one {@link TreeBuilder} per tree and
+ * runs the whole batch through it, so a branch shared by many series of the
+ * batch is only written once, and the storage calls of the batch are waited
+ * on together.  A builder only holds the state of one TSMeta, so until it
+ * has loaded the root branch of its tree each TSMeta is waited on alone.  The builders are recreated whenever the trees are reloaded
+ * from storage, which also bounds the memory used to remember the branches
+ * already written.
+ * <p>
+ * When the queue is full, the TSMeta is processed in the calling thread as
+ * if there was no queue.  TSMetas still queued when the TSD stops are lost,
+ * run the tree sync utility to process them.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.1
+ */
+public final class TreeProcessingQueue {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(TreeProcessingQueue.class);
+
+  /** Maximum number of TSMetas a worker processes at once. */
+  private static final int MAX_BATCH_SIZE = 256;
+
+  /** The TSDB to use for storage access. */
+  private final TSDB tsdb;
+
+  /** TSMetas waiting to be processed. */
+  private final ArrayBlockingQueue<TSMeta> queue;
+
+  /** Number of TSMetas processed by the workers. */
+  private final AtomicLong processed = new AtomicLong();
+  /** Number of TSMetas processed inline because the queue was full. */
+  private final AtomicLong rejected = new AtomicLong();
+  /** Number of batches that failed. */
+  private final AtomicLong errors = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to use for storage access.
+   * @param size Maximum number of TSMetas to queue.
+   * @param threads Number of worker threads to start.
+   * @throws IllegalArgumentException if either number is not greater
+   * than 0.
+   */
+  public TreeProcessingQueue(final TSDB tsdb, final int size,
+                             final int threads) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Invalid queue size: " + size);
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid number of threads: "
+          + threads);
+    }
+    this.tsdb = tsdb;
+    queue = new ArrayBlockingQueue<TSMeta>(size);
+    for (int i = 0; i < threads; i++) {
+      final Thrd thread = new Thrd(i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Queues a TSMeta for processing through the trees.
+   * @param meta The TSMeta to process.
+   * @return A deferred that's called back once the TSMeta was queued, or
+   * once it was processed if the queue was full.  The value is meaningless.
+   */
+  public Deferred<Boolean> enqueue(final TSMeta meta) {
+    if (queue.offer(meta)) {
+      return Deferred.fromResult(true);
+    }
+    rejected.incrementAndGet();
+    return TreeBuilder.processAllTrees(tsdb, meta);
+  }
+
+  /** @return the number of TSMetas waiting to be processed */
+  public int size() {
+    return queue.size();
+  }
+
+  /**
+   * Collects the stats of the queue.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("tree.queue.size", queue.size());
+    collector.record("tree.queue.processed", processed);
+    collector.record("tree.queue.rejected", rejected);
+    collector.record("tree.queue.errors", errors);
+  }
+
+  /** Takes batches of TSMetas off the queue and processes them. */
+  final class Thrd extends Thread {
+    /** The builders of this worker, by tree ID. */
+    private final HashMap<Integer, TreeBuilder> builders =
+      new HashMap<Integer, TreeBuilder>();
+    /** The trees the builders were created for. */
+    private List<Tree> trees = new ArrayList<Tree>(0);
+
+    public Thrd(final int index) {
+      super("TreeProcessing #" + index);
+    }
+
+    public void run() {
+      final ArrayList<TSMeta> batch = new ArrayList<TSMeta>(MAX_BATCH_SIZE);
+      while (true) {
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          LOG.error("Tree processing thread interrupted", e);
+          return;
+        }
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        try {
+          process(batch);
+        } catch (Exception e) {
+          errors.incrementAndGet();
+          LOG.error("Failed to process " + batch.size()
+                    + " TSMetas through the trees", e);
+        }
+        processed.addAndGet(batch.size());
+        batch.clear();
+      }
+    }
+
+    /**
+     * Runs a batch of TSMetas through all the enabled trees and waits for
+     * the storage calls to complete.
+     * @param batch The TSMetas to process.
+     */
+    private void process(final ArrayList<TSMeta> batch) throws Exception {
+      final List<Tree> enabled =
+        TreeBuilder.fetchEnabledTrees(tsdb).joinUninterruptibly();
+      if (!sameTrees(enabled)) {
+        LOG.debug("Trees changed, resetting the tree builders");
+        builders.clear();
+        for (final Tree tree : enabled) {
+          builders.put(tree.getTreeId(), new TreeBuilder(tsdb, new Tree(tree)));
+        }
+        trees = enabled;
+      }
+      if (builders.isEmpty()) {
+        return;
+      }
+
+      final ArrayList<Deferred<ArrayList<Boolean>>> storage_calls =
+        new ArrayList<Deferred<ArrayList<Boolean>>>(
+            batch.size() * builders.size());
+      for (final TreeBuilder builder : builders.values()) {
+        for (final TSMeta meta : batch) {
+          final Deferred<ArrayList<Boolean>> result;
+          try {
+            result = builder.processTimeseriesMeta(meta, false);
+          } catch (IllegalArgumentException e) {
+            LOG.warn("Unable to process TSMeta " + meta, e);
+            continue;
+          }
+          if (builder.getRootBranch() == null) {
+            // the root is still loading and the builder only holds the state
+            // of one TSMeta at a time, so wait before reusing it
+            result.joinUninterruptibly();
+          } else {
+            storage_calls.add(result);
+          }
+        }
+      }
+      Deferred.group(storage_calls).joinUninterruptibly();
+    }
+
+    /**
+     * Tells whether the given trees are the ones the builders were created
+     * for.  Reloading the trees from storage creates new objects.
+     */
+    private boolean sameTrees(final List<Tree> enabled) {
+      if (enabled.size() != trees.size()) {
+        return false;
+      }
+      for (int i = 0; i < enabled.size(); i++) {
+        if (enabled.get(i) != trees.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+}
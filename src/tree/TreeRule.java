@@ -110,6 +110,9 @@ public final class TreeRule {
   /** Compiled regex pattern, compiled after processing */
   private Pattern compiled_regex = null;
   
+  /** Compiled separator pattern, compiled on first use */
+  private volatile Pattern compiled_separator = null;
+  
   /** Tracks fields that have changed by the user to avoid overwrites */
   private final HashMap<String, Boolean> changed = 
     new HashMap<String, Boolean>();
@@ -192,6 +195,7 @@ public final class TreeRule {
     if (overwrite || (rule.changed.get("separator") && 
         !separator.equals(rule.separator))) {
       separator = rule.separator;
+      compiled_separator = null;
       changed.put("separator", true);
     }
     if (overwrite || (rule.changed.get("description") &&
@@ -644,6 +648,27 @@ public final class TreeRule {
     return compiled_regex;
   }
 
+  /**
+   * Returns the separator compiled as a regex, the way 
+   * {@link String#split(String)} would use it, so that it isn't compiled
+   * again for every split.
+   * @return the compiled separator or null if the separator is empty
+   * @throws PatternSyntaxException if the separator is an invalid regex
+   * @since 2.1
+   */
+  @JsonIgnore
+  public Pattern getCompiledSeparator() {
+    if (separator == null || separator.isEmpty()) {
+      return null;
+    }
+    Pattern pattern = compiled_separator;
+    if (pattern == null) {
+      pattern = Pattern.compile(separator);
+      compiled_separator = pattern;
+    }
+    return pattern;
+  }
+
   /** @param type The type of rule */
   public void setType(TreeRuleType type) {
     if (this.type != type) {
@@ -689,6 +714,7 @@ public final class TreeRule {
     if (!this.separator.equals(separator)) {
       changed.put("separator", true);
       this.separator = separator;
+      compiled_separator = null;
     }
   }
 
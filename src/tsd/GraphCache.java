@@ -0,0 +1,287 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Keeps track of the files in the graph cache directory, so that
+ * {@link GraphHandler} can tell whether a graph is cached without hitting the
+ * file system, and so that the directory doesn't grow forever.
+ * <p>
+ * The index is loaded from the directory when the cache is created and is
+ * then only updated through {@link #add}.  Files are evicted, least recently
+ * used first, when the cache holds more than its maximum size, and files
+ * older than the maximum age are deleted when they're looked up or every so
+ * often when files are added.  Evicted files are deleted from disk.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.1
+ */
+final class GraphCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GraphCache.class);
+
+  /** How often to look for expired files, in milliseconds. */
+  private static final long EXPIRE_INTERVAL = 60000;
+
+  /** Number of files in all the caches. */
+  private static final AtomicLong cached_files = new AtomicLong();
+  /** Number of bytes in all the caches. */
+  private static final AtomicLong cached_bytes = new AtomicLong();
+  /** Number of files evicted to keep the cache under its maximum size. */
+  private static final AtomicLong evictions = new AtomicLong();
+  /** Number of files deleted because they were too old. */
+  private static final AtomicLong expirations = new AtomicLong();
+
+  /** Maximum number of bytes to keep in the cache, 0 for no limit. */
+  private final long max_size;
+  /** Maximum age of the files in the cache in milliseconds, 0 for no limit. */
+  private final long max_age;
+
+  /** All the files in the cache by path, least recently used first. */
+  private final LinkedHashMap<String, CachedFile> files =
+    new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+  /** Sum of the sizes of all the files in the cache. */
+  private long size;
+  /** Last time we looked for expired files. */
+  private long last_expiration;
+
+  /** A file in the cache. */
+  static final class CachedFile {
+    private final String path;
+    private final long length;
+    private final long mtime;
+    /** Contents of a JSON file, once parsed. */
+    private volatile HashMap<String, Object> json;
+
+    CachedFile(final String path, final long length, final long mtime) {
+      this.path = path;
+      this.length = length;
+      this.mtime = mtime;
+    }
+
+    /** @return the size of the file in bytes */
+    long length() {
+      return length;
+    }
+
+    /** @return the time the file was last modified, in milliseconds */
+    long mtime() {
+      return mtime;
+    }
+
+    /** @return the parsed contents of this JSON file or null if unknown */
+    HashMap<String, Object> json() {
+      return json;
+    }
+
+    /** @param json the parsed contents of this JSON file */
+    void setJson(final HashMap<String, Object> json) {
+      this.json = json;
+    }
+
+    public String toString() {
+      return "CachedFile(" + path + ", length=" + length + ", mtime=" + mtime
+        + ')';
+    }
+  }
+
+  /**
+   * Constructor.  Loads the index of the files already in the directory.
+   * @param directory The cache directory
+   * @param max_size Maximum number of bytes to keep, 0 for no limit
+   * @param max_age Maximum age of the files in milliseconds, 0 for no limit
+   * @throws IllegalArgumentException if a limit is negative
+   */
+  GraphCache(final String directory, final long max_size, final long max_age) {
+    if (max_size < 0) {
+      throw new IllegalArgumentException("Negative max_size: " + max_size);
+    }
+    if (max_age < 0) {
+      throw new IllegalArgumentException("Negative max_age: " + max_age);
+    }
+    this.max_size = max_size;
+    this.max_age = max_age;
+    final File[] existing = new File(directory).listFiles();
+    if (existing != null) {
+      // Oldest files first, so they're the first ones evicted.
+      Arrays.sort(existing, new Comparator<File>() {
+        public int compare(final File a, final File b) {
+          final long diff = a.lastModified() - b.lastModified();
+          return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+      });
+      for (final File file : existing) {
+        if (file.isFile()) {
+          add(file.getPath());
+        }
+      }
+    }
+    LOG.info("Loaded " + files.size() + " files (" + size
+        + " bytes) in the graph cache from " + directory);
+  }
+
+  /**
+   * Looks up a file in the cache.
+   * @param path The path of the file
+   * @return The file or null if it's not in the cache or expired
+   */
+  CachedFile get(final String path) {
+    final String key = new File(path).getPath();
+    synchronized (files) {
+      final CachedFile file = files.get(key);
+      if (file != null && max_age > 0
+          && System.currentTimeMillis() - file.mtime > max_age) {
+        delete(drop(key).path);
+        expirations.incrementAndGet();
+        return null;
+      }
+      return file;
+    }
+  }
+
+  /**
+   * Adds a file that was just written to the cache, or updates it.  Nothing
+   * is added if the file doesn't exist or is empty.
+   * @param path The path of the file
+   */
+  void add(final String path) {
+    final File file = new File(path);
+    final String key = file.getPath();
+    final long length = file.length();
+    final long mtime = file.lastModified();
+    synchronized (files) {
+      drop(key);
+      if (length > 0 && mtime > 0) {
+        files.put(key, new CachedFile(key, length, mtime));
+        size += length;
+        cached_files.incrementAndGet();
+        cached_bytes.addAndGet(length);
+      }
+      expire();
+      evict();
+    }
+  }
+
+  /**
+   * Removes a file from the cache, without deleting it.
+   * @param path The path of the file
+   */
+  void forget(final String path) {
+    synchronized (files) {
+      drop(new File(path).getPath());
+    }
+  }
+
+  /** @return the number of files in the cache */
+  int files() {
+    synchronized (files) {
+      return files.size();
+    }
+  }
+
+  /** @return the number of bytes in the cache */
+  long size() {
+    synchronized (files) {
+      return size;
+    }
+  }
+
+  /**
+   * Collects the stats of the graph caches.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.graph.cache.files", cached_files);
+    collector.record("http.graph.cache.bytes", cached_bytes);
+    collector.record("http.graph.cache.evictions", evictions, "reason=size");
+    collector.record("http.graph.cache.evictions", expirations, "reason=age");
+  }
+
+  /** Deletes the least recently used files until we're under the limit. */
+  private void evict() {
+    if (max_size <= 0) {
+      return;
+    }
+    final Iterator<CachedFile> it = files.values().iterator();
+    while (size > max_size && it.hasNext()) {
+      final CachedFile file = it.next();
+      it.remove();
+      removed(file);
+      delete(file.path);
+      evictions.incrementAndGet();
+    }
+  }
+
+  /** Deletes the files that are too old, unless we did so recently. */
+  private void expire() {
+    if (max_age <= 0) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    if (now - last_expiration < EXPIRE_INTERVAL) {
+      return;
+    }
+    last_expiration = now;
+    final Iterator<CachedFile> it = files.values().iterator();
+    while (it.hasNext()) {
+      final CachedFile file = it.next();
+      if (now - file.mtime > max_age) {
+        it.remove();
+        removed(file);
+        delete(file.path);
+        expirations.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Removes a file from the index, without deleting it.
+   * Must be called with the lock held.
+   * @return The file removed, or null if it wasn't in the index
+   */
+  private CachedFile drop(final String key) {
+    final CachedFile file = files.remove(key);
+    if (file != null) {
+      removed(file);
+    }
+    return file;
+  }
+
+  /** Updates the counters once a file was removed from the index. */
+  private void removed(final CachedFile file) {
+    size -= file.length;
+    cached_files.decrementAndGet();
+    cached_bytes.addAndGet(-file.length);
+  }
+
+  /** Deletes a file, logging failures. */
+  private static void delete(final String path) {
+    if (!new File(path).delete()) {
+      LOG.warn("Failed to delete " + path + " from the graph cache");
+    }
+  }
+
+}
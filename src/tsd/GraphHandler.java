@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -34,6 +35,7 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,13 +45,15 @@ import net.opentsdb.core.Const;
 import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryLimitExceededException;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 import net.opentsdb.graph.Plot;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.ConcurrentHistogram;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 import net.opentsdb.utils.JSON;
 
@@ -72,16 +76,25 @@ final class GraphHandler implements HttpRpc {
     = new AtomicInteger();
 
   /** Keep track of the latency of graphing requests. */
-  private static final Histogram graphlatency =
-    new Histogram(16000, (short) 2, 100);
+  private static final ConcurrentHistogram graphlatency =
+    new ConcurrentHistogram(600000, 5);
 
   /** Keep track of the latency (in ms) introduced by running Gnuplot. */
-  private static final Histogram gnuplotlatency =
-    new Histogram(16000, (short) 2, 100);
+  private static final ConcurrentHistogram gnuplotlatency =
+    new ConcurrentHistogram(600000, 5);
+
+  /** Keep track of the latency (in ms) of rendering graphs in-process. */
+  private static final ConcurrentHistogram java2dlatency =
+    new ConcurrentHistogram(600000, 5);
 
   /** Executor to run Gnuplot in separate bounded thread pool. */
   private final ThreadPoolExecutor gnuplot;
 
+  /** Index of the files in the cache directory, null if it's not managed. */
+  private GraphCache cache;
+  /** Whether or not we looked at the config to create the cache. */
+  private boolean cache_initialized;
+
   /**
    * Constructor.
    */
@@ -129,6 +142,9 @@ final class GraphHandler implements HttpRpc {
   private void doGraph(final TSDB tsdb, final HttpQuery query)
     throws IOException {
     final String basepath = getGnuplotBasePath(tsdb, query);
+    final GraphCache cache = getCache(tsdb);
+    final boolean java2d = "java2d".equals(
+        tsdb.getConfig().getString("tsd.http.graph.renderer"));
     long start_time = DateTime.parseDateTimeString(
       query.getRequiredQueryStringParam("start"),
       query.getQueryStringParam("tz"));
@@ -154,7 +170,8 @@ final class GraphHandler implements HttpRpc {
       end_time /= 1000;
     }
     final int max_age = computeMaxAge(query, start_time, end_time, now);
-    if (!nocache && isDiskCacheHit(query, end_time, max_age, basepath)) {
+    if (!nocache && isDiskCacheHit(query, end_time, max_age, basepath,
+                                   cache)) {
       return;
     }
     Query[] tsdbqueries;
@@ -201,6 +218,9 @@ final class GraphHandler implements HttpRpc {
           aggregated_tags[i].addAll(datapoints.getAggregatedTags());
           npoints += datapoints.aggregatedSize();
         }
+      } catch (QueryLimitExceededException e) {
+        throw new BadRequestException(
+            HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getMessage());
       } catch (RuntimeException e) {
         logInfo(query, "Query failed (stack trace coming): "
                 + tsdbqueries[i]);
@@ -211,13 +231,14 @@ final class GraphHandler implements HttpRpc {
     tsdbqueries = null;  // free()
 
     if (query.hasQueryStringParam("ascii")) {
-      respondAsciiQuery(query, max_age, basepath, plot);
+      respondAsciiQuery(query, max_age, basepath, plot, cache);
       return;
     }
 
     try {
       gnuplot.execute(new RunGnuplot(query, max_age, plot, basepath,
-                                     aggregated_tags, npoints));
+                                     aggregated_tags, npoints, cache,
+                                     java2d));
     } catch (RejectedExecutionException e) {
       query.internalError(new Exception("Too many requests pending,"
                                         + " please try again later", e));
@@ -269,13 +290,17 @@ final class GraphHandler implements HttpRpc {
     private final String basepath;
     private final HashSet<String>[] aggregated_tags;
     private final int npoints;
+    private final GraphCache cache;
+    private final boolean java2d;
 
     public RunGnuplot(final HttpQuery query,
                       final int max_age,
                       final Plot plot,
                       final String basepath,
                       final HashSet<String>[] aggregated_tags,
-                      final int npoints) {
+                      final int npoints,
+                      final GraphCache cache,
+                      final boolean java2d) {
       this.query = query;
       this.max_age = max_age;
       this.plot = plot;
@@ -285,6 +310,8 @@ final class GraphHandler implements HttpRpc {
         this.basepath = basepath;
       this.aggregated_tags = aggregated_tags;
       this.npoints = npoints;
+      this.cache = cache;
+      this.java2d = java2d;
     }
 
     public void run() {
@@ -302,7 +329,8 @@ final class GraphHandler implements HttpRpc {
     }
 
     private void execute() throws IOException {
-      final int nplotted = runGnuplot(query, basepath, plot);
+      final int nplotted = java2d ? renderPng(query, basepath, plot)
+        : runGnuplot(query, basepath, plot);
       if (query.hasQueryStringParam("json")) {
         final HashMap<String, Object> results = new HashMap<String, Object>();
         results.put("plotted", nplotted);
@@ -323,7 +351,10 @@ final class GraphHandler implements HttpRpc {
         query.internalError(new Exception("Should never be here!"));
       }
 
-      // TODO(tsuna): Expire old files from the on-disk cache.
+      if (cache != null) {
+        cacheGnuplotFiles(cache, basepath, plot);
+        cache.add(basepath + ".json");
+      }
       graphlatency.add(query.processingTimeMillis());
       graphs_generated.incrementAndGet();
     }
@@ -342,8 +373,32 @@ final class GraphHandler implements HttpRpc {
   public static void collectStats(final StatsCollector collector) {
     collector.record("http.latency", graphlatency, "type=graph");
     collector.record("http.latency", gnuplotlatency, "type=gnuplot");
+    collector.record("http.latency", java2dlatency, "type=java2d");
     collector.record("http.graph.requests", graphs_diskcache_hit, "cache=disk");
     collector.record("http.graph.requests", graphs_generated, "cache=miss");
+    GraphCache.collectStats(collector);
+  }
+
+  /**
+   * Returns the index of the cache directory, loading it on first use.
+   * @param tsdb The TSDB to get the configuration from.
+   * @return The cache, or {@code null} if neither
+   * {@code tsd.http.cache.max_size} nor {@code tsd.http.cache.max_age} is
+   * set, in which case the cache directory isn't managed by the TSD.
+   */
+  private synchronized GraphCache getCache(final TSDB tsdb) {
+    if (!cache_initialized) {
+      cache_initialized = true;
+      final Config config = tsdb.getConfig();
+      final long max_size =
+        config.getLong("tsd.http.cache.max_size") * 1024 * 1024;
+      final long max_age = config.getLong("tsd.http.cache.max_age") * 1000;
+      if (max_size > 0 || max_age > 0) {
+        cache = new GraphCache(config.getDirectoryName("tsd.http.cachedir"),
+                               max_size, max_age);
+      }
+    }
+    return cache;
   }
 
   /** Returns the base path to use for the Gnuplot files. */
@@ -368,6 +423,8 @@ final class GraphHandler implements HttpRpc {
    * @param max_age The maximum time (in seconds) we wanna allow clients to
    * cache the result in case of a cache hit.
    * @param basepath The base path used for the Gnuplot files.
+   * @param cache The index of the cache directory, or {@code null} to look
+   * for the files on disk.
    * @return {@code true} if this request was served from disk (in which
    * case processing can stop here), {@code false} otherwise (in which case
    * the query needs to be processed).
@@ -375,24 +432,37 @@ final class GraphHandler implements HttpRpc {
   private boolean isDiskCacheHit(final HttpQuery query,
                                  final long end_time,
                                  final int max_age,
-                                 final String basepath) throws IOException {
+                                 final String basepath,
+                                 final GraphCache cache) throws IOException {
     final String cachepath = basepath + (query.hasQueryStringParam("ascii")
                                          ? ".txt" : ".png");
-    final File cachedfile = new File(cachepath);
-    if (cachedfile.exists()) {
-      final long bytes = cachedfile.length();
+    final boolean exists;
+    final long bytes;
+    final long mtime;
+    if (cache != null) {
+      final GraphCache.CachedFile cachedfile = cache.get(cachepath);
+      exists = cachedfile != null;
+      bytes = exists ? cachedfile.length() : 0;
+      mtime = exists ? cachedfile.mtime() : 0;
+    } else {
+      final File cachedfile = new File(cachepath);
+      exists = cachedfile.exists();
+      bytes = cachedfile.length();
+      mtime = cachedfile.lastModified();
+    }
+    if (exists) {
       if (bytes < 21) {  // Minimum possible size for a PNG: 21 bytes.
                          // For .txt files, <21 bytes is almost impossible.
         logWarn(query, "Cached " + cachepath + " is too small ("
                 + bytes + " bytes) to be valid.  Ignoring it.");
         return false;
       }
-      if (staleCacheFile(query, end_time, max_age, cachedfile)) {
+      if (staleCacheFile(query, end_time, max_age, mtime, cachepath)) {
         return false;
       }
       if (query.hasQueryStringParam("json")) {
         HashMap<String, Object> map = loadCachedJson(query, end_time,
-            max_age, basepath);
+            max_age, basepath, cache);
         if (map == null) {
           map = new HashMap<String, Object>();
         }
@@ -413,7 +483,7 @@ final class GraphHandler implements HttpRpc {
     // We didn't find an image.  Do a negative cache check.  If we've seen
     // this query before but there was no result, we at least wrote the JSON.
     final HashMap<String, Object> map = loadCachedJson(query, end_time,
-        max_age, basepath);
+        max_age, basepath, cache);
     // If we don't have a JSON file it's a complete cache miss.  If we have
     // one, and it says 0 data points were plotted, it's a negative cache hit.
     if (map == null || !map.containsKey("plotted") ||
@@ -448,7 +518,27 @@ final class GraphHandler implements HttpRpc {
                                         final long end_time,
                                         final long max_age,
                                         final File cachedfile) {
-    final long mtime = cachedfile.lastModified() / 1000;
+    return staleCacheFile(query, end_time, max_age, cachedfile.lastModified(),
+                          cachedfile.getPath());
+  }
+
+  /**
+   * Returns whether or not a cache file can be used or is stale.
+   * @param query The query to serve.
+   * @param end_time The end time on the query (32-bit unsigned int, seconds).
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result in case of a cache hit.  If the file is exactly that
+   * old, it is not considered stale.
+   * @param lastmodified The mtime of the file, in milliseconds, or 0 if the
+   * file doesn't exist.
+   * @param cachedfile The path of the file (for logging purposes).
+   */
+  private static boolean staleCacheFile(final HttpQuery query,
+                                        final long end_time,
+                                        final long max_age,
+                                        final long lastmodified,
+                                        final String cachedfile) {
+    final long mtime = lastmodified / 1000;
     if (mtime <= 0) {
       return true;  // File doesn't exist, or can't be read.
     }
@@ -477,7 +567,7 @@ final class GraphHandler implements HttpRpc {
     // The cached file contains partial data and can only be re-used if it's
     // not too old.
     if (staleness > max_age) {
-      logInfo(query, "Cached file @ " + cachedfile.getPath() + " is "
+      logInfo(query, "Cached file @ " + cachedfile + " is "
               + staleness + "s stale, which is more than its limit of "
               + max_age + "s, and needs to be regenerated.");
       return true;
@@ -558,6 +648,9 @@ final class GraphHandler implements HttpRpc {
    * @param max_age The maximum time (in seconds) we wanna allow clients to
    * cache the result in case of a cache hit.
    * @param basepath The base path used for the Gnuplot files.
+   * @param cache The index of the cache directory, or {@code null} to look
+   * for the file on disk.  The parsed file is kept in the index so that it
+   * isn't read again.
    * @return {@code null} in case no file was found, or the contents of the
    * file if it was found.
    * @throws IOException If the file cannot be loaded
@@ -568,10 +661,30 @@ final class GraphHandler implements HttpRpc {
   private HashMap<String, Object> loadCachedJson(final HttpQuery query,
                                        final long end_time,
                                        final long max_age,
-                                       final String basepath)
+                                       final String basepath,
+                                       final GraphCache cache)
                                        throws JsonParseException,
                                        JsonMappingException, IOException {
     final String json_path = basepath + ".json";
+    if (cache != null) {
+      final GraphCache.CachedFile cachedfile = cache.get(json_path);
+      if (cachedfile == null || staleCacheFile(query, end_time, max_age,
+          cachedfile.mtime(), json_path)) {
+        return null;
+      }
+      HashMap<String, Object> map = cachedfile.json();
+      if (map == null) {
+        final byte[] json = readFile(query, new File(json_path), 4096);
+        if (json == null) {
+          cache.forget(json_path);
+          return null;
+        }
+        map = (HashMap<String, Object>) JSON.parseToObject(json, HashMap.class);
+        cachedfile.setJson(map);
+      }
+      // Callers add their own fields to the map, don't let them touch ours.
+      return new HashMap<String, Object>(map);
+    }
     File json_cache = new File(json_path);
     if (staleCacheFile(query, end_time, max_age, json_cache)) {
       return null;
@@ -753,6 +866,46 @@ final class GraphHandler implements HttpRpc {
     return nplotted;
   }
 
+  /**
+   * Renders the graph in-process, instead of running Gnuplot.  The image is
+   * drawn in memory and only written to disk as {@code basepath.png}, so it
+   * can be served from the disk cache.
+   * @param query The query being handled (for logging purposes).
+   * @param basepath The base path used for the graph files.
+   * @param plot The plot to render.
+   * @return The number of points plotted (0 or more).
+   * @throws IOException if the image can't be encoded.
+   */
+  static int renderPng(final HttpQuery query,
+                       final String basepath,
+                       final Plot plot) throws IOException {
+    final long start_time = System.nanoTime();
+    final ByteArrayOutputStream png = new ByteArrayOutputStream(64 * 1024);
+    final int nplotted = plot.renderPng(png);
+    java2dlatency.add((int) ((System.nanoTime() - start_time) / 1000000));
+    writeFile(query, basepath + ".png", png.toByteArray());
+    return nplotted;
+  }
+
+  /**
+   * Adds the files written by {@link #runGnuplot} to the cache.
+   * @param cache The index of the cache directory.
+   * @param basepath The base path used for the Gnuplot files.
+   * @param plot The plot the files were generated for.
+   */
+  private static void cacheGnuplotFiles(final GraphCache cache,
+                                        final String basepath,
+                                        final Plot plot) {
+    int i = 0;
+    for (final DataPoints dp : plot.getDataPoints()) {
+      cache.add(basepath + "_" + i++ + ".dat");
+    }
+    cache.add(basepath + ".gnuplot");
+    cache.add(basepath + ".out");
+    cache.add(basepath + ".err");
+    cache.add(basepath + ".png");
+  }
+
   private static void deleteFileIfEmpty(final String path) {
     final File file = new File(path);
     if (file.length() <= 0) {
@@ -770,11 +923,14 @@ final class GraphHandler implements HttpRpc {
    * cache the result in case of a cache hit.
    * @param basepath The base path used for the Gnuplot files.
    * @param plot The plot object to generate Gnuplot's input files.
+   * @param cache The index of the cache directory, or {@code null} if it
+   * isn't managed.
    */
   private static void respondAsciiQuery(final HttpQuery query,
                                         final int max_age,
                                         final String basepath,
-                                        final Plot plot) {
+                                        final Plot plot,
+                                        final GraphCache cache) {
     final String path = basepath + ".txt";
     PrintWriter asciifile;
     try {
@@ -819,6 +975,9 @@ final class GraphHandler implements HttpRpc {
     } catch (IOException e) {
       query.internalError(e);
     }
+    if (cache != null) {
+      cache.add(path);
+    }
   }
 
   /**
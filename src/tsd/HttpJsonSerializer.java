@@ -42,6 +42,7 @@ import net.opentsdb.meta.Annotation;
 import net.opentsdb.meta.TSMeta;
 import net.opentsdb.meta.UIDMeta;
 import net.opentsdb.search.SearchQuery;
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.tree.Branch;
 import net.opentsdb.tree.Tree;
 import net.opentsdb.tree.TreeRule;
@@ -497,7 +498,11 @@ class HttpJsonSerializer extends HttpSerializer {
       JsonGenerator json = JSON.getFactory().createGenerator(output);
       json.writeStartArray();
       
+      int sub_query = 0;
       for (DataPoints[] separate_dps : results) {
+        final QueryStats stats = data_query.getShowStats() ? 
+            data_query.getQueries().get(sub_query).stats() : null;
+        sub_query++;
         for (DataPoints dps : separate_dps) {
           json.writeStartObject();
           
@@ -553,7 +558,10 @@ class HttpJsonSerializer extends HttpSerializer {
             }
           }
           
-          // now the fun stuff, dump the data
+          // now the fun stuff, dump the data. Note that SpanGroups aggregate
+          // lazily so the aggregation time is part of the serialization time
+          final long serialization_start = System.nanoTime();
+          int emitted = 0;
           json.writeFieldName("dps");
           
           // default is to write a map, otherwise write arrays
@@ -566,6 +574,7 @@ class HttpJsonSerializer extends HttpSerializer {
               }
               final long timestamp = data_query.getMsResolution() ? 
                   dp.timestamp() : dp.timestamp() / 1000;
+              emitted++;
               json.writeStartArray();
               json.writeNumber(timestamp);
               if (dp.isInteger()) {
@@ -585,6 +594,7 @@ class HttpJsonSerializer extends HttpSerializer {
               }
               final long timestamp = data_query.getMsResolution() ? 
                   dp.timestamp() : dp.timestamp() / 1000;
+              emitted++;
               if (dp.isInteger()) {
                 json.writeNumberField(Long.toString(timestamp), dp.longValue());
               } else {
@@ -593,6 +603,22 @@ class HttpJsonSerializer extends HttpSerializer {
             }
             json.writeEndObject();
           }
+          
+          if (stats != null) {
+            // the scan stats are shared by all the results of a sub query,
+            // the serialization stats are for this result only
+            final long serialization_time = 
+              System.nanoTime() - serialization_start;
+            final int raw_dps = dps.aggregatedSize();
+            final Map<String, Object> map = stats.toMap();
+            map.put("serializationTime", serialization_time / 1000000.0);
+            map.put("rawDps", raw_dps);
+            map.put("dps", emitted);
+            json.writeObjectField("stats", map);
+            stats.addTime("serializationTime", serialization_time);
+            stats.addCount("rawDps", raw_dps);
+            stats.addCount("dps", emitted);
+          }
 
           // close the results for this particular query
           json.writeEndObject();
@@ -53,7 +53,7 @@ import org.jboss.netty.util.CharsetUtil;
 import net.opentsdb.core.Const;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.graph.Plot;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.ConcurrentHistogram;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.tsd.HttpSerializer;
 import net.opentsdb.utils.PluginLoader;
@@ -76,8 +76,8 @@ final class HttpQuery {
   /**
    * Keep track of the latency of HTTP requests.
    */
-  private static final Histogram httplatency =
-    new Histogram(16000, (short) 2, 100);
+  private static final ConcurrentHistogram httplatency =
+    new ConcurrentHistogram(600000, 5);
 
   /** Maps Content-Type to a serializer */
   private static HashMap<String, Constructor<? extends HttpSerializer>>
@@ -124,6 +124,12 @@ final class HttpQuery {
   /** Whether or not to show stack traces in the output */
   private final boolean show_stack_trace;
 
+  /** Stats of the route this query was sent to, if known */
+  private RpcStats rpc_stats;
+
+  /** Number of bytes in the body of the response */
+  private long bytes_sent;
+
   /**
    * Constructor.
    * @param request The request in this HTTP query.
@@ -194,6 +200,18 @@ final class HttpQuery {
     return deferred;
   }
 
+  /**
+   * Sets the stats of the route this query is for and records the start of
+   * the query in them.  The end of the query is recorded once the response is
+   * sent.
+   * @param rpc_stats The stats of the route
+   * @since 2.1
+   */
+  void setRpcStats(final RpcStats rpc_stats) {
+    this.rpc_stats = rpc_stats;
+    rpc_stats.start(request.getContent().readableBytes());
+  }
+
   /** Returns how many ms have elapsed since this query was created. */
   public int processingTimeMillis() {
     return (int) ((System.nanoTime() - start_time) / 1000000);
@@ -633,11 +651,11 @@ final class HttpQuery {
       buf.append("{\"err\":\"");
       HttpQuery.escapeJson(exception.getMessage(), buf);
       buf.append("\"}");
-      sendReply(HttpResponseStatus.BAD_REQUEST, buf);
+      sendReply(exception.getStatus(), buf);
     } else if (hasQueryStringParam("png")) {
-      sendAsPNG(HttpResponseStatus.BAD_REQUEST, exception.getMessage(), 3600);
+      sendAsPNG(exception.getStatus(), exception.getMessage(), 3600);
     } else {
-      sendReply(HttpResponseStatus.BAD_REQUEST,
+      sendReply(exception.getStatus(),
                 makePage("Bad Request", "Looks like it's your fault this time",
                          "<blockquote>"
                          + "<h1>Bad Request</h1>"
@@ -944,6 +962,7 @@ final class HttpQuery {
       HttpHeaders.setContentLength(response, length);
       chan.write(response);
     }
+    bytes_sent = length;
     final DefaultFileRegion region = new DefaultFileRegion(file.getChannel(),
                                                            0, length);
     final ChannelFuture future = chan.write(region);
@@ -964,6 +983,9 @@ final class HttpQuery {
   private void done() {
     final int processing_time = processingTimeMillis();
     httplatency.add(processing_time);
+    if (rpc_stats != null) {
+      rpc_stats.done(processing_time, bytes_sent);
+    }
     logInfo("HTTP " + request.getUri() + " done in " + processing_time + "ms");
     deferred.callback(null);
   }
@@ -988,6 +1010,7 @@ final class HttpQuery {
     // already set it
     response.setStatus(status);
     response.setContent(buf);
+    bytes_sent = buf.readableBytes();
     final boolean keepalive = HttpHeaders.isKeepAlive(request);
     if (keepalive) {
       HttpHeaders.setContentLength(response, buf.readableBytes());
@@ -0,0 +1,144 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.ConcurrentHistogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A bounded pool of threads to run expensive HTTP RPCs on, so that a heavy
+ * query doesn't stall all the other connections served by the same Netty
+ * I/O thread.
+ * <p>
+ * The pool has a fixed number of threads and a fixed size queue.  When both
+ * are full, {@link #execute} refuses the task so the caller can tell the
+ * client to come back later instead of piling up work.
+ * @since 2.1
+ */
+final class QueryExecutor {
+
+  /** Number of tasks run. */
+  private static final AtomicLong executed = new AtomicLong();
+  /** Number of tasks refused because the pool was saturated. */
+  private static final AtomicLong rejected = new AtomicLong();
+  /** Number of tasks waiting in a queue. */
+  private static final AtomicInteger queued = new AtomicInteger();
+  /** Number of tasks running. */
+  private static final AtomicInteger running = new AtomicInteger();
+  /** How long tasks waited in the queue, in milliseconds. */
+  private static final ConcurrentHistogram waitlatency =
+    new ConcurrentHistogram(600000, 5);
+
+  /** The threads. */
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Constructor.
+   * @param threads The number of threads to run tasks on
+   * @param queue_size The number of tasks that can wait for a thread
+   * @throws IllegalArgumentException if either argument is not greater
+   * than 0
+   */
+  QueryExecutor(final int threads, final int queue_size) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid number of threads: "
+          + threads);
+    }
+    if (queue_size < 1) {
+      throw new IllegalArgumentException("Invalid queue size: " + queue_size);
+    }
+    executor = new ThreadPoolExecutor(threads, threads, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue_size),
+        new QueryThreadFactory());
+  }
+
+  /**
+   * Schedules a task to run on the pool.
+   * @param task The task to run
+   * @return true if the task was scheduled, false if the pool is saturated
+   */
+  boolean execute(final Runnable task) {
+    queued.incrementAndGet();
+    try {
+      executor.execute(new QueuedTask(task));
+      return true;
+    } catch (RejectedExecutionException e) {
+      queued.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+  }
+
+  /** Stops the threads once the tasks already scheduled have run. */
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Collects the stats of the query executors.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.query.executor.executed", executed);
+    collector.record("http.query.executor.rejected", rejected);
+    collector.record("http.query.executor.queued", queued);
+    collector.record("http.query.executor.running", running);
+    collector.record("http.query.executor.waitlatency", waitlatency,
+        "type=all");
+  }
+
+  /** Wraps a task to keep track of how long it waited in the queue. */
+  private static final class QueuedTask implements Runnable {
+    private final Runnable task;
+    private final long queued_at = System.nanoTime();
+
+    QueuedTask(final Runnable task) {
+      this.task = task;
+    }
+
+    public void run() {
+      queued.decrementAndGet();
+      final int waited =
+        (int) ((System.nanoTime() - queued_at) / 1000000);
+      waitlatency.add(waited);
+      running.incrementAndGet();
+      try {
+        task.run();
+      } finally {
+        running.decrementAndGet();
+        executed.incrementAndGet();
+      }
+    }
+  }
+
+  /** Creates daemon threads so that they don't prevent the JVM from exiting. */
+  private static final class QueryThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "QueryExecutor #"
+          + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
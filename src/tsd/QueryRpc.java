@@ -24,10 +24,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.stumbleupon.async.Callback;
-import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryLimitExceededException;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
@@ -90,16 +91,13 @@ final class QueryRpc implements HttpRpc {
           e.getMessage(), data_query.toString(), e);
     }
     
-    Query[] tsdbqueries = data_query.buildQueries(tsdb);
+    // when slow queries are logged, we need the profile of every query
+    final int slow_threshold = 
+      tsdb.getConfig().getInt("tsd.http.query.slow_threshold");
+    Query[] tsdbqueries = data_query.buildQueries(tsdb, slow_threshold > 0);
     final int nqueries = tsdbqueries.length;
     final ArrayList<DataPoints[]> results = 
       new ArrayList<DataPoints[]>(nqueries);
-    final ArrayList<Deferred<DataPoints[]>> deferreds =
-      new ArrayList<Deferred<DataPoints[]>>(nqueries);
-    
-    for (int i = 0; i < nqueries; i++) {
-      deferreds.add(tsdbqueries[i].runAsync());
-    }
 
     /**
     * After all of the queries have run, we get the results in the order given
@@ -129,9 +127,22 @@ final class QueryRpc implements HttpRpc {
     }
     
     try {
-      Deferred.groupInOrder(deferreds).addCallback(new QueriesCB())
+      // sub queries on the same metric and time range share a single scan
+      tsdb.runQueries(tsdbqueries).addCallback(new QueriesCB())
         .joinUninterruptibly();
     } catch (Exception e) {
+      Throwable ex = e;
+      while (ex.getClass().equals(DeferredGroupException.class)) {
+        if (ex.getCause() == null) {
+          break;
+        }
+        ex = ex.getCause();
+      }
+      if (ex instanceof QueryLimitExceededException) {
+        throw new BadRequestException(
+            HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, ex.getMessage(),
+            data_query.toString(), ex);
+      }
       throw new RuntimeException("Shouldn't be here", e);
     }
     
@@ -146,6 +157,30 @@ final class QueryRpc implements HttpRpc {
           "Requested API version not implemented", "Version " + 
           query.apiVersion() + " is not implemented");
     }
+    
+    if (slow_threshold > 0) {
+      final int processing_time = query.processingTimeMillis();
+      if (processing_time >= slow_threshold) {
+        logSlowQuery(data_query, processing_time);
+      }
+    }
+  }
+
+  /**
+   * Logs a query that took longer than the configured threshold, along with
+   * the execution profile of each of its sub queries.
+   * @param data_query The query that was slow
+   * @param processing_time How long it took, in milliseconds
+   */
+  private static void logSlowQuery(final TSQuery data_query, 
+      final int processing_time) {
+    final StringBuilder buf = new StringBuilder();
+    buf.append("Slow query took ").append(processing_time).append("ms: ")
+      .append(data_query);
+    for (final TSSubQuery sub : data_query.getQueries()) {
+      buf.append("\n  ").append(sub).append(": ").append(sub.stats());
+    }
+    LOG.warn(buf.toString());
   }
 
   /**
@@ -177,6 +212,10 @@ final class QueryRpc implements HttpRpc {
       data_query.setShowTSUIDs(true);
     }
     
+    if (query.hasQueryStringParam("show_stats")) {
+      data_query.setShowStats(true);
+    }
+    
     if (query.hasQueryStringParam("ms")) {
       data_query.setMsResolution(true);
     }
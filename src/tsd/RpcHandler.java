@@ -60,6 +60,12 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
    * all CORS headers will be ignored. */
   private final HashSet<String> cors_domains;
 
+  /** Routes of the HTTP RPCs to run on the query executor, if enabled. */
+  private static final HashSet<String> EXECUTOR_ROUTES = 
+    new HashSet<String>(Arrays.asList("q", "api/query"));
+  /** Pool of threads to run expensive HTTP RPCs on, null if disabled. */
+  private final QueryExecutor query_executor;
+
   /** The TSDB to use. */
   private final TSDB tsdb;
 
@@ -91,6 +97,16 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
       }
     }
     
+    final int executor_threads = 
+      tsdb.getConfig().getInt("tsd.http.query.executor.threads");
+    if (executor_threads > 0) {
+      query_executor = new QueryExecutor(executor_threads, 
+          tsdb.getConfig().getInt("tsd.http.query.executor.queue_size"));
+      LOG.info("Running queries on " + executor_threads + " threads");
+    } else {
+      query_executor = null;
+    }
+    
     telnet_commands = new HashMap<String, TelnetRpc>(7);
     http_commands = new HashMap<String, HttpRpc>(11);
     {
@@ -188,7 +204,34 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
       rpc = unknown_cmd;
     }
     telnet_rpcs_received.incrementAndGet();
-    rpc.execute(tsdb, chan, command);
+    final RpcStats stats = RpcStats.get("telnet", 
+        rpc == unknown_cmd ? "unknown" : command[0]);
+    long request_bytes = command.length;  // Separators and newline.
+    for (final String word : command) {
+      request_bytes += word.length();
+    }
+    stats.start(request_bytes);
+    final long start_time = System.nanoTime();
+    
+    /** Records the completion of the RPC, whether it succeeded or not. */
+    final class TelnetDoneCB implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        stats.done((int) ((System.nanoTime() - start_time) / 1000000), 0);
+        return arg;
+      }
+    }
+    final Deferred<Object> d;
+    try {
+      d = rpc.execute(tsdb, chan, command);
+    } catch (RuntimeException e) {
+      new TelnetDoneCB().call(null);
+      throw e;
+    }
+    if (d == null) {
+      new TelnetDoneCB().call(null);
+    } else {
+      d.addBoth(new TelnetDoneCB());
+    }
   }
 
   /**
@@ -210,6 +253,8 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     try {
       try {        
         final String route = query.getQueryBaseRoute();
+        query.setRpcStats(RpcStats.get("http", 
+            http_commands.containsKey(route) ? route : "unknown"));
         query.setSerializer();
         
         final String domain = req.headers().get("Origin");
@@ -251,7 +296,15 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
         }
         
         final HttpRpc rpc = http_commands.get(route);
-        if (rpc != null) {
+        if (rpc != null && query_executor != null 
+            && EXECUTOR_ROUTES.contains(route)) {
+          if (!query_executor.execute(new HttpRpcTask(rpc, query))) {
+            throw new BadRequestException(
+                HttpResponseStatus.SERVICE_UNAVAILABLE, 
+                "Too many queries in progress", 
+                "The TSD is busy running other queries, try again later");
+          }
+        } else if (rpc != null) {
           rpc.execute(tsdb, query);
         } else {
           query.notFound();
@@ -265,6 +318,30 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     }
   }
 
+  /** Runs an HTTP RPC on the query executor. */
+  private final class HttpRpcTask implements Runnable {
+    private final HttpRpc rpc;
+    private final HttpQuery query;
+
+    HttpRpcTask(final HttpRpc rpc, final HttpQuery query) {
+      this.rpc = rpc;
+      this.query = query;
+    }
+
+    public void run() {
+      try {
+        try {
+          rpc.execute(tsdb, query);
+        } catch (BadRequestException ex) {
+          query.badRequest(ex);
+        }
+      } catch (Exception ex) {
+        query.internalError(ex);
+        exceptions_caught.incrementAndGet();
+      }
+    }
+  }
+
   /**
    * Collects the stats and metrics tracked by this instance.
    * @param collector The collector to use.
@@ -275,7 +352,10 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     collector.record("rpc.exceptions", exceptions_caught);
     HttpQuery.collectStats(collector);
     GraphHandler.collectStats(collector);
+    TreeRpc.collectStats(collector);
     PutDataPointRpc.collectStats(collector);
+    QueryExecutor.collectStats(collector);
+    RpcStats.collectStats(collector);
   }
 
   // ---------------------------- //
@@ -300,6 +380,9 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
     private Deferred<Object> doShutdown(final TSDB tsdb, final Channel chan) {
       ((GraphHandler) http_commands.get("q")).shutdown();
+      if (query_executor != null) {
+        query_executor.shutdown();
+      }
       ConnectionManager.closeAllConnections();
       // Netty gets stuck in an infinite loop if we shut it down from within a
       // NIO thread.  So do this from a newly created thread.
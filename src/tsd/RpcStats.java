@@ -0,0 +1,131 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.ConcurrentHistogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Keeps track of the latency, traffic and concurrency of the RPCs served on
+ * a given route, e.g. the {@code put} telnet command or {@code api/query}.
+ * <p>
+ * Instances are shared by all the RPCs of a route and are thread-safe.
+ * @since 2.1
+ */
+final class RpcStats {
+
+  /** All the routes seen so far, keyed by type and route. */
+  private static final ConcurrentHashMap<String, RpcStats> routes =
+    new ConcurrentHashMap<String, RpcStats>();
+
+  /** Either "telnet" or "http". */
+  private final String type;
+  /** The route, as used in a tag value. */
+  private final String route;
+  /** End-to-end latency of the RPCs, in milliseconds. */
+  private final ConcurrentHistogram latency =
+    new ConcurrentHistogram(600000, 5);
+  /** Number of RPCs received. */
+  private final AtomicLong requests = new AtomicLong();
+  /** Number of bytes received in requests. */
+  private final AtomicLong bytes_in = new AtomicLong();
+  /** Number of bytes sent in responses. */
+  private final AtomicLong bytes_out = new AtomicLong();
+  /** Number of RPCs being served. */
+  private final AtomicInteger in_flight = new AtomicInteger();
+
+  private RpcStats(final String type, final String route) {
+    this.type = type;
+    this.route = route;
+  }
+
+  /**
+   * Returns the stats of the given route, creating them if needed.
+   * @param type Either "telnet" or "http"
+   * @param route The telnet command or base HTTP route.  The callers must
+   * only pass known routes, so that clients can't create an unbounded number
+   * of them.
+   * @return The stats of that route
+   */
+  static RpcStats get(final String type, final String route) {
+    final String key = type + ' ' + route;
+    RpcStats stats = routes.get(key);
+    if (stats == null) {
+      // The empty route is the home page, which makes for an invalid tag.
+      stats = new RpcStats(type, route.isEmpty() ? "root" : route);
+      final RpcStats existing = routes.putIfAbsent(key, stats);
+      if (existing != null) {
+        stats = existing;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Records the start of an RPC.
+   * @param request_bytes The size of the request
+   */
+  void start(final long request_bytes) {
+    requests.incrementAndGet();
+    bytes_in.addAndGet(request_bytes);
+    in_flight.incrementAndGet();
+  }
+
+  /**
+   * Records the completion of an RPC started with {@link #start}.
+   * @param latency_ms How long it took to serve the RPC
+   * @param response_bytes The size of the response
+   */
+  void done(final int latency_ms, final long response_bytes) {
+    in_flight.decrementAndGet();
+    bytes_out.addAndGet(response_bytes);
+    latency.add(latency_ms);
+  }
+
+  /** @return the number of RPCs being served */
+  int inFlight() {
+    return in_flight.get();
+  }
+
+  /** @return the number of RPCs received */
+  long requests() {
+    return requests.get();
+  }
+
+  /**
+   * Collects the stats of all the routes.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    for (final Map.Entry<String, RpcStats> entry : routes.entrySet()) {
+      final RpcStats stats = entry.getValue();
+      collector.addExtraTag("type", stats.type);
+      try {
+        final String tag = "route=" + stats.route;
+        collector.record("rpc.route.requests", stats.requests, tag);
+        collector.record("rpc.route.inflight", stats.in_flight, tag);
+        collector.record("rpc.route.bytes_in", stats.bytes_in, tag);
+        collector.record("rpc.route.bytes_out", stats.bytes_out, tag);
+        collector.record("rpc.route.latency", stats.latency, tag);
+      } finally {
+        collector.clearExtraTag("type");
+      }
+    }
+  }
+
+}
@@ -0,0 +1,233 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.tree.Branch;
+
+/**
+ * Caches the branches fetched for {@code /api/tree/branch}, with their leaves
+ * and resolved UID names, so that browsing a tree doesn't scan the tree table
+ * on every click.
+ * <p>
+ * When a branch is fetched from storage, its child branches are fetched in
+ * the background as well, since they're likely the next ones requested.
+ * Entries expire after a while, as new time series keep being added to the
+ * trees, and the whole cache is cleared when a tree or its rules are edited
+ * through this TSD.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.1
+ */
+final class TreeBranchCache {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(TreeBranchCache.class);
+
+  /** Maximum number of child branches to prefetch per branch. */
+  private static final int MAX_PREFETCH = 64;
+
+  /** Number of branches served from the cache. */
+  private static final AtomicLong hits = new AtomicLong();
+  /** Number of branches fetched from storage for a request. */
+  private static final AtomicLong misses = new AtomicLong();
+  /** Number of child branches fetched ahead of time. */
+  private static final AtomicLong prefetches = new AtomicLong();
+
+  /** The TSDB to use for storage access. */
+  private final TSDB tsdb;
+
+  /** Maximum number of branches to cache. */
+  private final int max_size;
+
+  /** How long to cache branches for, in milliseconds. */
+  private final long ttl;
+
+  /** Branch IDs to their cached branch, in access order. */
+  private final LinkedHashMap<String, Entry> branches =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to use for storage access.
+   * @param max_size Maximum number of branches to cache.
+   * @param ttl How long to cache branches for, in milliseconds.
+   * @throws IllegalArgumentException if either number is not greater
+   * than 0.
+   */
+  TreeBranchCache(final TSDB tsdb, final int max_size, final long ttl) {
+    if (max_size < 1) {
+      throw new IllegalArgumentException("Invalid max size: " + max_size);
+    }
+    if (ttl < 1) {
+      throw new IllegalArgumentException("Invalid TTL: " + ttl);
+    }
+    this.tsdb = tsdb;
+    this.max_size = max_size;
+    this.ttl = ttl;
+  }
+
+  /**
+   * Returns the branch from the cache or fetches it from storage, with its
+   * leaves and their UID names.  Fetching from storage also prefetches the
+   * child branches.
+   * @param branch_id The ID of the branch.
+   * @return A deferred with the branch, or null if it doesn't exist.
+   */
+  Deferred<Branch> fetchBranch(final byte[] branch_id) {
+    final String key = Branch.idToString(branch_id);
+    final Branch cached = get(key);
+    if (cached != null) {
+      hits.incrementAndGet();
+      return Deferred.fromResult(cached);
+    }
+    misses.incrementAndGet();
+    return Branch.fetchBranch(tsdb, branch_id, true)
+      .addCallback(new CacheCB(key, true));
+  }
+
+  /** Clears the cache, e.g. when a tree or its rules changed. */
+  synchronized void clear() {
+    branches.clear();
+  }
+
+  /** @return the number of branches cached */
+  synchronized int size() {
+    return branches.size();
+  }
+
+  /**
+   * Collects the stats of the branch cache.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.tree.branch_cache.lookups", hits, "kind=hit");
+    collector.record("http.tree.branch_cache.lookups", misses, "kind=miss");
+    collector.record("http.tree.branch_cache.prefetches", prefetches);
+  }
+
+  /** @return the cached branch if it's still fresh, null otherwise */
+  private synchronized Branch get(final String key) {
+    final Entry entry = branches.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - entry.fetched > ttl) {
+      branches.remove(key);
+      return null;
+    }
+    return entry.branch;
+  }
+
+  /** Caches a branch, evicting the least recently used ones if needed. */
+  private synchronized void put(final String key, final Branch branch) {
+    branches.put(key, new Entry(branch));
+    final Iterator<Map.Entry<String, Entry>> it =
+      branches.entrySet().iterator();
+    while (branches.size() > max_size) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  /** Fetches the child branches that aren't cached yet. */
+  private void prefetchChildren(final Branch branch) {
+    if (branch.getBranches() == null) {
+      return;
+    }
+    int count = 0;
+    for (final Branch child : branch.getBranches()) {
+      if (count++ >= MAX_PREFETCH) {
+        break;
+      }
+      final byte[] child_id;
+      try {
+        child_id = child.compileBranchId();
+      } catch (IllegalArgumentException e) {
+        LOG.debug("Skipping prefetch of invalid child branch " + child, e);
+        continue;
+      }
+      final String key = Branch.idToString(child_id);
+      if (get(key) != null) {
+        continue;
+      }
+      prefetches.incrementAndGet();
+      Branch.fetchBranch(tsdb, child_id, true)
+        .addCallback(new CacheCB(key, false))
+        .addErrback(new PrefetchErrCB(key));
+    }
+  }
+
+  /** Caches a branch fetched from storage. */
+  private final class CacheCB implements Callback<Branch, Branch> {
+    private final String key;
+    private final boolean prefetch;
+
+    CacheCB(final String key, final boolean prefetch) {
+      this.key = key;
+      this.prefetch = prefetch;
+    }
+
+    public Branch call(final Branch branch) {
+      if (branch != null) {
+        put(key, branch);
+        if (prefetch) {
+          prefetchChildren(branch);
+        }
+      }
+      return branch;
+    }
+
+    public String toString() {
+      return "cache branch " + key;
+    }
+  }
+
+  /** Logs prefetch failures, nobody is waiting on them. */
+  private static final class PrefetchErrCB
+    implements Callback<Object, Exception> {
+    private final String key;
+
+    PrefetchErrCB(final String key) {
+      this.key = key;
+    }
+
+    public Object call(final Exception e) {
+      LOG.warn("Failed to prefetch branch " + key, e);
+      return null;
+    }
+  }
+
+  /** A cached branch. */
+  private static final class Entry {
+    final Branch branch;
+    final long fetched = System.currentTimeMillis();
+
+    Entry(final Branch branch) {
+      this.branch = branch;
+    }
+  }
+
+}
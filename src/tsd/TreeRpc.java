@@ -28,6 +28,7 @@ import com.stumbleupon.async.DeferredGroupException;
 
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.TSMeta;
+import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.tree.Branch;
 import net.opentsdb.tree.Tree;
 import net.opentsdb.tree.TreeBuilder;
@@ -44,6 +45,12 @@ final class TreeRpc implements HttpRpc {
   /** Type reference for common string/string maps */
   private static TypeReference<HashMap<String, String>> TR_HASH_MAP = 
     new TypeReference<HashMap<String, String>>() {};
+  
+  /** Cache of the branches browsed, null if disabled */
+  private TreeBranchCache branch_cache;
+  
+  /** Whether or not we've looked at the branch cache settings yet */
+  private boolean branch_cache_initialized;
     
   /**
    * Routes the request to the proper handler
@@ -56,6 +63,13 @@ final class TreeRpc implements HttpRpc {
     final String[] uri = query.explodeAPIPath();
     final String endpoint = uri.length > 1 ? uri[1] : ""; 
     
+    // edits to trees or rules change what the branches look like
+    final TreeBranchCache cache = getBranchCache(tsdb);
+    if (cache != null && query.getAPIMethod() != HttpMethod.GET && 
+        (endpoint.isEmpty() || endpoint.toLowerCase().startsWith("rule"))) {
+      cache.clear();
+    }
+    
     try {
       if (endpoint.isEmpty()) {
         handleTree(tsdb, query);
@@ -233,8 +247,9 @@ final class TreeRpc implements HttpRpc {
       }
       
       // fetch it
-      final Branch branch = Branch.fetchBranch(tsdb, branch_id, true)
-        .joinUninterruptibly();
+      final TreeBranchCache cache = getBranchCache(tsdb);
+      final Branch branch = (cache != null ? cache.fetchBranch(branch_id) 
+          : Branch.fetchBranch(tsdb, branch_id, true)).joinUninterruptibly();
       if (branch == null) {
         throw new BadRequestException(HttpResponseStatus.NOT_FOUND, 
             "Unable to locate branch '" + Branch.idToString(branch_id) + 
@@ -251,6 +266,35 @@ final class TreeRpc implements HttpRpc {
     }
   }
   
+  /**
+   * Returns the branch cache, creating it the first time if enabled with
+   * {@code tsd.http.tree.branch_cache.max_size} and 
+   * {@code tsd.http.tree.branch_cache.ttl}
+   * @param tsdb The TSDB to which we belong
+   * @return The cache or null if disabled
+   */
+  private synchronized TreeBranchCache getBranchCache(final TSDB tsdb) {
+    if (!branch_cache_initialized) {
+      final int max_size = 
+        tsdb.getConfig().getInt("tsd.http.tree.branch_cache.max_size");
+      final long ttl = 
+        tsdb.getConfig().getLong("tsd.http.tree.branch_cache.ttl");
+      if (max_size > 0 && ttl > 0) {
+        branch_cache = new TreeBranchCache(tsdb, max_size, ttl * 1000);
+      }
+      branch_cache_initialized = true;
+    }
+    return branch_cache;
+  }
+  
+  /**
+   * Collects the stats of the branch cache
+   * @param collector The collector to use
+   */
+  static void collectStats(final StatsCollector collector) {
+    TreeBranchCache.collectStats(collector);
+  }
+  
   /**
    * Handles the CRUD calls for a single rule, enabling adding, editing or 
    * deleting the rule
@@ -0,0 +1,313 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-heap {@link UniqueIdCache} holding at most a given number of mappings
+ * in each direction.
+ * <p>
+ * Mappings are evicted following the W-TinyLFU policy: new mappings enter a
+ * small LRU window, and when they leave it they're only admitted into the
+ * main segmented LRU if they have been requested more frequently than the
+ * mapping that would be evicted to make room for them.  Frequencies are
+ * estimated with a count-min sketch that is periodically aged.  This keeps
+ * the UIDs in use by the bulk of the writes cached, even when a burst of
+ * one-off names goes through.
+ * <p>
+ * Lookups and updates in each direction are serialized.
+ * @since 2.1
+ */
+public final class BoundedUniqueIdCache implements UniqueIdCache {
+
+  /** Charset used to convert IDs to Strings. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Forward mappings (name to ID). */
+  private final TinyLfuMap<String, byte[]> name_cache;
+  /** Backward mappings (ID to name).
+   * The ID in the key is a byte[] converted to a String to be Comparable. */
+  private final TinyLfuMap<String, String> id_cache;
+
+  /**
+   * Constructor.
+   * @param capacity The maximum number of mappings to keep in each direction.
+   * @throws IllegalArgumentException if the capacity is not greater than 0.
+   */
+  public BoundedUniqueIdCache(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    name_cache = new TinyLfuMap<String, byte[]>(capacity);
+    id_cache = new TinyLfuMap<String, String>(capacity);
+  }
+
+  public byte[] getId(final String name) {
+    final byte[] id = name_cache.get(name);
+    return id == null ? null : Arrays.copyOf(id, id.length);
+  }
+
+  public String getName(final byte[] id) {
+    return id_cache.get(new String(id, CHARSET));
+  }
+
+  public byte[] addId(final String name, final byte[] id) {
+    final byte[] found = name_cache.putIfAbsent(name,
+        Arrays.copyOf(id, id.length));
+    return found == null ? null : Arrays.copyOf(found, found.length);
+  }
+
+  public String addName(final byte[] id, final String name) {
+    return id_cache.putIfAbsent(new String(id, CHARSET), name);
+  }
+
+  public void replaceName(final byte[] id, final String name) {
+    id_cache.put(new String(id, CHARSET), name);
+  }
+
+  public void removeId(final String name) {
+    name_cache.remove(name);
+  }
+
+  public int size() {
+    return name_cache.size() + id_cache.size();
+  }
+
+  public void clear() {
+    name_cache.clear();
+    id_cache.clear();
+  }
+
+  public long evictions() {
+    return name_cache.evictions() + id_cache.evictions();
+  }
+
+  public void visitIds(final IdVisitor visitor) {
+    for (final Map.Entry<String, byte[]> entry : name_cache.entries()) {
+      visitor.visit(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * A bounded map evicting entries following the W-TinyLFU policy.
+   * All methods are synchronized.
+   */
+  static final class TinyLfuMap<K, V> {
+    /** Admission window, in LRU order. */
+    private final LinkedHashMap<K, V> window;
+    /** Main segment for entries accessed once since they were admitted. */
+    private final LinkedHashMap<K, V> probation;
+    /** Main segment for entries accessed more than once. */
+    private final LinkedHashMap<K, V> protected_;
+    private final int window_capacity;
+    private final int main_capacity;
+    private final int protected_capacity;
+    private final FrequencySketch sketch;
+    private long evictions;
+
+    TinyLfuMap(final int capacity) {
+      window_capacity = Math.max(1, capacity / 100);
+      main_capacity = Math.max(1, capacity - window_capacity);
+      protected_capacity = Math.max(1, main_capacity * 4 / 5);
+      window = new LinkedHashMap<K, V>(16, 0.75f, true);
+      probation = new LinkedHashMap<K, V>(16, 0.75f, true);
+      protected_ = new LinkedHashMap<K, V>(16, 0.75f, true);
+      sketch = new FrequencySketch(capacity);
+    }
+
+    synchronized V get(final K key) {
+      sketch.increment(key.hashCode());
+      V value = window.get(key);
+      if (value != null) {
+        return value;
+      }
+      value = protected_.get(key);
+      if (value != null) {
+        return value;
+      }
+      value = probation.remove(key);
+      if (value != null) {
+        protected_.put(key, value);
+        if (protected_.size() > protected_capacity) {
+          final Map.Entry<K, V> demoted = eldest(protected_);
+          protected_.remove(demoted.getKey());
+          probation.put(demoted.getKey(), demoted.getValue());
+        }
+      }
+      return value;
+    }
+
+    synchronized V putIfAbsent(final K key, final V value) {
+      final V found = peek(key);
+      if (found != null) {
+        return found;
+      }
+      sketch.increment(key.hashCode());
+      window.put(key, value);
+      if (window.size() > window_capacity) {
+        admit(eldest(window));
+      }
+      return null;
+    }
+
+    synchronized void put(final K key, final V value) {
+      if (window.containsKey(key)) {
+        window.put(key, value);
+      } else if (probation.containsKey(key)) {
+        probation.put(key, value);
+      } else if (protected_.containsKey(key)) {
+        protected_.put(key, value);
+      } else {
+        putIfAbsent(key, value);
+      }
+    }
+
+    synchronized void remove(final K key) {
+      if (window.remove(key) == null && probation.remove(key) == null) {
+        protected_.remove(key);
+      }
+    }
+
+    synchronized int size() {
+      return window.size() + probation.size() + protected_.size();
+    }
+
+    synchronized void clear() {
+      window.clear();
+      probation.clear();
+      protected_.clear();
+    }
+
+    synchronized long evictions() {
+      return evictions;
+    }
+
+    /** @return a copy of all the entries of the map */
+    synchronized ArrayList<Map.Entry<K, V>> entries() {
+      final ArrayList<Map.Entry<K, V>> entries =
+        new ArrayList<Map.Entry<K, V>>(size());
+      entries.addAll(window.entrySet());
+      entries.addAll(probation.entrySet());
+      entries.addAll(protected_.entrySet());
+      return entries;
+    }
+
+    /** Looks up a key without counting it as a request in the sketch. */
+    private V peek(final K key) {
+      if (window.containsKey(key)) {
+        return window.get(key);
+      } else if (probation.containsKey(key)) {
+        return probation.get(key);
+      } else if (protected_.containsKey(key)) {
+        return protected_.get(key);
+      }
+      return null;
+    }
+
+    /**
+     * Moves the given entry from the window to the main segment, if it's
+     * accessed more frequently than the entry it would replace.
+     */
+    private void admit(final Map.Entry<K, V> candidate) {
+      window.remove(candidate.getKey());
+      if (probation.size() + protected_.size() < main_capacity) {
+        probation.put(candidate.getKey(), candidate.getValue());
+        return;
+      }
+      final Map.Entry<K, V> victim = eldest(probation.isEmpty()
+                                            ? protected_ : probation);
+      evictions++;
+      if (sketch.frequency(candidate.getKey().hashCode())
+          > sketch.frequency(victim.getKey().hashCode())) {
+        if (probation.remove(victim.getKey()) == null) {
+          protected_.remove(victim.getKey());
+        }
+        probation.put(candidate.getKey(), candidate.getValue());
+      }
+    }
+
+    private static <K, V> Map.Entry<K, V> eldest(final LinkedHashMap<K, V> map) {
+      final Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+      final Map.Entry<K, V> entry = it.next();
+      // Copy since the entry may be reused once removed from the map.
+      return new AbstractMap.SimpleImmutableEntry<K, V>(entry);
+    }
+  }
+
+  /**
+   * A count-min sketch of 4-bit counters estimating how often keys are
+   * requested.  All the counters are halved once the number of increments
+   * reaches 10 times the capacity, so old popularity fades away.
+   */
+  static final class FrequencySketch {
+    /** Number of rows, each with its own hash function. */
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {
+      0x97cb3127, 0xb1c3e6a5, 0x6b8f3ca7, 0x2f1d5c43
+    };
+    private final byte[] counters;
+    private final int mask;
+    private final int sample_size;
+    private int additions;
+
+    FrequencySketch(final int capacity) {
+      // A few counters per entry keep the error due to collisions low.
+      int width = 16;
+      while (width < capacity * 4L && width < (1 << 24)) {
+        width <<= 1;
+      }
+      counters = new byte[width * DEPTH];
+      mask = width - 1;
+      sample_size = (int) Math.min(Integer.MAX_VALUE, capacity * 10L);
+    }
+
+    void increment(final int hash) {
+      boolean added = false;
+      for (int i = 0; i < DEPTH; i++) {
+        final int index = index(hash, i);
+        if (counters[index] < 15) {
+          counters[index]++;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sample_size) {
+        for (int i = 0; i < counters.length; i++) {
+          counters[i] >>>= 1;
+        }
+        additions /= 2;
+      }
+    }
+
+    int frequency(final int hash) {
+      int frequency = 15;
+      for (int i = 0; i < DEPTH; i++) {
+        frequency = Math.min(frequency, counters[index(hash, i)]);
+      }
+      return frequency;
+    }
+
+    private int index(final int hash, final int row) {
+      int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+      h ^= h >>> 16;
+      return row * (mask + 1) + (h & mask);
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default {@link UniqueIdCache} storing the mappings in on-heap hash maps.
+ * @since 2.1
+ */
+public final class HeapUniqueIdCache implements UniqueIdCache {
+
+  /** Charset used to convert IDs to Strings. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Cache for forward mappings (name to ID). */
+  private final ConcurrentHashMap<String, byte[]> name_cache =
+    new ConcurrentHashMap<String, byte[]>();
+  /** Cache for backward mappings (ID to name).
+   * The ID in the key is a byte[] converted to a String to be Comparable. */
+  private final ConcurrentHashMap<String, String> id_cache =
+    new ConcurrentHashMap<String, String>();
+
+  public byte[] getId(final String name) {
+    return name_cache.get(name);
+  }
+
+  public String getName(final byte[] id) {
+    return id_cache.get(new String(id, CHARSET));
+  }
+
+  public byte[] addId(final String name, final byte[] id) {
+    final byte[] found = name_cache.get(name);
+    if (found != null) {
+      return found;
+    }
+    // Must make a defensive copy to be immune to any changes the caller may
+    // do on the array later on.
+    return name_cache.putIfAbsent(name, Arrays.copyOf(id, id.length));
+  }
+
+  public String addName(final byte[] id, final String name) {
+    final String key = new String(id, CHARSET);
+    final String found = id_cache.get(key);
+    if (found != null) {
+      return found;
+    }
+    return id_cache.putIfAbsent(key, name);
+  }
+
+  public void replaceName(final byte[] id, final String name) {
+    id_cache.put(new String(id, CHARSET), name);
+  }
+
+  public void removeId(final String name) {
+    name_cache.remove(name);
+  }
+
+  public int size() {
+    return name_cache.size() + id_cache.size();
+  }
+
+  public void clear() {
+    name_cache.clear();
+    id_cache.clear();
+  }
+
+  /** This cache is unbounded and never evicts anything. */
+  public long evictions() {
+    return 0;
+  }
+
+  public void visitIds(final IdVisitor visitor) {
+    for (final Map.Entry<String, byte[]> entry : name_cache.entrySet()) {
+      visitor.visit(entry.getKey(), entry.getValue());
+    }
+  }
+
+}
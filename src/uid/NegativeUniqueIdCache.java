@@ -0,0 +1,122 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers names that were recently looked up in HBase and not found, so
+ * that clients repeatedly sending unknown names don't hit the UID table each
+ * time.
+ * <p>
+ * Entries expire after a fixed time, since another TSD may assign the name in
+ * the mean time, and the oldest entries are dropped once the cache is full.
+ * @since 2.1
+ */
+final class NegativeUniqueIdCache {
+
+  /** Maximum number of names to remember. */
+  private final int max_size;
+  /** How long to remember a name for, in milliseconds. */
+  private final long ttl;
+  /** Names, in insertion order, with the time they expire at. */
+  private final LinkedHashMap<String, Long> names;
+  /** Number of lookups answered by this cache. */
+  private volatile long hits;
+
+  /**
+   * Constructor.
+   * @param max_size Maximum number of names to remember
+   * @param ttl How long to remember a name for, in milliseconds
+   * @throws IllegalArgumentException if the size or the TTL is not greater
+   * than 0
+   */
+  NegativeUniqueIdCache(final int max_size, final long ttl) {
+    if (max_size < 1) {
+      throw new IllegalArgumentException("Invalid size: " + max_size);
+    }
+    if (ttl < 1) {
+      throw new IllegalArgumentException("Invalid TTL: " + ttl);
+    }
+    this.max_size = max_size;
+    this.ttl = ttl;
+    names = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Long> e) {
+        return size() > NegativeUniqueIdCache.this.max_size;
+      }
+    };
+  }
+
+  /**
+   * Returns whether or not the given name was recently found missing.
+   * @param name The name to check
+   * @param now The current time in milliseconds
+   */
+  boolean contains(final String name, final long now) {
+    synchronized (names) {
+      final Long expires = names.get(name);
+      if (expires == null) {
+        return false;
+      }
+      if (expires <= now) {
+        names.remove(name);
+        return false;
+      }
+    }
+    hits++;
+    return true;
+  }
+
+  /**
+   * Remembers that the given name doesn't exist.
+   * @param name The name that wasn't found
+   * @param now The current time in milliseconds
+   */
+  void add(final String name, final long now) {
+    synchronized (names) {
+      // Re-insert so that the entry moves to the end of the eviction order.
+      names.remove(name);
+      names.put(name, now + ttl);
+    }
+  }
+
+  /** Forgets about the given name, e.g. because it was just assigned. */
+  void remove(final String name) {
+    synchronized (names) {
+      names.remove(name);
+    }
+  }
+
+  /** Forgets about all the names. */
+  void clear() {
+    synchronized (names) {
+      names.clear();
+    }
+  }
+
+  /** @return the number of names remembered, expired or not */
+  int size() {
+    synchronized (names) {
+      return names.size();
+    }
+  }
+
+  /** @return the number of lookups answered by this cache */
+  long hits() {
+    return hits;
+  }
+
+}
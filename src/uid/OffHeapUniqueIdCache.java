@@ -0,0 +1,380 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link UniqueIdCache} storing the mappings outside of the Java heap.
+ * <p>
+ * Each direction of the mapping is an open-addressing hash table keyed by the
+ * raw bytes of the name or ID.  The table itself is an array of longs in a
+ * direct buffer, each slot pointing to an entry appended to one of a series
+ * of direct buffers.  This way millions of mappings cost a couple of objects
+ * on the heap instead of several per mapping, which keeps GC pauses short.
+ * <p>
+ * Names are encoded in UTF-8.  Removed or replaced entries are only reclaimed
+ * when the cache is cleared, which is fine since renames are rare.
+ * @since 2.1
+ */
+public final class OffHeapUniqueIdCache implements UniqueIdCache {
+
+  /** Charset used to encode names. */
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** Forward mappings (name to ID). */
+  private final Table names = new Table();
+  /** Reverse mappings (ID to name). */
+  private final Table ids = new Table();
+
+  public byte[] getId(final String name) {
+    return names.get(name.getBytes(CHARSET));
+  }
+
+  public String getName(final byte[] id) {
+    final byte[] name = ids.get(id);
+    return name == null ? null : new String(name, CHARSET);
+  }
+
+  public byte[] addId(final String name, final byte[] id) {
+    return names.putIfAbsent(name.getBytes(CHARSET), id);
+  }
+
+  public String addName(final byte[] id, final String name) {
+    final byte[] found = ids.putIfAbsent(id, name.getBytes(CHARSET));
+    return found == null ? null : new String(found, CHARSET);
+  }
+
+  public void replaceName(final byte[] id, final String name) {
+    ids.put(id, name.getBytes(CHARSET));
+  }
+
+  public void removeId(final String name) {
+    names.remove(name.getBytes(CHARSET));
+  }
+
+  public int size() {
+    return names.size() + ids.size();
+  }
+
+  public void clear() {
+    names.clear();
+    ids.clear();
+  }
+
+  /** This cache is unbounded and never evicts anything. */
+  public long evictions() {
+    return 0;
+  }
+
+  public void visitIds(final IdVisitor visitor) {
+    names.visit(new Table.Visitor() {
+      public void visit(final byte[] key, final byte[] value) {
+        visitor.visit(new String(key, CHARSET), value);
+      }
+    });
+  }
+
+  /** Returns the number of bytes allocated outside of the heap. */
+  public long offHeapBytes() {
+    return names.allocated() + ids.allocated();
+  }
+
+  /**
+   * An open-addressing hash table with linear probing, from byte arrays to
+   * byte arrays, stored in direct buffers.
+   * <p>
+   * Each slot holds the address of an entry (chunk index in the upper 32
+   * bits, offset within the chunk in the lower 32 bits) plus one, so that 0
+   * means empty.  Removed entries leave a {@link #TOMBSTONE} in their slot.
+   * An entry is laid out as: hash (4 bytes), key length (4 bytes), value
+   * length (4 bytes), key, value.
+   */
+  static final class Table {
+    /** Marker for slots whose entry was removed. */
+    private static final long TOMBSTONE = -1;
+    /** Initial number of slots, must be a power of 2. */
+    private static final int INITIAL_SLOTS = 1024;
+    /** Size of the buffers holding the entries. */
+    static final int CHUNK_SIZE = 1 << 22;  // 4MB
+    /** Size of the header of each entry. */
+    private static final int HEADER_SIZE = 12;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /** The slots, 8 bytes each. */
+    private ByteBuffer slots;
+    /** Number of slots - 1. */
+    private int mask;
+    /** Number of slots used, including tombstones. */
+    private int used;
+    /** Number of live entries. */
+    private int size;
+    /** Buffers holding the entries, only the last one is written to. */
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    /** Write position in the last chunk. */
+    private int chunk_offset;
+
+    Table() {
+      reset();
+    }
+
+    /** @return the value of the given key or null if it's not in the table */
+    byte[] get(final byte[] key) {
+      lock.readLock().lock();
+      try {
+        final long address = slots.getLong(find(key, hash(key)) * 8);
+        return address == 0 ? null : readValue(address - 1);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /**
+     * Adds the given entry unless the key is already in the table.
+     * @return the existing value or null if the entry was added
+     */
+    byte[] putIfAbsent(final byte[] key, final byte[] value) {
+      final int hash = hash(key);
+      lock.writeLock().lock();
+      try {
+        final int slot = find(key, hash);
+        final long address = slots.getLong(slot * 8);
+        if (address != 0) {
+          return readValue(address - 1);
+        }
+        insert(slot, hash, key, value);
+        return null;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    /** Adds the given entry, replacing any existing one for that key. */
+    void put(final byte[] key, final byte[] value) {
+      final int hash = hash(key);
+      lock.writeLock().lock();
+      try {
+        final int slot = find(key, hash);
+        if (slots.getLong(slot * 8) != 0) {
+          slots.putLong(slot * 8, TOMBSTONE);
+          size--;
+        }
+        insert(find(key, hash), hash, key, value);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    /** Removes the entry for the given key, if any. */
+    void remove(final byte[] key) {
+      final int hash = hash(key);
+      lock.writeLock().lock();
+      try {
+        final int slot = find(key, hash);
+        if (slots.getLong(slot * 8) != 0) {
+          slots.putLong(slot * 8, TOMBSTONE);
+          size--;
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    int size() {
+      return size;
+    }
+
+    /** Drops all the entries and releases the buffers. */
+    void clear() {
+      lock.writeLock().lock();
+      try {
+        reset();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    /** Receives the entries of a table, see {@link #visit}. */
+    interface Visitor {
+      void visit(byte[] key, byte[] value);
+    }
+
+    /**
+     * Walks through all the entries of the table.  The table is locked for
+     * the duration of the walk.
+     */
+    void visit(final Visitor visitor) {
+      lock.readLock().lock();
+      try {
+        for (int slot = 0; slot <= mask; slot++) {
+          final long address = slots.getLong(slot * 8);
+          if (address == 0 || address == TOMBSTONE) {
+            continue;
+          }
+          visitor.visit(readKey(address - 1), readValue(address - 1));
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /** @return the number of bytes allocated in direct buffers */
+    long allocated() {
+      lock.readLock().lock();
+      try {
+        long bytes = slots.capacity();
+        for (final ByteBuffer chunk : chunks) {
+          bytes += chunk.capacity();
+        }
+        return bytes;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    private void reset() {
+      slots = ByteBuffer.allocateDirect(INITIAL_SLOTS * 8);
+      mask = INITIAL_SLOTS - 1;
+      used = 0;
+      size = 0;
+      chunks.clear();
+      chunk_offset = CHUNK_SIZE;  // Forces the allocation of a chunk.
+    }
+
+    /**
+     * Probes the table for the given key.
+     * Must be called with the lock held.
+     * @return the slot holding the key or the first empty slot found
+     */
+    private int find(final byte[] key, final int hash) {
+      int slot = hash & mask;
+      while (true) {
+        final long address = slots.getLong(slot * 8);
+        if (address == 0
+            || (address != TOMBSTONE && keyEquals(address - 1, hash, key))) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    /**
+     * Appends an entry and points the given empty slot at it.
+     * Must be called with the write lock held.
+     */
+    private void insert(final int slot, final int hash, final byte[] key,
+                        final byte[] value) {
+      final int length = HEADER_SIZE + key.length + value.length;
+      if (chunk_offset + length > CHUNK_SIZE || chunks.isEmpty()) {
+        chunks.add(ByteBuffer.allocateDirect(Math.max(length, CHUNK_SIZE)));
+        chunk_offset = 0;
+      }
+      final int chunk_index = chunks.size() - 1;
+      final ByteBuffer chunk = chunks.get(chunk_index);
+      chunk.putInt(chunk_offset, hash);
+      chunk.putInt(chunk_offset + 4, key.length);
+      chunk.putInt(chunk_offset + 8, value.length);
+      for (int i = 0; i < key.length; i++) {
+        chunk.put(chunk_offset + HEADER_SIZE + i, key[i]);
+      }
+      final int value_offset = chunk_offset + HEADER_SIZE + key.length;
+      for (int i = 0; i < value.length; i++) {
+        chunk.put(value_offset + i, value[i]);
+      }
+      slots.putLong(slot * 8,
+          (((long) chunk_index << 32) | chunk_offset) + 1);
+      chunk_offset += length;
+      used++;
+      size++;
+      if (used > (mask + 1) / 4 * 3) {
+        resize();
+      }
+    }
+
+    /**
+     * Doubles the number of slots, or rehashes in place if most of the used
+     * slots are tombstones.  Must be called with the write lock held.
+     */
+    private void resize() {
+      final int capacity = size > (mask + 1) / 2 ? (mask + 1) * 2 : mask + 1;
+      if (capacity < 0 || capacity > Integer.MAX_VALUE / 8) {
+        throw new IllegalStateException("Too many entries in the UID cache: "
+            + size);
+      }
+      final ByteBuffer old_slots = slots;
+      final int old_count = mask + 1;
+      slots = ByteBuffer.allocateDirect(capacity * 8);
+      mask = capacity - 1;
+      used = 0;
+      for (int i = 0; i < old_count; i++) {
+        final long address = old_slots.getLong(i * 8);
+        if (address == 0 || address == TOMBSTONE) {
+          continue;
+        }
+        final ByteBuffer chunk = chunks.get((int) ((address - 1) >>> 32));
+        int slot = chunk.getInt((int) (address - 1)) & mask;
+        while (slots.getLong(slot * 8) != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots.putLong(slot * 8, address);
+        used++;
+      }
+    }
+
+    private boolean keyEquals(final long address, final int hash,
+                              final byte[] key) {
+      final ByteBuffer chunk = chunks.get((int) (address >>> 32));
+      final int offset = (int) address;
+      if (chunk.getInt(offset) != hash || chunk.getInt(offset + 4) != key.length) {
+        return false;
+      }
+      for (int i = 0; i < key.length; i++) {
+        if (chunk.get(offset + HEADER_SIZE + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private byte[] readKey(final long address) {
+      final ByteBuffer chunk = chunks.get((int) (address >>> 32));
+      final int offset = (int) address;
+      final byte[] key = new byte[chunk.getInt(offset + 4)];
+      for (int i = 0; i < key.length; i++) {
+        key[i] = chunk.get(offset + HEADER_SIZE + i);
+      }
+      return key;
+    }
+
+    private byte[] readValue(final long address) {
+      final ByteBuffer chunk = chunks.get((int) (address >>> 32));
+      final int offset = (int) address;
+      final byte[] value = new byte[chunk.getInt(offset + 8)];
+      final int value_offset = offset + HEADER_SIZE + chunk.getInt(offset + 4);
+      for (int i = 0; i < value.length; i++) {
+        value[i] = chunk.get(value_offset + i);
+      }
+      return value;
+    }
+
+    private static int hash(final byte[] key) {
+      final int h = Arrays.hashCode(key) * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+  }
+
+}
@@ -19,7 +19,8 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
@@ -94,22 +95,33 @@ public final class UniqueId implements UniqueIdInterface {
   /** Number of bytes on which each ID is encoded. */
   private final short id_width;
 
-  /** Cache for forward mappings (name to ID). */
-  private final ConcurrentHashMap<String, byte[]> name_cache =
-    new ConcurrentHashMap<String, byte[]>();
-  /** Cache for backward mappings (ID to name).
-   * The ID in the key is a byte[] converted to a String to be Comparable. */
-  private final ConcurrentHashMap<String, String> id_cache =
-    new ConcurrentHashMap<String, String>();
+  /** Cache for forward (name to ID) and backward (ID to name) mappings. */
+  private final UniqueIdCache cache;
   /** Map of pending UID assignments */
   private final HashMap<String, Deferred<byte[]>> pending_assignments =
     new HashMap<String, Deferred<byte[]>>();
+  /** Map of pending HBase lookups of names, with the other callers waiting */
+  private final HashMap<String, ArrayList<Deferred<byte[]>>> pending_lookups =
+    new HashMap<String, ArrayList<Deferred<byte[]>>>();
 
   /** Number of times we avoided reading from HBase thanks to the cache. */
   private volatile int cache_hits;
   /** Number of times we had to read from HBase and populate the cache. */
   private volatile int cache_misses;
 
+  /** How many IDs to lease at once from the MAXID row. */
+  private int id_block_size = 1;
+  /** Ranges of leased IDs not assigned yet, as {next, last} pairs. */
+  private final LinkedList<long[]> leased_ids = new LinkedList<long[]>();
+
+  /** Names recently not found in HBase, null if disabled. */
+  private volatile NegativeUniqueIdCache negative_cache;
+
+  /** All the names known to this instance, sorted, null if disabled. */
+  private volatile ConcurrentSkipListSet<String> suggest_names;
+  /** Whether every name of the UID table was loaded in suggest_names. */
+  private volatile boolean suggest_names_loaded;
+
   /** Whether or not to generate new UIDMetas */
   private TSDB tsdb;
   //Generate random UID or sequential UID
@@ -142,6 +154,25 @@ public final class UniqueId implements UniqueIdInterface {
    */
   public UniqueId(final HBaseClient client, final byte[] table, final String kind,
                   final int width, final boolean randomizeId) {
+    this(client, table, kind, width, randomizeId, new HeapUniqueIdCache());
+  }
+
+  /**
+   * Constructor.
+   * @param client The HBase client to use.
+   * @param table The name of the HBase table to use.
+   * @param kind The kind of Unique ID this instance will deal with.
+   * @param width The number of bytes on which Unique IDs should be encoded.
+   * @param randomizeId generate random UID if true. Change this logic carefully
+   * once the tsdb starts writing into hbase.
+   * @param cache The cache to use for the mappings of this kind.
+   * @throws IllegalArgumentException if width is negative or too small/large
+   * or if kind is an empty string.
+   * @since 2.1
+   */
+  public UniqueId(final HBaseClient client, final byte[] table, final String kind,
+                  final int width, final boolean randomizeId,
+                  final UniqueIdCache cache) {
     this.client = client;
     this.table = table;
     if (kind.isEmpty()) {
@@ -154,6 +185,7 @@ public final class UniqueId implements UniqueIdInterface {
     }
     this.id_width = (short) width;
     this.randomizeId = randomizeId;
+    this.cache = cache;
   }
 
   /** The number of times we avoided reading from HBase thanks to the cache. */
@@ -166,9 +198,23 @@ public final class UniqueId implements UniqueIdInterface {
     return cache_misses;
   }
 
+  /** The number of mappings evicted to keep the cache bounded. */
+  public long cacheEvictions() {
+    return cache.evictions();
+  }
+
+  /**
+   * Walks through the forward mappings held in the cache.
+   * @param visitor The visitor to call for each mapping
+   * @since 2.1
+   */
+  void visitCache(final UniqueIdCache.IdVisitor visitor) {
+    cache.visitIds(visitor);
+  }
+
   /** Returns the number of elements stored in the internal cache. */
   public int cacheSize() {
-    return name_cache.size() + id_cache.size();
+    return cache.size();
   }
 
   public String kind() {
@@ -184,6 +230,79 @@ public final class UniqueId implements UniqueIdInterface {
     this.tsdb = tsdb;
   }
   
+  /**
+   * Sets how many IDs to lease at once when assigning new sequential IDs.
+   * Leasing blocks of IDs lets this instance assign many new names with a
+   * single atomic increment of the MAXID row.  IDs left in a block when the
+   * process stops are never assigned.
+   * @param id_block_size The number of IDs to lease at once, 1 to disable
+   * leasing.
+   * @throws IllegalArgumentException if the size is not greater than 0
+   * @since 2.1
+   */
+  public void setIdBlockSize(final int id_block_size) {
+    if (id_block_size < 1) {
+      throw new IllegalArgumentException("Invalid ID block size: " 
+          + id_block_size);
+    }
+    this.id_block_size = id_block_size;
+  }
+
+  /**
+   * Enables caching names that weren't found in HBase, so that repeated
+   * lookups of unknown names fail without hitting the UID table.  Names are
+   * forgotten when assigned through this instance or once the TTL expires.
+   * @param max_size The maximum number of names to remember, 0 to disable
+   * the negative cache
+   * @param ttl How long to remember a name for, in milliseconds
+   * @throws IllegalArgumentException if the size is negative or the TTL is
+   * not greater than 0
+   * @since 2.1
+   */
+  public void setNegativeCache(final int max_size, final long ttl) {
+    if (max_size < 0) {
+      throw new IllegalArgumentException("Invalid negative cache size: " 
+          + max_size);
+    }
+    negative_cache = max_size == 0 ? null 
+        : new NegativeUniqueIdCache(max_size, ttl);
+  }
+
+  /** The number of lookups answered by the negative cache. */
+  public long negativeCacheHits() {
+    final NegativeUniqueIdCache negative_cache = this.negative_cache;
+    return negative_cache == null ? 0 : negative_cache.hits();
+  }
+
+  /**
+   * Enables keeping every name of this kind in memory, sorted, so that
+   * suggestions don't scan HBase.  Names are added as they are cached, and
+   * suggestions keep scanning HBase until {@link #setSuggestIndexLoaded} is
+   * called once all the names of the UID table were loaded.
+   * @since 2.1
+   */
+  public void enableSuggestIndex() {
+    if (suggest_names == null) {
+      suggest_names = new ConcurrentSkipListSet<String>();
+    }
+  }
+
+  /**
+   * Tells this instance that every name of the UID table was loaded, e.g.
+   * by {@link #preloadCaches}, so suggestions can be served from memory.
+   * Does nothing unless {@link #enableSuggestIndex} was called.
+   * @since 2.1
+   */
+  public void setSuggestIndexLoaded() {
+    suggest_names_loaded = suggest_names != null;
+  }
+
+  /** The number of names held for suggestions, 0 if disabled. */
+  public int suggestIndexSize() {
+    final ConcurrentSkipListSet<String> suggest_names = this.suggest_names;
+    return suggest_names == null ? 0 : suggest_names.size();
+  }
+
   /** The largest possible ID given the number of bytes the IDs are represented on. */
   public long maxPossibleId() {
     return (1 << id_width * Byte.SIZE) - 1;
@@ -194,8 +313,11 @@ public final class UniqueId implements UniqueIdInterface {
    * @since 1.1
    */
   public void dropCaches() {
-    name_cache.clear();
-    id_cache.clear();
+    cache.clear();
+    final NegativeUniqueIdCache negative_cache = this.negative_cache;
+    if (negative_cache != null) {
+      negative_cache.clear();
+    }
   }
 
   /**
@@ -259,7 +381,7 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private String getNameFromCache(final byte[] id) {
-    return id_cache.get(fromBytes(id));
+    return cache.getName(id);
   }
 
   private Deferred<String> getNameFromHBase(final byte[] id) {
@@ -272,11 +394,7 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private void addNameToCache(final byte[] id, final String name) {
-    final String key = fromBytes(id);
-    String found = id_cache.get(key);
-    if (found == null) {
-      found = id_cache.putIfAbsent(key, name);
-    }
+    final String found = cache.addName(id, name);
     if (found != null && !found.equals(name)) {
       throw new IllegalStateException("id=" + Arrays.toString(id) + " => name="
           + name + ", already mapped to " + found);
@@ -293,16 +411,42 @@ public final class UniqueId implements UniqueIdInterface {
     }
   }
 
+  /**
+   * Finds the ID associated with a given name.
+   * <p>
+   * Concurrent lookups of the same name that isn't in the cache are merged
+   * into a single HBase get, in the same way concurrent assignments are.
+   * @param name The name to lookup
+   * @return A deferred resolving to the ID or a {@link NoSuchUniqueName}
+   */
   public Deferred<byte[]> getIdAsync(final String name) {
     final byte[] id = getIdFromCache(name);
     if (id != null) {
       cache_hits++;
       return Deferred.fromResult(id);
     }
+    final NegativeUniqueIdCache negative_cache = this.negative_cache;
+    if (negative_cache != null 
+        && negative_cache.contains(name, System.currentTimeMillis())) {
+      return Deferred.fromError(new NoSuchUniqueName(kind(), name));
+    }
+    synchronized (pending_lookups) {
+      final ArrayList<Deferred<byte[]>> waiting = pending_lookups.get(name);
+      if (waiting != null) {
+        // Someone is already looking this name up, wait for their result.
+        final Deferred<byte[]> lookup = new Deferred<byte[]>();
+        waiting.add(lookup);
+        return lookup;
+      }
+      pending_lookups.put(name, new ArrayList<Deferred<byte[]>>(1));
+    }
     cache_misses++;
     class GetIdCB implements Callback<byte[], byte[]> {
       public byte[] call(final byte[] id) {
         if (id == null) {
+          if (negative_cache != null) {
+            negative_cache.add(name, System.currentTimeMillis());
+          }
           throw new NoSuchUniqueName(kind(), name);
         }
         if (id.length != id_width) {
@@ -315,12 +459,34 @@ public final class UniqueId implements UniqueIdInterface {
         return id;
       }
     }
-    Deferred<byte[]> d = getIdFromHBase(name).addCallback(new GetIdCB());
-    return d;
+    /** Hands the ID or the exception to the others waiting on the lookup. */
+    class DispatchCB implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        final ArrayList<Deferred<byte[]>> waiting;
+        synchronized (pending_lookups) {
+          waiting = pending_lookups.remove(name);
+        }
+        for (final Deferred<byte[]> d : waiting) {
+          d.callback(arg);
+        }
+        return arg;
+      }
+    }
+    final Deferred<byte[]> d;
+    try {
+      d = getIdFromHBase(name).addCallback(new GetIdCB());
+    } catch (RuntimeException e) {
+      // Nothing will call DispatchCB, so end the lookup here.
+      new DispatchCB().call(e);
+      throw e;
+    }
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    final Deferred<byte[]> dispatched = ((Deferred) d).addBoth(new DispatchCB());
+    return dispatched;
   }
 
   private byte[] getIdFromCache(final String name) {
-    return name_cache.get(name);
+    return cache.getId(name);
   }
 
   private Deferred<byte[]> getIdFromHBase(final String name) {
@@ -328,19 +494,16 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private void addIdToCache(final String name, final byte[] id) {
-    byte[] found = name_cache.get(name);
-    if (found == null) {
-      found = name_cache.putIfAbsent(name,
-                                    // Must make a defensive copy to be immune
-                                    // to any changes the caller may do on the
-                                    // array later on.
-                                    Arrays.copyOf(id, id.length));
-    }
+    final byte[] found = cache.addId(name, id);
     if (found != null && !Arrays.equals(found, id)) {
       throw new IllegalStateException("name=" + name + " => id="
           + Arrays.toString(id) + ", already mapped to "
           + Arrays.toString(found));
     }
+    final ConcurrentSkipListSet<String> suggest_names = this.suggest_names;
+    if (suggest_names != null) {
+      suggest_names.add(name);
+    }
   }
 
   /**
@@ -443,9 +606,39 @@ public final class UniqueId implements UniqueIdInterface {
                + "' name='" + name + '\'');
 
       state = CREATE_REVERSE_MAPPING;
-      return client.atomicIncrement(new AtomicIncrementRequest(table, MAXID_ROW,
-                                                               ID_FAMILY,
-                                                               kind));
+      if (id_block_size <= 1) {
+        return client.atomicIncrement(new AtomicIncrementRequest(table, 
+            MAXID_ROW, ID_FAMILY, kind));
+      }
+      
+      synchronized (leased_ids) {
+        final long[] range = leased_ids.peek();
+        if (range != null) {
+          final long leased = range[0]++;
+          if (range[0] > range[1]) {
+            leased_ids.remove();
+          }
+          return Deferred.fromResult(leased);
+        }
+      }
+      
+      /** Keeps all the IDs of a new block but the first one for later. */
+      final class LeaseCB implements Callback<Long, Long> {
+        public Long call(final Long last) {
+          final long first = last - id_block_size + 1;
+          LOG.info("Leased IDs " + first + " to " + last + " for kind='" 
+              + kind() + '\'');
+          if (first < last) {
+            synchronized (leased_ids) {
+              leased_ids.add(new long[] { first + 1, last });
+            }
+          }
+          return first;
+        }
+      }
+      return client.atomicIncrement(new AtomicIncrementRequest(table, 
+          MAXID_ROW, ID_FAMILY, kind, id_block_size))
+          .addCallback(new LeaseCB());
     }
 
    /**
@@ -500,6 +693,18 @@ public final class UniqueId implements UniqueIdInterface {
       row = Arrays.copyOfRange(row, row.length - id_width, row.length);
 
       state = CREATE_FORWARD_MAPPING;
+      if (id_block_size > 1 && !randomizeId) {
+        // When leasing blocks of IDs, we're assigning a lot of them so we
+        // just `put' the reverse mapping of our freshly allocated UID.  This
+        // lets the client batch the reverse mappings of many new names
+        // together instead of sending one CAS each.
+        final class PutCB implements Callback<Boolean, Object> {
+          public Boolean call(final Object unused) {
+            return true;
+          }
+        }
+        return client.put(reverseMapping()).addCallback(new PutCB());
+      }
       // We are CAS'ing the KV into existence -- the second argument is how
       // we tell HBase we want to atomically create the KV, so that if there
       // is already a KV in this cell, we'll fail.  Technically we could do
@@ -567,6 +772,9 @@ public final class UniqueId implements UniqueIdInterface {
             return null;
           }
         }
+        // The name is most likely in the negative cache since we looked it
+        // up before assigning it, but the winner just created it.
+        forgetMissingName(name);
         getIdAsync(name).addCallback(new GetIdCB());
         return assignment;
       }
@@ -590,10 +798,19 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   /** Adds the bidirectional mapping in the cache. */
-  private void cacheMapping(final String name, final byte[] id) {
+  void cacheMapping(final String name, final byte[] id) {
     addIdToCache(name, id);
     addNameToCache(id, name);
+    forgetMissingName(name);
   } 
+
+  /** Removes the given name from the negative cache, if enabled. */
+  private void forgetMissingName(final String name) {
+    final NegativeUniqueIdCache negative_cache = this.negative_cache;
+    if (negative_cache != null) {
+      negative_cache.remove(name);
+    }
+  }
   
   /**
    * Finds the ID associated with a given name or creates it.
@@ -770,9 +987,36 @@ public final class UniqueId implements UniqueIdInterface {
    */
   public Deferred<List<String>> suggestAsync(final String search, 
       final int max_results) {
+    final ConcurrentSkipListSet<String> suggest_names = this.suggest_names;
+    if (suggest_names != null && suggest_names_loaded) {
+      return Deferred.fromResult(
+          suggestFromIndex(suggest_names, search, max_results));
+    }
     return new SuggestCB(search, max_results).search();
   }
 
+  /**
+   * Finds suggestions in the sorted names held in memory, in the same order
+   * as a scan of the UID table would.
+   * @param names The sorted names.
+   * @param search The search term (possibly empty).
+   * @param max_results The number of results to return.
+   * @return The names starting with the search term.
+   */
+  private static List<String> suggestFromIndex(
+      final NavigableSet<String> names, final String search, 
+      final int max_results) {
+    final List<String> suggestions = new ArrayList<String>(
+        Math.min(max_results, MAX_SUGGESTIONS));
+    for (final String name : names.tailSet(search, true)) {
+      if (suggestions.size() >= max_results || !name.startsWith(search)) {
+        break;
+      }
+      suggestions.add(name);
+    }
+    return suggestions;
+  }
+
   /**
    * Helper callback to asynchronously scan HBase for suggestions.
    */
@@ -808,7 +1052,7 @@ public final class UniqueId implements UniqueIdInterface {
         final byte[] key = row.get(0).key();
         final String name = fromBytes(key);
         final byte[] id = row.get(0).value();
-        final byte[] cached_id = name_cache.get(name);
+        final byte[] cached_id = cache.getId(name);
         if (cached_id == null) {
           cacheMapping(name, id); 
         } else if (!Arrays.equals(id, cached_id)) {
@@ -892,8 +1136,13 @@ public final class UniqueId implements UniqueIdInterface {
 
     // Update cache.
     addIdToCache(newname, row);            // add     new name -> ID
-    id_cache.put(fromBytes(row), newname);  // update  ID -> new name
-    name_cache.remove(oldname);             // remove  old name -> ID
+    forgetMissingName(newname);
+    cache.replaceName(row, newname);        // update  ID -> new name
+    cache.removeId(oldname);                // remove  old name -> ID
+    final ConcurrentSkipListSet<String> suggest_names = this.suggest_names;
+    if (suggest_names != null) {
+      suggest_names.remove(oldname);
+    }
 
     // Delete the old forward mapping.
     try {
@@ -1210,6 +1459,110 @@ public final class UniqueId implements UniqueIdInterface {
     return tsdb.getClient().get(get).addCallback(new GetCB());
   }
  
+  /**
+   * Loads all the forward mappings of the UID table into the caches of the
+   * given UniqueIds.  The table is split into ranges, by the first byte of
+   * the names, that are scanned in parallel.
+   * @param client The HBase client to use
+   * @param table The UID table
+   * @param num_scanners How many ranges to scan in parallel, between 1 and
+   * 256
+   * @param uids The UniqueIds to populate, one per kind
+   * @return The number of mappings loaded
+   * @throws IllegalArgumentException if the number of scanners is invalid
+   * @since 2.1
+   */
+  public static Deferred<Long> preloadCaches(final HBaseClient client,
+      final byte[] table, final int num_scanners, final UniqueId... uids) {
+    if (num_scanners < 1 || num_scanners > 256) {
+      throw new IllegalArgumentException("Invalid number of scanners: " 
+          + num_scanners);
+    }
+    final Map<String, UniqueId> kinds = new HashMap<String, UniqueId>();
+    for (final UniqueId uid : uids) {
+      kinds.put(uid.kind(), uid);
+    }
+
+    /** Scans one range and caches every mapping found, recursively. */
+    final class PreloadCB implements Callback<Object, 
+      ArrayList<ArrayList<KeyValue>>> {
+      private final Scanner scanner;
+      private final Deferred<Long> result = new Deferred<Long>();
+      private long count;
+
+      PreloadCB(final Scanner scanner) {
+        this.scanner = scanner;
+      }
+
+      Deferred<Long> scan() {
+        next();
+        return result;
+      }
+
+      private void next() {
+        final class ErrCB implements Callback<Object, Exception> {
+          public Object call(final Exception e) {
+            scanner.close();
+            result.callback(e);
+            return null;
+          }
+        }
+        scanner.nextRows().addCallbacks(this, new ErrCB());
+      }
+
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          scanner.close();
+          result.callback(count);
+          return null;
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue column : row) {
+            final UniqueId uid = kinds.get(fromBytes(column.qualifier()));
+            // Skip unknown kinds as well as the max ID counters.
+            if (uid == null || column.value().length != uid.width()) {
+              continue;
+            }
+            try {
+              uid.cacheMapping(fromBytes(column.key()), column.value());
+              count++;
+            } catch (IllegalStateException e) {
+              LOG.warn("Not preloading a conflicting UID mapping", e);
+            }
+          }
+        }
+        next();
+        return null;
+      }
+    }
+
+    final ArrayList<Deferred<Long>> deferreds = 
+      new ArrayList<Deferred<Long>>(num_scanners);
+    for (int i = 0; i < num_scanners; i++) {
+      final Scanner scanner = client.newScanner(table);
+      if (i > 0) {
+        scanner.setStartKey(new byte[] { (byte) (i * 256 / num_scanners) });
+      }
+      if (i < num_scanners - 1) {
+        scanner.setStopKey(
+            new byte[] { (byte) ((i + 1) * 256 / num_scanners) });
+      }
+      scanner.setFamily(ID_FAMILY);
+      deferreds.add(new PreloadCB(scanner).scan());
+    }
+
+    final class SumCB implements Callback<Long, ArrayList<Long>> {
+      public Long call(final ArrayList<Long> counts) {
+        long total = 0;
+        for (final Long count : counts) {
+          total += count;
+        }
+        return total;
+      }
+    }
+    return Deferred.group(deferreds).addCallback(new SumCB());
+  }
+
   /**
    * Collects random uid collisions
    * @param collector StatsCollector object to collect stats/metrics
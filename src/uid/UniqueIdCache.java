@@ -0,0 +1,94 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+/**
+ * In-memory cache of the forward (name to ID) and reverse (ID to name)
+ * mappings of a {@link UniqueId}.
+ * <p>
+ * Implementations must be thread-safe.  They must also make defensive copies
+ * of the arrays they are given or return if they keep references to them.
+ * @since 2.1
+ */
+public interface UniqueIdCache {
+
+  /**
+   * Returns the cached ID for the given name.
+   * @param name The name to lookup.
+   * @return The ID or null if the name is not in the cache.
+   */
+  byte[] getId(String name);
+
+  /**
+   * Returns the cached name for the given ID.
+   * @param id The ID to lookup.
+   * @return The name or null if the ID is not in the cache.
+   */
+  String getName(byte[] id);
+
+  /**
+   * Caches the given forward mapping, unless the name is already cached.
+   * @param name The name to cache.
+   * @param id The ID of that name.
+   * @return The ID already cached for the name, or null if there was none.
+   */
+  byte[] addId(String name, byte[] id);
+
+  /**
+   * Caches the given reverse mapping, unless the ID is already cached.
+   * @param id The ID to cache.
+   * @param name The name of that ID.
+   * @return The name already cached for the ID, or null if there was none.
+   */
+  String addName(byte[] id, String name);
+
+  /**
+   * Caches the given reverse mapping, replacing any existing one.
+   * @param id The ID to cache.
+   * @param name The new name of that ID.
+   */
+  void replaceName(byte[] id, String name);
+
+  /**
+   * Removes the forward mapping of the given name from the cache.
+   * @param name The name to remove.
+   */
+  void removeId(String name);
+
+  /** Returns the number of mappings, forward and reverse, in the cache. */
+  int size();
+
+  /** Discards all the mappings held in the cache. */
+  void clear();
+
+  /** Returns the number of mappings evicted to keep the cache bounded. */
+  long evictions();
+
+  /**
+   * Walks through all the forward mappings of the cache.  Mappings added or
+   * removed during the walk may or may not be visited.
+   * @param visitor The visitor to call for each mapping.
+   */
+  void visitIds(IdVisitor visitor);
+
+  /** Receives the forward mappings of a cache, see {@link #visitIds}. */
+  public interface IdVisitor {
+    /**
+     * Called once per mapping.
+     * @param name The name of the mapping.
+     * @param id The ID of the mapping.  Must not be modified.
+     */
+    void visit(String name, byte[] id);
+  }
+
+}
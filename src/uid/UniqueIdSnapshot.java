@@ -0,0 +1,190 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the UID caches to a local file and loads them back, so that a TSD
+ * restarts with warm caches instead of looking up every UID in HBase.
+ * <p>
+ * The file starts with a magic number and a version, followed by one section
+ * per kind of UID: the kind, the width of the IDs and the mappings, each
+ * prefixed with a 1 and the section terminated with a 0.
+ * <p>
+ * UID mappings are immutable except for renames, so a snapshot is only stale
+ * if a UID was renamed while this TSD was down.
+ * @since 2.1
+ */
+public final class UniqueIdSnapshot {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UniqueIdSnapshot.class);
+
+  /** Charset used to encode names and kinds. */
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  /** Magic number at the beginning of every snapshot: "UIDC". */
+  private static final int MAGIC = 0x55494443;
+  /** Version of the file format. */
+  private static final byte VERSION = 1;
+
+  /** No instances. */
+  private UniqueIdSnapshot() {
+  }
+
+  /**
+   * Writes the cached mappings of the given UniqueIds to a file.  The file is
+   * written next to the destination and renamed, so a crash while writing
+   * doesn't leave a truncated snapshot behind.
+   * @param file The file to write
+   * @param uids The UniqueIds to save
+   * @return The number of mappings written
+   * @throws IOException if the file couldn't be written
+   */
+  public static long write(final File file, final UniqueId... uids)
+      throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+    final long[] count = { 0 };
+    final IOException[] error = { null };
+    try {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeInt(uids.length);
+      for (final UniqueId uid : uids) {
+        writeBytes(out, uid.kind().getBytes(CHARSET));
+        out.writeShort(uid.width());
+        uid.visitCache(new UniqueIdCache.IdVisitor() {
+          public void visit(final String name, final byte[] id) {
+            if (error[0] != null) {
+              return;
+            }
+            try {
+              out.writeByte(1);
+              writeBytes(out, name.getBytes(CHARSET));
+              out.write(id);
+              count[0]++;
+            } catch (IOException e) {
+              error[0] = e;
+            }
+          }
+        });
+        if (error[0] != null) {
+          throw error[0];
+        }
+        out.writeByte(0);
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      // Some platforms can't rename over an existing file.
+      file.delete();
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Unable to rename " + tmp + " to " + file);
+      }
+    }
+    return count[0];
+  }
+
+  /**
+   * Loads the mappings of a snapshot into the caches of the given UniqueIds.
+   * Sections for unknown kinds or with a different ID width are skipped.
+   * @param file The file to read
+   * @param uids The UniqueIds to populate
+   * @return The number of mappings loaded
+   * @throws IOException if the file couldn't be read or isn't a snapshot
+   */
+  public static long read(final File file, final UniqueId... uids)
+      throws IOException {
+    final Map<String, UniqueId> kinds = new HashMap<String, UniqueId>();
+    for (final UniqueId uid : uids) {
+      kinds.put(uid.kind(), uid);
+    }
+    final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    long count = 0;
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a UID cache snapshot: " + file);
+      }
+      final byte version = in.readByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported UID cache snapshot version "
+            + version + ": " + file);
+      }
+      final int sections = in.readInt();
+      for (int i = 0; i < sections; i++) {
+        final String kind = new String(readBytes(in), CHARSET);
+        final short width = in.readShort();
+        if (width < 1 || width > 8) {
+          throw new IOException("Corrupted UID cache snapshot, bad width: "
+              + width);
+        }
+        UniqueId uid = kinds.get(kind);
+        if (uid != null && uid.width() != width) {
+          LOG.warn("Skipping UID cache snapshot of kind " + kind
+              + " with width " + width + " instead of " + uid.width());
+          uid = null;
+        }
+        while (in.readByte() != 0) {
+          final String name = new String(readBytes(in), CHARSET);
+          final byte[] id = new byte[width];
+          in.readFully(id);
+          if (uid != null) {
+            try {
+              uid.cacheMapping(name, id);
+              count++;
+            } catch (IllegalStateException e) {
+              LOG.warn("Not loading a conflicting UID mapping", e);
+            }
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return count;
+  }
+
+  private static void writeBytes(final DataOutputStream out,
+      final byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(final DataInputStream in)
+      throws IOException {
+    final int length = in.readInt();
+    if (length < 0 || length > 1 << 20) {
+      throw new IOException("Corrupted UID cache snapshot, bad length: "
+          + length);
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
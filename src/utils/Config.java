@@ -397,12 +397,35 @@ public class Config {
     default_map.put("tsd.core.meta.enable_realtime_uid", "false");
     default_map.put("tsd.core.meta.enable_tsuid_incrementing", "false");
     default_map.put("tsd.core.meta.enable_tsuid_tracking", "false");
+    default_map.put("tsd.core.meta.seen_tsuids.max_size", "0");
+    default_map.put("tsd.core.meta.counters.flush_interval", "1000");
     default_map.put("tsd.core.plugin_path", "");
+    default_map.put("tsd.core.head_block.enable", "false");
+    default_map.put("tsd.core.head_block.window", "120");
+    default_map.put("tsd.core.uid.cache.type", "heap");
+    default_map.put("tsd.core.uid.cache.max_size.metrics", "0");
+    default_map.put("tsd.core.uid.cache.max_size.tagk", "0");
+    default_map.put("tsd.core.uid.cache.max_size.tagv", "0");
+    default_map.put("tsd.core.uid.cache.snapshot_file", "");
+    default_map.put("tsd.core.uid.cache.preload", "false");
+    default_map.put("tsd.core.uid.cache.preload_scanners", "8");
+    default_map.put("tsd.core.uid.assign_block_size", "1");
+    default_map.put("tsd.core.uid.negative_cache.max_size", "0");
+    default_map.put("tsd.core.uid.negative_cache.ttl", "60");
+    default_map.put("tsd.core.uid.suggest.in_memory", "false");
     default_map.put("tsd.core.tree.enable_processing", "false");
+    default_map.put("tsd.core.tree.queue.size", "0");
+    default_map.put("tsd.core.tree.queue.threads", "2");
+    default_map.put("tsd.core.tree.branch_cache.max_size", "0");
+    default_map.put("tsd.tools.treesync.workers", "0");
+    default_map.put("tsd.tools.treesync.checkpoint", "");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
     default_map.put("tsd.search.enable", "false");
     default_map.put("tsd.search.plugin", "");
+    default_map.put("tsd.search.batch.size", "0");
+    default_map.put("tsd.search.batch.flush_interval", "1000");
+    default_map.put("tsd.search.embedded.load_on_start", "true");
     default_map.put("tsd.stats.canonical", "false");
     default_map.put("tsd.storage.flush_interval", "1000");
     default_map.put("tsd.storage.hbase.data_table", "tsdb");
@@ -416,6 +439,18 @@ public class Config {
     default_map.put("tsd.http.request.enable_chunked", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
     default_map.put("tsd.http.request.cors_domains", "");
+    default_map.put("tsd.http.query.executor.threads", "0");
+    default_map.put("tsd.http.query.executor.queue_size", "64");
+    default_map.put("tsd.http.query.slow_threshold", "0");
+    default_map.put("tsd.http.cache.max_size", "0");
+    default_map.put("tsd.http.cache.max_age", "0");
+    default_map.put("tsd.http.graph.renderer", "gnuplot");
+    default_map.put("tsd.http.tree.branch_cache.max_size", "0");
+    default_map.put("tsd.http.tree.branch_cache.ttl", "60");
+    default_map.put("tsd.query.limits.rows", "0");
+    default_map.put("tsd.query.limits.dps", "0");
+    default_map.put("tsd.query.limits.bytes", "0");
+    default_map.put("tsd.query.limits.time", "0");
 
     for (Map.Entry<String, String> entry : default_map.entrySet()) {
       if (!properties.containsKey(entry.getKey()))
@@ -0,0 +1,270 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  CompactionQueue.class, Scanner.class })
+public final class TestHeadBlock {
+  private static final byte[] METRIC = { 0, 0, 1 };
+  private static final byte[] ROW_WEB01 =
+    { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] ROW_WEB02 =
+    { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 2 };
+  private Config config;
+  private TSDB tsdb;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private UniqueId tag_names = mock(UniqueId.class);
+  private UniqueId tag_values = mock(UniqueId.class);
+  private HeadBlock head_block;
+  /** An hour aligned timestamp within the head block window */
+  private long base_time;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+      .withArguments(anyString(), anyString()).thenReturn(client);
+    config = new Config(false);
+    config.overrideConfig("tsd.core.head_block.enable", "true");
+    config.overrideConfig("tsd.core.head_block.window", "180");
+    tsdb = new TSDB(config);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "tag_names", tag_names);
+    Whitebox.setInternalState(tsdb, "tag_values", tag_values);
+    when(metrics.width()).thenReturn((short)3);
+    when(tag_names.width()).thenReturn((short)3);
+    when(tag_values.width()).thenReturn((short)3);
+    head_block = tsdb.head_block;
+
+    final long now = System.currentTimeMillis() / 1000;
+    base_time = now - (now % Const.MAX_TIMESPAN) - Const.MAX_TIMESPAN;
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    assertNotNull(head_block);
+    assertEquals(0, head_block.numSeries());
+  }
+
+  @Test
+  public void disabledByDefault() throws Exception {
+    assertEquals(null, new TSDB(new Config(false)).head_block);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadWindow() throws Exception {
+    new HeadBlock(tsdb, 0);
+  }
+
+  @Test
+  public void coverageStartAligned() throws Exception {
+    final long start = head_block.coverageStart();
+    assertEquals(0, start % Const.MAX_TIMESPAN);
+    assertTrue(start * 1000 >= System.currentTimeMillis() - 180 * 60000L);
+  }
+
+  @Test
+  public void addRejectsOldData() throws Exception {
+    head_block.add(ROW_WEB01, 1356998400L, new byte[] { 1 }, (short) 0);
+    assertEquals(0, head_block.numSeries());
+  }
+
+  @Test
+  public void fillSpans() throws Exception {
+    head_block.add(ROW_WEB01, base_time, new byte[] { 1 }, (short) 0);
+    head_block.add(ROW_WEB01, base_time + 30, new byte[] { 2 }, (short) 0);
+    head_block.add(ROW_WEB02, base_time + 30, new byte[] { 3 }, (short) 0);
+    head_block.add(ROW_WEB01, base_time + Const.MAX_TIMESPAN,
+        new byte[] { 4 }, (short) 0);
+    assertEquals(2, head_block.numSeries());
+
+    final TreeMap<byte[], Span> spans = newSpans();
+    assertEquals(3, head_block.fillSpans(METRIC, base_time, -1, null, spans));
+    assertEquals(2, spans.size());
+    final Span span = spans.firstEntry().getValue();
+    assertEquals(3, span.size());
+    long value = 1;
+    for (final DataPoint dp : span) {
+      assertEquals(value == 3 ? 4 : value, dp.longValue());
+      value++;
+    }
+    assertEquals(base_time + Const.MAX_TIMESPAN,
+        span.timestamp(2) / 1000);
+  }
+
+  @Test
+  public void fillSpansOutOfOrderAndDuplicates() throws Exception {
+    head_block.add(ROW_WEB01, base_time + 60, new byte[] { 3 }, (short) 0);
+    head_block.add(ROW_WEB01, base_time, new byte[] { 1 }, (short) 0);
+    head_block.add(ROW_WEB01, base_time + 30, new byte[] { 9 }, (short) 0);
+    head_block.add(ROW_WEB01, base_time + 30, new byte[] { 2 }, (short) 0);
+
+    final TreeMap<byte[], Span> spans = newSpans();
+    assertEquals(1, head_block.fillSpans(METRIC, base_time, -1, null, spans));
+    final Span span = spans.firstEntry().getValue();
+    assertEquals(3, span.size());
+    long value = 1;
+    for (final DataPoint dp : span) {
+      assertEquals(value++, dp.longValue());
+    }
+  }
+
+  @Test
+  public void fillSpansMixedMsAndFloats() throws Exception {
+    head_block.add(ROW_WEB01, base_time, new byte[] { 1 }, (short) 0);
+    head_block.add(ROW_WEB01, base_time * 1000 + 500,
+        Bytes.fromInt(Float.floatToRawIntBits(2.5F)),
+        (short) (Const.FLAG_FLOAT | 0x3));
+
+    final TreeMap<byte[], Span> spans = newSpans();
+    assertEquals(1, head_block.fillSpans(METRIC, base_time, -1, null, spans));
+    final Span span = spans.firstEntry().getValue();
+    assertEquals(2, span.size());
+    final SeekableView it = span.iterator();
+    DataPoint dp = it.next();
+    assertEquals(base_time * 1000, dp.timestamp());
+    assertEquals(1, dp.longValue());
+    dp = it.next();
+    assertEquals(base_time * 1000 + 500, dp.timestamp());
+    assertEquals(2.5, dp.doubleValue(), 0.0001);
+  }
+
+  @Test
+  public void fillSpansTimeRange() throws Exception {
+    head_block.add(ROW_WEB01, base_time, new byte[] { 1 }, (short) 0);
+    head_block.add(ROW_WEB01, base_time + Const.MAX_TIMESPAN,
+        new byte[] { 2 }, (short) 0);
+
+    final TreeMap<byte[], Span> spans = newSpans();
+    assertEquals(1, head_block.fillSpans(METRIC, base_time + 1, -1, null,
+        spans));
+    assertEquals(2, spans.firstEntry().getValue().longValue(0));
+
+    spans.clear();
+    assertEquals(1, head_block.fillSpans(METRIC, base_time, base_time + 60,
+        null, spans));
+    assertEquals(1, spans.firstEntry().getValue().longValue(0));
+  }
+
+  @Test
+  public void fillSpansFilter() throws Exception {
+    head_block.add(ROW_WEB01, base_time, new byte[] { 1 }, (short) 0);
+    head_block.add(ROW_WEB02, base_time, new byte[] { 2 }, (short) 0);
+
+    final TreeMap<byte[], Span> spans = newSpans();
+    final Pattern filter = Pattern.compile(
+        "(?s)^.{7}(?:.{6})*\\Q\000\000\001\000\000\002\\E(?:.{6})*$");
+    assertEquals(1, head_block.fillSpans(METRIC, base_time, -1, filter,
+        spans));
+    assertEquals(2, spans.firstEntry().getValue().longValue(0));
+  }
+
+  @Test
+  public void fillSpansOtherMetric() throws Exception {
+    head_block.add(ROW_WEB01, base_time, new byte[] { 1 }, (short) 0);
+
+    final TreeMap<byte[], Span> spans = newSpans();
+    assertEquals(0, head_block.fillSpans(new byte[] { 0, 0, 2 }, base_time,
+        -1, null, spans));
+    assertTrue(spans.isEmpty());
+  }
+
+  @Test
+  public void evict() throws Exception {
+    head_block.add(ROW_WEB01, base_time, new byte[] { 1 }, (short) 0);
+    Whitebox.setInternalState(head_block, "window_ms", 1L);
+    head_block.evict();
+    assertEquals(0, head_block.numSeries());
+  }
+
+  @Test
+  public void queryFromHeadBlock() throws Exception {
+    final MockBase storage = new MockBase(tsdb, client, true, true, true, true, true);
+    when(metrics.getId("sys.cpu.user")).thenReturn(METRIC);
+    when(metrics.getIdAsync("sys.cpu.user"))
+      .thenReturn(Deferred.fromResult(METRIC));
+    when(metrics.getNameAsync(METRIC))
+      .thenReturn(Deferred.fromResult("sys.cpu.user"));
+    when(tag_names.getId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_names.getOrCreateId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_names.getIdAsync("host"))
+      .thenReturn(Deferred.fromResult(new byte[] { 0, 0, 1 }));
+    when(tag_names.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenReturn(Deferred.fromResult("host"));
+    when(tag_values.getId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getOrCreateId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getIdAsync("web01"))
+      .thenReturn(Deferred.fromResult(new byte[] { 0, 0, 1 }));
+    when(tag_values.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenReturn(Deferred.fromResult("web01"));
+
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final long start = head_block.coverageStart() + 3 * Const.MAX_TIMESPAN;
+    for (int i = 1; i <= 10; i++) {
+      tsdb.addPoint("sys.cpu.user", start + i * 60, i, tags)
+        .joinUninterruptibly();
+    }
+    // anything still in HBase would be returned twice
+    storage.flushStorage();
+
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(start);
+    query.setEndTime(start + 3600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(10, dps[0].size());
+    int value = 1;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(value++, dp.longValue());
+    }
+  }
+
+  private TreeMap<byte[], Span> newSpans() {
+    return new TreeMap<byte[], Span>(new TsdbQuery.SpanCmp((short) 3));
+  }
+}
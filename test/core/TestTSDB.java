@@ -15,12 +15,17 @@ package net.opentsdb.core;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 
+import java.io.File;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -29,6 +34,7 @@ import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
+import net.opentsdb.uid.UniqueIdSnapshot;
 import net.opentsdb.utils.Config;
 
 import org.hbase.async.AtomicIncrementRequest;
@@ -39,7 +45,9 @@ import org.hbase.async.KeyValue;
 import org.hbase.async.PutRequest;
 import org.hbase.async.Scanner;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -67,6 +75,9 @@ public final class TestTSDB {
   private UniqueId tag_values = mock(UniqueId.class);
   private CompactionQueue compactionq = mock(CompactionQueue.class);
   private MockBase storage;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
   
   @Before
   public void before() throws Exception {
@@ -870,6 +881,78 @@ public final class TestTSDB {
     assertEquals(42, value[0]);
   }
   
+  @Test
+  public void loadUidCachesSuggestPartialSnapshot() throws Exception {
+    final TSDB tsdb = setupSuggestSnapshot();
+    // the preload fails, so the snapshot is all we have
+    final Scanner preload_scanner = mock(Scanner.class);
+    when(preload_scanner.nextRows()).thenReturn(
+        Deferred.<ArrayList<ArrayList<KeyValue>>>fromError(
+            new RuntimeException("Boo!")));
+    final Scanner suggest_scanner = mock(Scanner.class);
+    when(suggest_scanner.nextRows())
+      .thenReturn(Deferred.fromResult(metricRows("sys.cpu.nice", 
+          "sys.cpu.user")))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    when(client.newScanner((byte[])any()))
+      .thenReturn(preload_scanner, suggest_scanner);
+
+    assertEquals(0L, (long)tsdb.loadUidCaches().joinUninterruptibly());
+    assertEquals(Arrays.asList("sys.cpu.nice", "sys.cpu.user"), 
+        tsdb.suggestMetrics("sys"));
+    verify(client, times(2)).newScanner((byte[])any());
+  }
+
+  @Test
+  public void loadUidCachesSuggestSnapshotAndPreload() throws Exception {
+    final TSDB tsdb = setupSuggestSnapshot();
+    final Scanner preload_scanner = mock(Scanner.class);
+    when(preload_scanner.nextRows())
+      .thenReturn(Deferred.fromResult(metricRows("sys.cpu.nice")))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    when(client.newScanner((byte[])any())).thenReturn(preload_scanner);
+
+    assertEquals(1L, (long)tsdb.loadUidCaches().joinUninterruptibly());
+    assertEquals(Arrays.asList("sys.cpu.nice", "sys.cpu.user"), 
+        tsdb.suggestMetrics("sys"));
+    // only the preload scanned the table
+    verify(client, times(1)).newScanner((byte[])any());
+  }
+  
+  /**
+   * Writes a UID cache snapshot holding a single metric and returns a new TSDB
+   * loading it, with in memory suggestions enabled.
+   */
+  private TSDB setupSuggestSnapshot() throws Exception {
+    final File snapshot = folder.newFile("uid.snapshot");
+    final UniqueId cached = new UniqueId(client, "tsdb-uid".getBytes(), 
+        "metrics", 3);
+    Whitebox.invokeMethod(cached, "cacheMapping", "sys.cpu.user", 
+        new byte[] { 0, 0, 2 });
+    UniqueIdSnapshot.write(snapshot, cached);
+
+    config.overrideConfig("tsd.core.uid.cache.snapshot_file", 
+        snapshot.getPath());
+    config.overrideConfig("tsd.core.uid.cache.preload_scanners", "1");
+    config.overrideConfig("tsd.core.uid.suggest.in_memory", "true");
+    return new TSDB(config);
+  }
+
+  /** @return the rows of the UID table assigning IDs 1, 2... to metrics */
+  private static ArrayList<ArrayList<KeyValue>> metricRows(
+      final String... names) {
+    final ArrayList<ArrayList<KeyValue>> rows = 
+      new ArrayList<ArrayList<KeyValue>>(names.length);
+    byte id = 1;
+    for (final String name : names) {
+      final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+      row.add(new KeyValue(name.getBytes(), "id".getBytes(), 
+          "metrics".getBytes(), new byte[] { 0, 0, id++ }));
+      rows.add(row);
+    }
+    return rows;
+  }
+
   /**
    * Helper to mock the UID caches with valid responses
    */
@@ -18,6 +18,8 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
@@ -28,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
@@ -311,6 +314,80 @@ public final class TestTsdbQuery {
     assertEquals(300, dps[0].aggregatedSize());
   }
   
+  @Test
+  public void runLongSingleTSWithStats() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final QueryStats stats = new QueryStats();
+    query.setQueryStats(stats);
+
+    final DataPoints[] dps = query.run();
+    
+    assertEquals(1, dps.length);
+    assertEquals(3, stats.getCount("rows"));
+    assertEquals(300, stats.getCount("cells"));
+    assertTrue(stats.getCount("bytes") > 0);
+    assertEquals(1, stats.getCount("spans"));
+    assertEquals(1, stats.getCount("groups"));
+    assertTrue(stats.getTime("scanTime") > 0);
+    assertTrue(stats.toMap().containsKey("decodeTime"));
+  }
+  
+  @Test (expected = QueryLimitExceededException.class)
+  public void runLongSingleTSRowLimit() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    Whitebox.setInternalState(tsdb, "query_max_rows", 2L);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.run();
+  }
+  
+  @Test (expected = QueryLimitExceededException.class)
+  public void runLongSingleTSDataPointLimit() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    Whitebox.setInternalState(tsdb, "query_max_dps", 299L);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.run();
+  }
+  
+  @Test (expected = QueryLimitExceededException.class)
+  public void runLongSingleTSByteLimit() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    Whitebox.setInternalState(tsdb, "query_max_bytes", 100L);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.run();
+  }
+  
+  @Test
+  public void runLongSingleTSWithinLimits() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    Whitebox.setInternalState(tsdb, "query_max_rows", 3L);
+    Whitebox.setInternalState(tsdb, "query_max_dps", 300L);
+    Whitebox.setInternalState(tsdb, "query_max_time", 60000L);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+  
   @Test
   public void runLongSingleTSMs() throws Exception {
     storeLongTimeSeriesMs();
@@ -368,6 +445,111 @@ public final class TestTsdbQuery {
     assertEquals(300, dps[0].size());
   }
   
+  @Test
+  public void runQueriesSharedScan() throws Exception {
+    mockFreshTagIds();
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    
+    final TsdbQuery group = new TsdbQuery(tsdb);
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    group.setStartTime(1356998400);
+    group.setEndTime(1357041600);
+    group.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    
+    final TsdbQuery other = new TsdbQuery(tsdb);
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "web02");
+    other.setStartTime(1356998400);
+    other.setEndTime(1357041600);
+    other.setTimeSeries("sys.cpu.nice", tags, Aggregators.SUM, false);
+    
+    final ArrayList<DataPoints[]> results = tsdb.runQueries(
+        new Query[] { query, group, other }).joinUninterruptibly();
+    assertEquals(3, results.size());
+    // one scan for sys.cpu.user and one for sys.cpu.nice
+    verify(client, times(2)).newScanner(tsdb.table);
+    
+    assertEquals(1, results.get(0).length);
+    assertEquals("web01", results.get(0)[0].getTags().get("host"));
+    int value = 1;
+    for (DataPoint dp : results.get(0)[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, results.get(0)[0].size());
+    
+    assertEquals(2, results.get(1).length);
+    assertEquals("web01", results.get(1)[0].getTags().get("host"));
+    assertEquals("web02", results.get(1)[1].getTags().get("host"));
+    value = 300;
+    for (DataPoint dp : results.get(1)[1]) {
+      assertEquals(value, dp.longValue());
+      value--;
+    }
+    
+    assertEquals(1, results.get(2).length);
+    assertEquals("sys.cpu.nice", results.get(2)[0].metricName());
+    assertEquals("web02", results.get(2)[0].getTags().get("host"));
+  }
+  
+  @Test
+  public void runQueriesSharedScanUnionFilter() throws Exception {
+    mockFreshTagIds();
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    
+    final TsdbQuery web02 = new TsdbQuery(tsdb);
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "web02");
+    web02.setStartTime(1356998400);
+    web02.setEndTime(1357041600);
+    web02.setTimeSeries("sys.cpu.user", tags, Aggregators.MAX, false);
+    
+    final ArrayList<DataPoints[]> results = tsdb.runQueries(
+        new Query[] { query, web02 }).joinUninterruptibly();
+    verify(client, times(1)).newScanner(tsdb.table);
+    
+    assertEquals(1, results.get(0).length);
+    assertEquals("web01", results.get(0)[0].getTags().get("host"));
+    assertEquals(1, results.get(0)[0].longValue(0));
+    assertEquals(1, results.get(1).length);
+    assertEquals("web02", results.get(1)[0].getTags().get("host"));
+    assertEquals(300, results.get(1)[0].longValue(0));
+  }
+  
+  @Test
+  public void runQueriesNoData() throws Exception {
+    mockFreshTagIds();
+    setQueryStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    
+    final TsdbQuery group = new TsdbQuery(tsdb);
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    group.setStartTime(1356998400);
+    group.setEndTime(1357041600);
+    group.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    
+    final ArrayList<DataPoints[]> results = tsdb.runQueries(
+        new Query[] { query, group }).joinUninterruptibly();
+    assertEquals(0, results.get(0).length);
+    assertEquals(0, results.get(1).length);
+  }
+  
   @Test
   public void runLongTwoAggSumMs() throws Exception {
     storeLongTimeSeriesMs();
@@ -2509,6 +2691,25 @@ public final class TestTsdbQuery {
   // ----------------- //
   
   @SuppressWarnings("unchecked")
+  /**
+   * Makes the tag lookups return a new Deferred each time, since running the
+   * callbacks of several queries on the same Deferred mixes up their results.
+   */
+  private void mockFreshTagIds() {
+    when(tag_names.getIdAsync("host")).thenAnswer(freshId(1));
+    when(tag_values.getIdAsync("web01")).thenAnswer(freshId(1));
+    when(tag_values.getIdAsync("web02")).thenAnswer(freshId(2));
+  }
+
+  /** @return an answer returning a new Deferred with the given UID */
+  private static Answer<Deferred<byte[]>> freshId(final int uid) {
+    return new Answer<Deferred<byte[]>>() {
+      public Deferred<byte[]> answer(final InvocationOnMock invocation) {
+        return Deferred.fromResult(new byte[] { 0, 0, (byte) uid });
+      }
+    };
+  }
+
   private void setQueryStorage() throws Exception {
     storage = new MockBase(tsdb, client, true, true, true, true, true);
     storage.setFamily("t".getBytes(MockBase.ASCII()));
@@ -0,0 +1,205 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+
+import javax.imageio.ImageIO;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public final class TestPngRenderer {
+
+  private static final long START = 1356998400L;
+
+  @BeforeClass
+  public static void beforeClass() {
+    System.setProperty("java.awt.headless", "true");
+  }
+
+  @Test
+  public void renderPng() throws Exception {
+    final Plot plot = new Plot(START, START + 3600);
+    plot.setDimensions((short) 400, (short) 300);
+    final HashMap<String, String> params = new HashMap<String, String>();
+    params.put("title", "\"My \\\"graph\\\"\"");
+    params.put("ylabel", "\"cpu\"");
+    params.put("yrange", "[0:]");
+    plot.setParams(params);
+    plot.add(series(new long[] { START - 60, START + 60, START + 120 },
+                    new double[] { 5, 10, 42.5 }), "");
+    plot.add(series(new long[] { START + 60 }, new double[] { 1000 }),
+             "axis x1y2 with points lc rgb \"#00FF00\"");
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // The point before the start of the graph isn't counted.
+    assertEquals(3, plot.renderPng(out));
+    final BufferedImage image =
+      ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(400, image.getWidth());
+    assertEquals(300, image.getHeight());
+    assertEquals(Color.WHITE.getRGB(), image.getRGB(0, 0));
+  }
+
+  @Test
+  public void renderPngNoData() throws Exception {
+    final Plot plot = new Plot(START, START + 3600);
+    plot.setParams(new HashMap<String, String>());
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(0, plot.renderPng(out));
+    final BufferedImage image =
+      ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(1024, image.getWidth());
+    assertEquals(768, image.getHeight());
+  }
+
+  @Test
+  public void renderPngBackground() throws Exception {
+    final Plot plot = new Plot(START, START + 3600);
+    plot.setDimensions((short) 100, (short) 100);
+    final HashMap<String, String> params = new HashMap<String, String>();
+    params.put("bgcolor", "x102030");
+    params.put("logscale y", "");
+    params.put("key", null);
+    plot.setParams(params);
+    plot.add(series(new long[] { START, START + 60 }, new double[] { 0, 10 }),
+             "");
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(2, plot.renderPng(out));
+    final BufferedImage image =
+      ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(0xFF102030, image.getRGB(0, 0));
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void renderPngNaN() throws Exception {
+    final Plot plot = new Plot(START, START + 3600);
+    plot.setParams(new HashMap<String, String>());
+    plot.add(series(new long[] { START }, new double[] { Double.NaN }), "");
+    plot.renderPng(new ByteArrayOutputStream());
+  }
+
+  @Test
+  public void strftimeToJava() {
+    assertEquals("HH':'mm':'ss", PngRenderer.strftimeToJava("%H:%M:%S"));
+    assertEquals("EEE' 'dd' 'HH':'mm",
+                 PngRenderer.strftimeToJava("%a %d %H:%M"));
+    assertEquals("yyyy'/'MM'/'dd", PngRenderer.strftimeToJava("%Y/%m/%d"));
+    assertEquals("MMM' 'dd'%'", PngRenderer.strftimeToJava("%b %d%%"));
+    assertEquals("'it''s '", PngRenderer.strftimeToJava("it's %Q"));
+  }
+
+  @Test
+  public void parseRange() {
+    double[] range = PngRenderer.parseRange("[0:100]");
+    assertEquals(0, range[0], 0);
+    assertEquals(100, range[1], 0);
+    range = PngRenderer.parseRange("[:1.5]");
+    assertTrue(Double.isNaN(range[0]));
+    assertEquals(1.5, range[1], 0);
+    range = PngRenderer.parseRange("[-5:*]");
+    assertEquals(-5, range[0], 0);
+    assertTrue(Double.isNaN(range[1]));
+    range = PngRenderer.parseRange("garbage");
+    assertTrue(Double.isNaN(range[0]));
+    assertTrue(Double.isNaN(range[1]));
+  }
+
+  @Test
+  public void parseColor() {
+    assertEquals(new Color(0x42BEE7),
+                 PngRenderer.parseColor("x42BEE7", Color.BLACK));
+    assertEquals(new Color(0x42BEE7),
+                 PngRenderer.parseColor("#42BEE7", Color.BLACK));
+    assertEquals(Color.RED, PngRenderer.parseColor("red", Color.BLACK));
+    assertEquals(Color.BLACK, PngRenderer.parseColor("xZZZZZZ", Color.BLACK));
+    assertEquals(Color.BLACK, PngRenderer.parseColor(null, Color.BLACK));
+  }
+
+  @Test
+  public void unquote() {
+    assertEquals("a \"b\" \\ c", PngRenderer.unquote("\"a \\\"b\\\" \\\\ c\""));
+    assertEquals("\u00e9", PngRenderer.unquote("\"\\u00e9\""));
+    assertEquals("not quoted", PngRenderer.unquote("not quoted"));
+    assertNull(PngRenderer.unquote(null));
+  }
+
+  /** Mocks a series with the given timestamps (in seconds) and values. */
+  private static DataPoints series(final long[] timestamps,
+                                   final double[] values) {
+    final DataPoints dps = mock(DataPoints.class);
+    when(dps.metricName()).thenReturn("sys.cpu.user");
+    when(dps.getTags()).thenReturn(Collections.singletonMap("host", "web01"));
+    when(dps.iterator()).thenAnswer(new Answer<SeekableView>() {
+      public SeekableView answer(final InvocationOnMock invocation) {
+        return new ArrayView(timestamps, values);
+      }
+    });
+    return dps;
+  }
+
+  /** Iterates over arrays of timestamps and values. */
+  private static final class ArrayView implements SeekableView {
+    private final long[] timestamps;
+    private final double[] values;
+    private int index;
+
+    ArrayView(final long[] timestamps, final double[] values) {
+      this.timestamps = timestamps;
+      this.values = values;
+    }
+
+    public boolean hasNext() {
+      return index < timestamps.length;
+    }
+
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final DataPoint dp = mock(DataPoint.class);
+      when(dp.timestamp()).thenReturn(timestamps[index] * 1000);
+      when(dp.isInteger()).thenReturn(false);
+      when(dp.doubleValue()).thenReturn(values[index]);
+      index++;
+      return dp;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void seek(final long timestamp) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -72,6 +72,8 @@ public final class TestTSMeta {
     when(config.getString("tsd.storage.hbase.uid_table")).thenReturn("tsdb-uid");
     when(config.getString("tsd.storage.hbase.meta_table")).thenReturn("tsdb-meta");
     when(config.getString("tsd.storage.hbase.tree_table")).thenReturn("tsdb-tree");
+    when(config.getString("tsd.core.uid.cache.type")).thenReturn("heap");
+    when(config.getInt("tsd.core.uid.assign_block_size")).thenReturn(1);
     when(config.enable_tsuid_incrementing()).thenReturn(true);
     when(config.enable_realtime_ts()).thenReturn(true);
     
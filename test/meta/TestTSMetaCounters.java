@@ -0,0 +1,184 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HBaseClient.class})
+public final class TestTSMetaCounters {
+  private static final byte[] TSUID_A = { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID_B = { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+  private static final byte[] META_TABLE = { 'm', 'e', 't', 'a' };
+
+  private TSDB tsdb;
+  private HBaseClient client;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = PowerMockito.mock(TSDB.class);
+    client = PowerMockito.mock(HBaseClient.class);
+    final Config config = PowerMockito.mock(Config.class);
+    when(tsdb.getClient()).thenReturn(client);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.metaTable()).thenReturn(META_TABLE);
+    when(client.bufferAtomicIncrement((AtomicIncrementRequest) any()))
+      .thenReturn(Deferred.fromResult(42L));
+    when(client.put((PutRequest) any()))
+      .thenReturn(Deferred.fromResult(null));
+  }
+
+  @Test
+  public void incrementFirstSightingOnly() throws Exception {
+    final TSMetaCounters counters = new TSMetaCounters(tsdb, 10, 3600000, false);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_A);
+    assertEquals(1, counters.size());
+    // Only the first data point went through the meta path.
+    verify(client, times(1))
+      .bufferAtomicIncrement((AtomicIncrementRequest) any());
+  }
+
+  @Test
+  public void flush() throws Exception {
+    final TSMetaCounters counters = new TSMetaCounters(tsdb, 10, 3600000, false);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_B);
+    counters.flush().joinUninterruptibly();
+
+    final ArgumentCaptor<AtomicIncrementRequest> captor =
+      ArgumentCaptor.forClass(AtomicIncrementRequest.class);
+    verify(client, times(3)).bufferAtomicIncrement(captor.capture());
+    final List<AtomicIncrementRequest> increments = captor.getAllValues();
+    final AtomicIncrementRequest flushed = increments.get(2);
+    assertArrayEquals(TSUID_A, flushed.key());
+    assertArrayEquals(META_TABLE, flushed.table());
+    assertArrayEquals(TSMeta.COUNTER_QUALIFIER(), flushed.qualifier());
+    assertEquals(2, flushed.getAmount());
+    // The TSUIDs are still known.
+    assertEquals(2, counters.size());
+  }
+
+  @Test
+  public void flushNothingToSend() throws Exception {
+    final TSMetaCounters counters = new TSMetaCounters(tsdb, 10, 3600000, false);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_A);
+    counters.flush().joinUninterruptibly();
+    counters.flush().joinUninterruptibly();
+    verify(client, times(2))
+      .bufferAtomicIncrement((AtomicIncrementRequest) any());
+  }
+
+  @Test
+  public void full() throws Exception {
+    final TSMetaCounters counters = new TSMetaCounters(tsdb, 1, 3600000, false);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_B);
+    counters.increment(TSUID_B);
+    assertEquals(1, counters.size());
+    // B isn't remembered, all its data points go through the meta path.
+    verify(client, times(3))
+      .bufferAtomicIncrement((AtomicIncrementRequest) any());
+    // The full set is cleared on flush.
+    counters.flush().joinUninterruptibly();
+    assertEquals(0, counters.size());
+    counters.increment(TSUID_B);
+    counters.increment(TSUID_B);
+    assertEquals(1, counters.size());
+    verify(client, times(4))
+      .bufferAtomicIncrement((AtomicIncrementRequest) any());
+  }
+
+  @Test
+  public void trackingCoalesced() throws Exception {
+    final TSMetaCounters counters = new TSMetaCounters(tsdb, 10, 3600000, true);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_B);
+    // Nothing is written until the flush, not even the first sighting.
+    verify(client, never()).put((PutRequest) any());
+    counters.flush().joinUninterruptibly();
+
+    final ArgumentCaptor<PutRequest> captor =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(client, times(2)).put(captor.capture());
+    verify(client, never())
+      .bufferAtomicIncrement((AtomicIncrementRequest) any());
+    for (final PutRequest put : captor.getAllValues()) {
+      assertArrayEquals(META_TABLE, put.table());
+      assertArrayEquals(TSMeta.COUNTER_QUALIFIER(), put.qualifier());
+      assertArrayEquals(Bytes.fromLong(1), put.value());
+    }
+    // Series not written to since the last flush aren't put again.
+    counters.increment(TSUID_B);
+    counters.flush().joinUninterruptibly();
+    verify(client, times(3)).put(captor.capture());
+    assertArrayEquals(TSUID_B, captor.getValue().key());
+  }
+
+  @Test
+  public void trackingFull() throws Exception {
+    final TSMetaCounters counters = new TSMetaCounters(tsdb, 1, 3600000, true);
+    counters.increment(TSUID_A);
+    counters.increment(TSUID_B);
+    counters.increment(TSUID_B);
+    // B isn't remembered, all its data points are put right away.
+    verify(client, times(2)).put((PutRequest) any());
+    counters.flush().joinUninterruptibly();
+    verify(client, times(3)).put((PutRequest) any());
+    assertEquals(0, counters.size());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroMaxSize() throws Exception {
+    new TSMetaCounters(tsdb, 0, 1000, false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroFlushInterval() throws Exception {
+    new TSMetaCounters(tsdb, 10, 0, false);
+  }
+}
@@ -0,0 +1,289 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.search.SearchQuery.SearchType;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, HBaseClient.class, GetRequest.class, 
+  KeyValue.class, Scanner.class})
+public final class TestEmbeddedSearchPlugin {
+  private static byte[] NAME_FAMILY = "name".getBytes(MockBase.ASCII());
+  private EmbeddedSearchPlugin search;
+  
+  @Before
+  public void before() throws Exception {
+    search = new EmbeddedSearchPlugin();
+    search.indexTSMeta(buildMeta("000001000001000001", "sys.cpu.user", 
+        "host", "web01", "dc", "lga")).joinUninterruptibly();
+    search.indexTSMeta(buildMeta("000002000001000002", "sys.cpu.system", 
+        "host", "web02", "dc", "lga")).joinUninterruptibly();
+    search.indexTSMeta(buildMeta("000003000001000003", "sys.mem.free", 
+        "host", "db01", "dc", "sjc")).joinUninterruptibly();
+  }
+  
+  @Test
+  public void initializeLoadsMetaTable() throws Exception {
+    final HBaseClient client = mock(HBaseClient.class);
+    PowerMockito.whenNew(HBaseClient.class)
+      .withArguments(anyString(), anyString()).thenReturn(client);
+    final MockBase storage = new MockBase(new TSDB(new Config(false)), client, 
+        true, true, true, true, true);
+    storage.addColumn(new byte[] { 0, 0, 1 }, NAME_FAMILY,
+        "metrics".getBytes(MockBase.ASCII()),
+        "sys.cpu.0".getBytes(MockBase.ASCII()));
+    storage.addColumn(new byte[] { 0, 0, 1 }, NAME_FAMILY,
+        "tagk".getBytes(MockBase.ASCII()),
+        "host".getBytes(MockBase.ASCII()));
+    storage.addColumn(new byte[] { 0, 0, 1 }, NAME_FAMILY,
+        "tagv".getBytes(MockBase.ASCII()),
+        "web01".getBytes(MockBase.ASCII()));
+    storage.addColumn(new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 }, NAME_FAMILY,
+        "ts_meta".getBytes(MockBase.ASCII()),
+        ("{\"tsuid\":\"000001000001000001\",\"description\":\"Loaded\"}")
+        .getBytes(MockBase.ASCII()));
+    
+    search = new EmbeddedSearchPlugin();
+    search.initialize(storage.getTSDB());
+    for (int i = 0; i < 1000; i++) {
+      if (!query(SearchType.TSUIDS, "loaded").isEmpty()) {
+        break;
+      }
+      Thread.sleep(10);
+    }
+    assertEquals(Arrays.asList((Object)"000001000001000001"), 
+        query(SearchType.TSUIDS, "sys.cpu.0 host=web01"));
+    assertEquals(1, query(SearchType.UIDMETA, "web01").size());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void initializeNullTSDB() throws Exception {
+    search.initialize(null);
+  }
+  
+  @Test
+  public void queryMetricPrefix() throws Exception {
+    assertEquals(Arrays.asList((Object)"000001000001000001", 
+        "000002000001000002"), query(SearchType.TSUIDS, "sys.cpu.*"));
+  }
+  
+  @Test
+  public void queryTagConjunction() throws Exception {
+    assertEquals(Arrays.asList((Object)"000001000001000001"), 
+        query(SearchType.TSUIDS, "sys.* host=web* dc=lga host=*01"));
+  }
+  
+  @Test
+  public void queryCaseInsensitive() throws Exception {
+    assertEquals(Arrays.asList((Object)"000003000001000003"), 
+        query(SearchType.TSUIDS, "HOST=DB01"));
+  }
+  
+  @Test
+  public void queryField() throws Exception {
+    assertEquals(2, query(SearchType.TSUIDS, "tagv:lga").size());
+    assertEquals(0, query(SearchType.TSUIDS, "metric:lga").size());
+  }
+  
+  @Test
+  public void queryCustom() throws Exception {
+    final TSMeta meta = buildMeta("000004000001000004", "sys.cpu.nice", 
+        "host", "web03", "dc", "lga");
+    final HashMap<String, String> custom = new HashMap<String, String>();
+    custom.put("owner", "Ops");
+    meta.setCustom(custom);
+    search.indexTSMeta(meta).joinUninterruptibly();
+    assertEquals(Arrays.asList((Object)"000004000001000004"), 
+        query(SearchType.TSUIDS, "owner=ops"));
+  }
+  
+  @Test
+  public void queryDescription() throws Exception {
+    final TSMeta meta = buildMeta("000004000001000004", "sys.cpu.nice", 
+        "host", "web03", "dc", "lga");
+    meta.setDescription("Niced user processes");
+    search.indexTSMeta(meta).joinUninterruptibly();
+    assertEquals(Arrays.asList((Object)"000004000001000004"), 
+        query(SearchType.TSUIDS, "niced"));
+  }
+  
+  @Test
+  public void queryEmpty() throws Exception {
+    assertEquals(3, query(SearchType.TSUIDS, "").size());
+    assertEquals(3, query(SearchType.TSUIDS, "*").size());
+  }
+  
+  @Test
+  public void queryTSMeta() throws Exception {
+    final List<Object> results = query(SearchType.TSMETA, "host=db01");
+    assertEquals(1, results.size());
+    assertEquals("000003000001000003", ((TSMeta)results.get(0)).getTSUID());
+  }
+  
+  @Test
+  public void queryTSMetaSummary() throws Exception {
+    final List<Object> results = query(SearchType.TSMETA_SUMMARY, "host=db01");
+    assertEquals(1, results.size());
+    @SuppressWarnings("unchecked")
+    final Map<String, Object> summary = (Map<String, Object>)results.get(0);
+    assertEquals("000003000001000003", summary.get("tsuid"));
+    assertEquals("sys.mem.free", summary.get("metric"));
+    @SuppressWarnings("unchecked")
+    final Map<String, String> tags = (Map<String, String>)summary.get("tags");
+    assertEquals("db01", tags.get("host"));
+    assertEquals("sjc", tags.get("dc"));
+  }
+  
+  @Test
+  public void queryUIDMeta() throws Exception {
+    // the UIDMetas of the TSMetas were indexed as well
+    final List<Object> results = query(SearchType.UIDMETA, "web*");
+    assertEquals(2, results.size());
+    assertEquals("web01", ((UIDMeta)results.get(0)).getName());
+    assertEquals(3, query(SearchType.UIDMETA, "type:metric sys.*").size());
+  }
+  
+  @Test
+  public void queryAnnotation() throws Exception {
+    final Annotation note = new Annotation();
+    note.setTSUID("000001000001000001");
+    note.setStartTime(1388450562);
+    note.setDescription("Deployed version 42");
+    search.indexAnnotation(note).joinUninterruptibly();
+    assertEquals(1, query(SearchType.ANNOTATION, "deployed 42").size());
+    assertEquals(1, query(SearchType.ANNOTATION, "tsuid:000001000001000001")
+        .size());
+    search.deleteAnnotation(note).joinUninterruptibly();
+    assertEquals(0, query(SearchType.ANNOTATION, "deployed").size());
+  }
+  
+  @Test
+  public void queryPaging() throws Exception {
+    final SearchQuery query = new SearchQuery();
+    query.setType(SearchType.TSUIDS);
+    query.setQuery("sys.*");
+    query.setStartIndex(1);
+    query.setLimit(1);
+    search.executeQuery(query).joinUninterruptibly();
+    assertEquals(3, query.getTotalResults());
+    assertEquals(Arrays.asList((Object)"000002000001000002"), 
+        query.getResults());
+  }
+  
+  @Test
+  public void reindex() throws Exception {
+    search.indexTSMeta(buildMeta("000001000001000001", "sys.cpu.user", 
+        "host", "web04", "dc", "lga")).joinUninterruptibly();
+    assertEquals(0, query(SearchType.TSUIDS, "host=web01").size());
+    assertEquals(1, query(SearchType.TSUIDS, "host=web04").size());
+  }
+  
+  @Test
+  public void deleteTSMeta() throws Exception {
+    search.deleteTSMeta("000001000001000001").joinUninterruptibly();
+    assertEquals(1, query(SearchType.TSUIDS, "sys.cpu.*").size());
+  }
+  
+  @Test
+  public void indexTSMetaBatch() throws Exception {
+    search.indexTSMetaBatch(Arrays.asList(
+        buildMeta("000004000001000004", "sys.disk.free", "host", "db02", 
+            "dc", "sjc"),
+        buildMeta("000005000001000005", "sys.disk.used", "host", "db02", 
+            "dc", "sjc"))).joinUninterruptibly();
+    assertEquals(2, query(SearchType.TSUIDS, "sys.disk.*").size());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void indexTSMetaNull() throws Exception {
+    search.indexTSMeta(null).joinUninterruptibly();
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void executeQueryNull() throws Exception {
+    search.executeQuery(null).joinUninterruptibly();
+  }
+  
+  @Test
+  public void parseQuery() throws Exception {
+    final List<List<String>> clauses = EmbeddedSearchPlugin.parseQuery(
+        " Host=Web01  tagk:dc ", SearchType.TSMETA);
+    assertEquals(2, clauses.size());
+    assertEquals(Arrays.asList("tag:host=web01", "custom:host=web01"), 
+        clauses.get(0));
+    assertEquals(Arrays.asList("tagk:dc"), clauses.get(1));
+    assertTrue(EmbeddedSearchPlugin.parseQuery(null, SearchType.TSMETA)
+        .isEmpty());
+  }
+  
+  private List<Object> query(final SearchType type, final String terms) 
+    throws Exception {
+    final SearchQuery query = new SearchQuery();
+    query.setType(type);
+    query.setQuery(terms);
+    return search.executeQuery(query).joinUninterruptibly().getResults();
+  }
+  
+  /** Builds a TSMeta with its metric and tag UIDMetas. */
+  private static TSMeta buildMeta(final String tsuid, final String metric, 
+      final String... tags) throws Exception {
+    final TSMeta meta = new TSMeta(tsuid);
+    final Field metric_field = TSMeta.class.getDeclaredField("metric");
+    metric_field.setAccessible(true);
+    metric_field.set(meta, new UIDMeta(UniqueIdType.METRIC, 
+        new byte[] { 0, 0, (byte) tsuid.charAt(5) }, metric));
+    final ArrayList<UIDMeta> uids = new ArrayList<UIDMeta>(tags.length);
+    for (int i = 0; i < tags.length; i++) {
+      uids.add(new UIDMeta(i % 2 == 0 ? UniqueIdType.TAGK : UniqueIdType.TAGV,
+          new byte[] { 0, (byte) i, (byte) tags[i].hashCode() }, tags[i]));
+    }
+    final Field tags_field = TSMeta.class.getDeclaredField("tags");
+    tags_field.setAccessible(true);
+    tags_field.set(meta, uids);
+    return meta;
+  }
+}
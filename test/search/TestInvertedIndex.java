@@ -0,0 +1,130 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestInvertedIndex {
+  private InvertedIndex<String> index;
+  
+  @Before
+  public void before() {
+    index = new InvertedIndex<String>();
+    index.put("1", "one", terms("metric:sys.cpu.user", "tag:host=web01"));
+    index.put("2", "two", terms("metric:sys.cpu.system", "tag:host=web02"));
+    index.put("3", "three", terms("metric:sys.mem.free", "tag:host=web01"));
+  }
+  
+  @Test
+  public void searchExact() throws Exception {
+    assertEquals(Arrays.asList("1"), 
+        new ArrayList<String>(index.search(query("metric:sys.cpu.user"))));
+  }
+  
+  @Test
+  public void searchPrefix() throws Exception {
+    assertEquals(Arrays.asList("1", "2"), 
+        new ArrayList<String>(index.search(query("metric:sys.cpu.*"))));
+  }
+  
+  @Test
+  public void searchWildcard() throws Exception {
+    assertEquals(Arrays.asList("2"), 
+        new ArrayList<String>(index.search(query("metric:sys.*.sys*"))));
+  }
+  
+  @Test
+  public void searchWildcardOnly() throws Exception {
+    assertEquals(3, index.search(query("*")).size());
+  }
+  
+  @Test
+  public void searchConjunction() throws Exception {
+    assertEquals(Arrays.asList("1"), new ArrayList<String>(
+        index.search(query("metric:sys.cpu.*", "tag:host=web01"))));
+  }
+  
+  @Test
+  public void searchDisjunction() throws Exception {
+    final List<List<String>> clauses = new ArrayList<List<String>>();
+    clauses.add(Arrays.asList("metric:sys.mem.free", "tag:host=web02"));
+    assertEquals(Arrays.asList("2", "3"), 
+        new ArrayList<String>(index.search(clauses)));
+  }
+  
+  @Test
+  public void searchNoClauses() throws Exception {
+    assertEquals(3, index.search(new ArrayList<List<String>>()).size());
+  }
+  
+  @Test
+  public void searchNoMatch() throws Exception {
+    assertTrue(index.search(query("metric:nope*")).isEmpty());
+    assertTrue(index.search(query("metric:sys.cpu.*", "tag:host=web03"))
+        .isEmpty());
+  }
+  
+  @Test
+  public void putReplaces() throws Exception {
+    index.put("1", "uno", terms("metric:sys.cpu.idle"));
+    assertEquals(3, index.size());
+    assertTrue(index.search(query("metric:sys.cpu.user")).isEmpty());
+    assertTrue(index.search(query("tag:host=web01")).contains("3"));
+    assertFalse(index.search(query("tag:host=web01")).contains("1"));
+    assertEquals(Arrays.asList("uno"), index.get(Arrays.asList("1")));
+  }
+  
+  @Test
+  public void remove() throws Exception {
+    assertTrue(index.remove("2"));
+    assertFalse(index.remove("2"));
+    assertFalse(index.contains("2"));
+    assertEquals(2, index.size());
+    assertTrue(index.search(query("tag:host=web02")).isEmpty());
+  }
+  
+  @Test
+  public void removeCleansUpTerms() throws Exception {
+    assertEquals(5, index.terms());
+    index.remove("2");
+    assertEquals(3, index.terms());
+  }
+  
+  @Test
+  public void get() throws Exception {
+    assertEquals(Arrays.asList("three", "one"), 
+        index.get(Arrays.asList("3", "4", "1")));
+  }
+  
+  private static HashSet<String> terms(final String... terms) {
+    return new HashSet<String>(Arrays.asList(terms));
+  }
+  
+  private static List<List<String>> query(final String... patterns) {
+    final List<List<String>> clauses = new ArrayList<List<String>>();
+    for (final String pattern : patterns) {
+      clauses.add(Arrays.asList(pattern));
+    }
+    return clauses;
+  }
+}
@@ -0,0 +1,154 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.stumbleupon.async.Deferred;
+
+public final class TestSearchIndexBuffer {
+  private SearchPlugin search = mock(SearchPlugin.class);
+  
+  @Before
+  public void before() {
+    when(search.indexTSMetaBatch(anyListOf(TSMeta.class)))
+      .thenReturn(Deferred.fromResult((Object)null));
+    when(search.indexUIDMetaBatch(anyListOf(UIDMeta.class)))
+      .thenReturn(Deferred.fromResult((Object)null));
+    when(search.indexAnnotationBatch(anyListOf(Annotation.class)))
+      .thenReturn(Deferred.fromResult((Object)null));
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test
+  public void flush() throws Exception {
+    final SearchIndexBuffer buffer = new SearchIndexBuffer(search, 100, 60000);
+    buffer.indexTSMeta(new TSMeta("000001000001000001"));
+    buffer.indexTSMeta(new TSMeta("000001000001000002"));
+    buffer.indexUIDMeta(new UIDMeta(UniqueIdType.METRIC, "000001"));
+    buffer.indexAnnotation(buildAnnotation("000001000001000001", 1388450562));
+    assertEquals(4, buffer.size());
+    verify(search, never()).indexTSMetaBatch(anyListOf(TSMeta.class));
+    
+    buffer.flush().joinUninterruptibly();
+    assertEquals(0, buffer.size());
+    final ArgumentCaptor<List> metas = ArgumentCaptor.forClass(List.class);
+    verify(search).indexTSMetaBatch(metas.capture());
+    assertEquals(2, metas.getValue().size());
+    verify(search).indexUIDMetaBatch(anyListOf(UIDMeta.class));
+    verify(search).indexAnnotationBatch(anyListOf(Annotation.class));
+  }
+  
+  @Test
+  public void flushEmpty() throws Exception {
+    final SearchIndexBuffer buffer = new SearchIndexBuffer(search, 100, 60000);
+    buffer.flush().joinUninterruptibly();
+    verify(search, never()).indexTSMetaBatch(anyListOf(TSMeta.class));
+    verify(search, never()).indexUIDMetaBatch(anyListOf(UIDMeta.class));
+    verify(search, never()).indexAnnotationBatch(anyListOf(Annotation.class));
+  }
+  
+  @Test
+  public void flushWhenFull() throws Exception {
+    final SearchIndexBuffer buffer = new SearchIndexBuffer(search, 2, 60000);
+    buffer.indexTSMeta(new TSMeta("000001000001000001"));
+    verify(search, never()).indexTSMetaBatch(anyListOf(TSMeta.class));
+    buffer.indexUIDMeta(new UIDMeta(UniqueIdType.METRIC, "000001"));
+    verify(search, times(1)).indexTSMetaBatch(anyListOf(TSMeta.class));
+    verify(search, times(1)).indexUIDMetaBatch(anyListOf(UIDMeta.class));
+    assertEquals(0, buffer.size());
+  }
+  
+  @Test
+  public void flushPeriodically() throws Exception {
+    final SearchIndexBuffer buffer = new SearchIndexBuffer(search, 100, 10);
+    buffer.indexTSMeta(new TSMeta("000001000001000001"));
+    verify(search, timeout(10000)).indexTSMetaBatch(anyListOf(TSMeta.class));
+    assertEquals(0, buffer.size());
+  }
+  
+  @Test
+  public void indexSameObjectTwice() throws Exception {
+    final SearchIndexBuffer buffer = new SearchIndexBuffer(search, 100, 60000);
+    buffer.indexTSMeta(new TSMeta("000001000001000001"));
+    buffer.indexTSMeta(new TSMeta("000001000001000001"));
+    buffer.indexUIDMeta(new UIDMeta(UniqueIdType.METRIC, "000001"));
+    buffer.indexUIDMeta(new UIDMeta(UniqueIdType.METRIC, "000001"));
+    buffer.indexUIDMeta(new UIDMeta(UniqueIdType.TAGK, "000001"));
+    buffer.indexAnnotation(buildAnnotation("000001000001000001", 1388450562));
+    buffer.indexAnnotation(buildAnnotation("000001000001000001", 1388450562));
+    buffer.indexAnnotation(buildAnnotation("000001000001000001", 1388450563));
+    assertEquals(5, buffer.size());
+  }
+  
+  @Test
+  public void deleteBuffered() throws Exception {
+    final SearchIndexBuffer buffer = new SearchIndexBuffer(search, 100, 60000);
+    final UIDMeta uid_meta = new UIDMeta(UniqueIdType.METRIC, "000001");
+    final Annotation note = buildAnnotation("000001000001000001", 1388450562);
+    buffer.indexTSMeta(new TSMeta("000001000001000001"));
+    buffer.indexUIDMeta(uid_meta);
+    buffer.indexAnnotation(note);
+    buffer.deleteTSMeta("000001000001000001");
+    buffer.deleteUIDMeta(uid_meta);
+    buffer.deleteAnnotation(note);
+    assertEquals(0, buffer.size());
+  }
+  
+  @Test
+  public void flushPluginError() throws Exception {
+    when(search.indexTSMetaBatch(anyListOf(TSMeta.class)))
+      .thenReturn(Deferred.fromError(new RuntimeException("Boo!")));
+    final SearchIndexBuffer buffer = new SearchIndexBuffer(search, 100, 60000);
+    buffer.indexTSMeta(new TSMeta("000001000001000001"));
+    // errors are logged, not passed on
+    buffer.flush().joinUninterruptibly();
+    assertEquals(0, buffer.size());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroBatchSize() throws Exception {
+    new SearchIndexBuffer(search, 0, 60000);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroFlushInterval() throws Exception {
+    new SearchIndexBuffer(search, 100, 0);
+  }
+  
+  private static Annotation buildAnnotation(final String tsuid, 
+      final long start_time) {
+    final Annotation note = new Annotation();
+    note.setTSUID(tsuid);
+    note.setStartTime(start_time);
+    return note;
+  }
+}
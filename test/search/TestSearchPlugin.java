@@ -17,6 +17,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.meta.TSMeta;
@@ -32,6 +35,7 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.DeferredGroupException;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({TSDB.class, Config.class})
@@ -112,6 +116,23 @@ public final class TestSearchPlugin {
     assertNotNull(search.indexTSMeta(null).addErrback(new Errback()));
   }
   
+  @Test
+  public void indexTSMetaBatch() throws Exception  {
+    search.indexTSMetaBatch(Arrays.asList(new TSMeta(), new TSMeta()))
+      .joinUninterruptibly();
+  }
+  
+  @Test
+  public void indexTSMetaBatchEmpty() throws Exception  {
+    search.indexTSMetaBatch(new ArrayList<TSMeta>()).joinUninterruptibly();
+  }
+  
+  @Test (expected = DeferredGroupException.class)
+  public void indexTSMetaBatchNull() throws Exception  {
+    search.indexTSMetaBatch(Arrays.asList(new TSMeta(), null))
+      .joinUninterruptibly();
+  }
+  
   @Test
   public void deleteTSMeta() throws Exception  {
     assertNotNull(search.deleteTSMeta("hello"));
@@ -142,6 +163,12 @@ public final class TestSearchPlugin {
     assertNotNull(search.indexUIDMeta(null).addErrback(new Errback()));
   }
   
+  @Test
+  public void indexUIDMetaBatch() throws Exception  {
+    search.indexUIDMetaBatch(Arrays.asList(new UIDMeta(), new UIDMeta()))
+      .joinUninterruptibly();
+  }
+  
   @Test
   public void deleteUIDMeta() throws Exception  {
     assertNotNull(search.deleteUIDMeta(new UIDMeta()));
@@ -172,6 +199,12 @@ public final class TestSearchPlugin {
     assertNotNull(search.indexAnnotation(null).addErrback(new Errback()));
   }
   
+  @Test
+  public void indexAnnotationBatch() throws Exception {
+    search.indexAnnotationBatch(Arrays.asList(new Annotation(), 
+        new Annotation())).joinUninterruptibly();
+  }
+  
   @Test
   public void deleteAnnotation() throws Exception {
     assertNotNull(search.deleteAnnotation(new Annotation()));
@@ -0,0 +1,145 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class TestConcurrentHistogram {
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroMax() {
+    new ConcurrentHistogram(0, 5);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadPrecision() {
+    new ConcurrentHistogram(1000, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void addNegative() {
+    new ConcurrentHistogram(1000, 5).add(-1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void percentileZero() {
+    new ConcurrentHistogram(1000, 5).percentile(0);
+  }
+
+  @Test
+  public void percentileEmpty() {
+    final ConcurrentHistogram histo = new ConcurrentHistogram(1000, 5);
+    assertEquals(0, histo.percentile(50));
+    assertEquals(0, histo.percentile(99.9));
+  }
+
+  @Test
+  public void bucketsAreContiguous() {
+    final ConcurrentHistogram histo = new ConcurrentHistogram(100000, 3);
+    for (long value = 0; value <= 100000; value++) {
+      final int index = histo.bucketIndexFor(value);
+      assertTrue(histo.bucketLowValue(index) <= value);
+      assertTrue(histo.bucketHighValue(index) >= value);
+    }
+    assertEquals(histo.bucketIndexFor(100000) + 1, histo.buckets());
+  }
+
+  @Test
+  public void exactSmallValues() {
+    final ConcurrentHistogram histo = new ConcurrentHistogram(1000, 5);
+    for (int i = 0; i < 32; i++) {
+      histo.add(i);
+      assertEquals(1, histo.valueInBucket(i));
+    }
+    assertEquals(15, histo.percentile(50));
+    assertEquals(31, histo.percentile(100));
+  }
+
+  @Test
+  public void tailPercentiles() {
+    final ConcurrentHistogram histo = new ConcurrentHistogram(600000, 5);
+    for (int i = 1; i <= 10000; i++) {
+      histo.add(i);
+    }
+    assertEquals(10000, histo.count());
+    assertWithin(5000, histo.percentile(50));
+    assertWithin(9900, histo.percentile(99));
+    assertWithin(9990, histo.percentile(99.9));
+  }
+
+  @Test
+  public void overflow() {
+    final ConcurrentHistogram histo = new ConcurrentHistogram(1000, 5);
+    histo.add(5000);
+    assertEquals(1000, histo.percentile(100));
+  }
+
+  @Test
+  public void snapshotAndReset() {
+    final ConcurrentHistogram histo = new ConcurrentHistogram(1000, 5);
+    histo.add(10);
+    histo.add(20);
+    final ConcurrentHistogram snapshot = histo.snapshotAndReset();
+    assertEquals(2, snapshot.count());
+    assertEquals(20, snapshot.percentile(100));
+    assertEquals(0, histo.count());
+    histo.add(5);
+    assertEquals(1, histo.snapshot().count());
+    histo.reset();
+    assertEquals(0, histo.count());
+  }
+
+  @Test
+  public void toHistogram() {
+    final ConcurrentHistogram histo = new ConcurrentHistogram(600000, 5);
+    for (int i = 1; i <= 100; i++) {
+      histo.add(i);
+    }
+    histo.add(100000);
+    final Histogram copy = histo.toHistogram(16000, (short) 2, 100);
+    assertEquals(50, copy.percentile(50), 4);
+    assertEquals(100, copy.percentile(99), 8);
+    // values over the max of the copy are counted as infinite
+    assertEquals(Integer.MAX_VALUE, copy.percentile(100));
+    assertEquals(101, histo.count());
+  }
+
+  @Test
+  public void concurrentAdds() throws Exception {
+    final ConcurrentHistogram histo = new ConcurrentHistogram(1000, 5);
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            histo.add(j % 100);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(40000, histo.count());
+  }
+
+  /** Checks that a percentile is within the precision of the histogram. */
+  private static void assertWithin(final long expected, final long actual) {
+    assertTrue("expected ~" + expected + " but got " + actual,
+        Math.abs(actual - expected) <= expected / 16);
+  }
+}
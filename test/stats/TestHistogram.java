@@ -156,6 +156,16 @@ public final class TestHistogram extends TestCase {
     assertBucketEquals(histo, 5, 2);
   }
 
+  public void test_add_count() {
+    final Histogram histo = new Histogram(16, (short) 1, 5);
+    histo.add(4, 3);
+    assertBucketEquals(histo, 4, 3);
+    histo.add(42, 2);
+    assertBucketEquals(histo, 9, 2);
+    histo.add(4);
+    assertBucketEquals(histo, 4, 4);
+  }
+
   static void assertBucketEquals(final Histogram histo,
                                  final int bucket, final int expected) {
     int actual = histo.valueInBucket(bucket);
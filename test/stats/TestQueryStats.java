@@ -0,0 +1,66 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+public final class TestQueryStats {
+
+  @Test
+  public void empty() {
+    final QueryStats stats = new QueryStats();
+    assertEquals(0, stats.getTime("scanTime"));
+    assertEquals(0, stats.getCount("rows"));
+    assertTrue(stats.toMap().isEmpty());
+  }
+
+  @Test
+  public void addTime() {
+    final QueryStats stats = new QueryStats();
+    stats.addTime("scanTime", 1500000);
+    stats.addTime("scanTime", 500000);
+    assertEquals(2000000, stats.getTime("scanTime"));
+    assertEquals(2.0, stats.toMap().get("scanTime"));
+  }
+
+  @Test
+  public void addCount() {
+    final QueryStats stats = new QueryStats();
+    stats.addCount("rows", 3);
+    stats.addCount("rows", 4);
+    assertEquals(7, stats.getCount("rows"));
+    assertEquals(7L, stats.toMap().get("rows"));
+  }
+
+  @Test
+  public void toMapOrder() {
+    final QueryStats stats = new QueryStats();
+    stats.addCount("rows", 1);
+    stats.addTime("scanTime", 1);
+    stats.addCount("cells", 1);
+    stats.addTime("decodeTime", 1);
+    final Iterator<Map.Entry<String, Object>> it = 
+      stats.toMap().entrySet().iterator();
+    assertEquals("scanTime", it.next().getKey());
+    assertEquals("decodeTime", it.next().getKey());
+    assertEquals("rows", it.next().getKey());
+    assertEquals("cells", it.next().getKey());
+  }
+
+}
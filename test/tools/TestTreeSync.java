@@ -0,0 +1,71 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class TestTreeSync {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void checkpointResume() throws Exception {
+    final File file = new File(folder.getRoot(), "treesync.ckpt");
+    TreeSync.Checkpoint checkpoint = new TreeSync.Checkpoint(file, 100, 10);
+    assertFalse(checkpoint.isDone(1));
+    checkpoint.done(1, 11);
+    checkpoint.done(21, 31);
+    assertTrue(checkpoint.isDone(1));
+
+    // a new run with the same ranges skips the completed ones
+    checkpoint = new TreeSync.Checkpoint(file, 100, 10);
+    assertTrue(checkpoint.isDone(1));
+    assertFalse(checkpoint.isDone(11));
+    assertTrue(checkpoint.isDone(21));
+    checkpoint.done(11, 21);
+    checkpoint = new TreeSync.Checkpoint(file, 100, 10);
+    assertTrue(checkpoint.isDone(11));
+    assertTrue(checkpoint.isDone(21));
+  }
+
+  @Test
+  public void checkpointDifferentSync() throws Exception {
+    final File file = new File(folder.getRoot(), "treesync.ckpt");
+    TreeSync.Checkpoint checkpoint = new TreeSync.Checkpoint(file, 100, 10);
+    checkpoint.done(1, 11);
+    // new metrics were assigned since, the ranges don't line up anymore
+    checkpoint = new TreeSync.Checkpoint(file, 200, 10);
+    assertFalse(checkpoint.isDone(1));
+    checkpoint.done(1, 21);
+    checkpoint = new TreeSync.Checkpoint(file, 200, 10);
+    assertTrue(checkpoint.isDone(1));
+  }
+
+  @Test
+  public void checkpointDelete() throws Exception {
+    final File file = new File(folder.getRoot(), "treesync.ckpt");
+    final TreeSync.Checkpoint checkpoint = 
+      new TreeSync.Checkpoint(file, 100, 10);
+    assertTrue(file.exists());
+    checkpoint.delete();
+    assertFalse(file.exists());
+  }
+}
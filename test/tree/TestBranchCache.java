@@ -0,0 +1,79 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class TestBranchCache {
+
+  @Test
+  public void branches() throws Exception {
+    final BranchCache cache = new BranchCache(10);
+    assertFalse(cache.hasBranch("0001"));
+    cache.addBranch("0001");
+    assertTrue(cache.hasBranch("0001"));
+    cache.addBranch("0001");
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void leaves() throws Exception {
+    final BranchCache cache = new BranchCache(10);
+    final Leaf leaf = new Leaf("user", "000001000001000001");
+    assertFalse(cache.hasLeaf("0001", leaf));
+    cache.addLeaf("0001", leaf);
+    // adding a leaf remembers its branch too
+    assertTrue(cache.hasBranch("0001"));
+    assertTrue(cache.hasLeaf("0001", leaf));
+    assertFalse(cache.hasLeaf("0002", leaf));
+    // same name, different TSUID, i.e. a collision
+    assertFalse(cache.hasLeaf("0001", 
+        new Leaf("user", "000001000001000002")));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    final BranchCache cache = new BranchCache(4);
+    cache.addLeaf("0001", new Leaf("a", "000001000001000001"));
+    cache.addBranch("0002");
+    // touch 0001 so 0002 is the least recently used
+    assertTrue(cache.hasBranch("0001"));
+    cache.addBranch("0003");
+    assertEquals(4, cache.size());
+    cache.addBranch("0004");
+    assertFalse(cache.hasBranch("0002"));
+    assertTrue(cache.hasBranch("0001"));
+    assertEquals(4, cache.size());
+  }
+
+  @Test
+  public void evictKeepsMostRecentBranch() throws Exception {
+    final BranchCache cache = new BranchCache(2);
+    cache.addBranch("0001");
+    cache.addLeaf("0002", new Leaf("a", "000001000001000001"));
+    cache.addLeaf("0002", new Leaf("b", "000001000001000002"));
+    assertFalse(cache.hasBranch("0001"));
+    assertTrue(cache.hasBranch("0002"));
+    assertEquals(3, cache.size());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroSize() throws Exception {
+    new BranchCache(0);
+  }
+}
@@ -14,6 +14,7 @@ package net.opentsdb.tree;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 
@@ -137,6 +138,37 @@ public final class TestTreeBuilder {
     assertEquals("user", leaf.getDisplayName());
   }
   
+  @Test
+  public void processTimeseriesMetaBranchCache() throws Exception {
+    storage.getTSDB().getConfig().overrideConfig(
+        "tsd.core.tree.branch_cache.max_size", "1000");
+    try {
+      treebuilder.processTimeseriesMeta(meta, false).joinUninterruptibly();
+      assertEquals(7, storage.numRows());
+      final byte[] branch_id = Branch.stringToId(
+          "00010001A2460001CB54247F72020001BECD000181A800000030");
+      final byte[] leaf = new Leaf("user", "").columnQualifier();
+      storage.flushColumn(branch_id, Tree.TREE_FAMILY(), leaf);
+      storage.flushColumn(branch_id, Tree.TREE_FAMILY(), 
+          "branch".getBytes(MockBase.ASCII()));
+      
+      // a new builder knows the branches and leaf were stored already
+      new TreeBuilder(storage.getTSDB(), tree)
+        .processTimeseriesMeta(meta, false).joinUninterruptibly();
+      assertNull(storage.getColumn(branch_id, leaf));
+      assertNull(storage.getColumn(branch_id, 
+          "branch".getBytes(MockBase.ASCII())));
+      
+      // until the tree is deleted
+      TreeBuilder.clearBranchCache(tree.getTreeId());
+      new TreeBuilder(storage.getTSDB(), tree)
+        .processTimeseriesMeta(meta, false).joinUninterruptibly();
+      assertNotNull(storage.getColumn(branch_id, leaf));
+    } finally {
+      TreeBuilder.clearBranchCache(tree.getTreeId());
+    }
+  }
+  
   @Test
   public void processTimeseriesMetaNewRoot() throws Exception {
     storage.flushStorage();
@@ -0,0 +1,174 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+
+import org.hbase.async.DeleteRequest;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.RowLock;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Branch.class, RowLock.class, PutRequest.class,
+  HBaseClient.class, Scanner.class, GetRequest.class, KeyValue.class,
+  DeleteRequest.class, Tree.class})
+public final class TestTreeProcessingQueue {
+  private MockBase storage;
+  private Tree tree = TestTree.buildTestTree();
+
+  @Before
+  public void before() throws Exception {
+    storage = new MockBase(true, true, true, true, true);
+    final List<Tree> trees = new ArrayList<Tree>(1);
+    trees.add(tree);
+    PowerMockito.spy(Tree.class);
+    PowerMockito.doReturn(Deferred.fromResult(trees)).when(Tree.class,
+        "fetchAllTrees", (TSDB)any());
+  }
+
+  @Test
+  public void enqueue() throws Exception {
+    final TreeProcessingQueue queue =
+      new TreeProcessingQueue(storage.getTSDB(), 10, 1);
+    assertTrue(queue.enqueue(buildMeta("0102030405", "user"))
+        .joinUninterruptibly());
+    assertTrue(queue.enqueue(buildMeta("0102030406", "system"))
+        .joinUninterruptibly());
+    waitForQueue(queue);
+    // both series share their branches and end up as two leaves of the same
+    // branch
+    final byte[] branch_id = Branch.stringToId(
+        "00010001A2460001CB54247F72020001BECD000181A800000030");
+    assertNotNull(storage.getColumn(branch_id,
+        new Leaf("user", "").columnQualifier()));
+    assertNotNull(storage.getColumn(branch_id,
+        new Leaf("system", "").columnQualifier()));
+    assertEquals(3, storage.numColumns(branch_id));
+  }
+
+  @Test
+  public void processBatchWhileLoadingRoot() throws Exception {
+    // the root isn't cached, and loading it completes in another thread
+    TreeBuilder.clearBranchCache(1);
+    PowerMockito.spy(Branch.class);
+    PowerMockito.doAnswer(new Answer<Deferred<Branch>>() {
+      public Deferred<Branch> answer(final InvocationOnMock invocation) {
+        final Deferred<Branch> root = new Deferred<Branch>();
+        new Thread() {
+          public void run() {
+            try {
+              Thread.sleep(50);
+            } catch (InterruptedException e) { }
+            root.callback(null);
+          }
+        }.start();
+        return root;
+      }
+    }).when(Branch.class, "fetchBranchOnly", (TSDB)any(), (byte[])any());
+
+    final TreeProcessingQueue queue =
+      new TreeProcessingQueue(storage.getTSDB(), 10, 1);
+    final ArrayList<TSMeta> batch = new ArrayList<TSMeta>(2);
+    batch.add(buildMeta("0102030405", "user"));
+    batch.add(buildMeta("0102030406", "system"));
+    final Method process =
+      TreeProcessingQueue.Thrd.class.getDeclaredMethod("process",
+          ArrayList.class);
+    process.setAccessible(true);
+    process.invoke(queue.new Thrd(1), batch);
+
+    final byte[] branch_id = Branch.stringToId(
+        "00010001A2460001CB54247F72020001BECD000181A800000030");
+    assertNotNull(storage.getColumn(branch_id,
+        new Leaf("user", "").columnQualifier()));
+    assertNotNull(storage.getColumn(branch_id,
+        new Leaf("system", "").columnQualifier()));
+    assertEquals(3, storage.numColumns(branch_id));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroSize() throws Exception {
+    new TreeProcessingQueue(storage.getTSDB(), 0, 1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroThreads() throws Exception {
+    new TreeProcessingQueue(storage.getTSDB(), 10, 0);
+  }
+
+  /** Waits until the worker processed everything queued, up to 10s. */
+  private void waitForQueue(final TreeProcessingQueue queue)
+    throws Exception {
+    final byte[] branch_id = Branch.stringToId(
+        "00010001A2460001CB54247F72020001BECD000181A800000030");
+    for (int i = 0; i < 1000; i++) {
+      if (queue.size() == 0 && storage.numColumns(branch_id) == 3) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  /** Builds a TSMeta for sys.cpu.0{host=web-01.lga.mysite.com,type=...} */
+  private static TSMeta buildMeta(final String tsuid, final String type)
+    throws Exception {
+    final TSMeta meta = new TSMeta(tsuid);
+    final Field metric = TSMeta.class.getDeclaredField("metric");
+    metric.setAccessible(true);
+    metric.set(meta, new UIDMeta(UniqueIdType.METRIC, new byte[] { 1 },
+        "sys.cpu.0"));
+    final ArrayList<UIDMeta> tags = new ArrayList<UIDMeta>(4);
+    tags.add(new UIDMeta(UniqueIdType.TAGK, new byte[] { 2 }, "host"));
+    tags.add(new UIDMeta(UniqueIdType.TAGV, new byte[] { 3 },
+        "web-01.lga.mysite.com"));
+    tags.add(new UIDMeta(UniqueIdType.TAGK, new byte[] { 4 }, "type"));
+    tags.add(new UIDMeta(UniqueIdType.TAGV,
+        new byte[] { (byte) tsuid.charAt(9) }, type));
+    final Field tags_field = TSMeta.class.getDeclaredField("tags");
+    tags_field.setAccessible(true);
+    tags_field.set(meta, tags);
+    return meta;
+  }
+}
@@ -106,6 +106,21 @@ public final class TestTreeRule {
     assertNull(rule.getCompiledRegex());
   }
   
+  @Test
+  public void getCompiledSeparator() {
+    rule.setSeparator("\\.");
+    assertEquals("\\.", rule.getCompiledSeparator().pattern());
+    assertTrue(rule.getCompiledSeparator() == rule.getCompiledSeparator());
+    rule.setSeparator("-");
+    assertEquals("-", rule.getCompiledSeparator().pattern());
+  }
+  
+  @Test
+  public void getCompiledSeparatorEmpty() {
+    rule.setSeparator("");
+    assertNull(rule.getCompiledSeparator());
+  }
+  
   @Test
   public void stringToTypeMetric() {
     assertEquals(TreeRuleType.METRIC, TreeRule.stringToType("Metric"));
@@ -0,0 +1,174 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class TestGraphCache {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void loadExistingFiles() throws Exception {
+    final File png = write("a.png", 100);
+    write("a.json", 10);
+    write("empty.err", 0);
+    final GraphCache cache = newCache(0, 0);
+    assertEquals(2, cache.files());
+    assertEquals(110, cache.size());
+    final GraphCache.CachedFile file = cache.get(png.getPath());
+    assertNotNull(file);
+    assertEquals(100, file.length());
+    assertEquals(png.lastModified(), file.mtime());
+    assertNull(cache.get(folder.getRoot().getPath() + "/b.png"));
+  }
+
+  @Test
+  public void add() throws Exception {
+    final GraphCache cache = newCache(0, 0);
+    final File png = write("a.png", 100);
+    assertNull(cache.get(png.getPath()));
+    cache.add(png.getPath());
+    assertEquals(100, cache.get(png.getPath()).length());
+    // Overwriting the file replaces the entry.
+    write("a.png", 50);
+    cache.add(png.getPath());
+    assertEquals(1, cache.files());
+    assertEquals(50, cache.size());
+  }
+
+  @Test
+  public void addMissingFile() throws Exception {
+    final GraphCache cache = newCache(0, 0);
+    cache.add(folder.getRoot().getPath() + "/nosuchfile.png");
+    assertEquals(0, cache.files());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void forget() throws Exception {
+    final File png = write("a.png", 100);
+    final GraphCache cache = newCache(0, 0);
+    cache.forget(png.getPath());
+    assertNull(cache.get(png.getPath()));
+    assertEquals(0, cache.size());
+    assertTrue(png.exists());
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    final GraphCache cache = newCache(250, 0);
+    final File a = write("a.png", 100);
+    final File b = write("b.png", 100);
+    cache.add(a.getPath());
+    cache.add(b.getPath());
+    // Touch a, so that b is the least recently used file.
+    assertNotNull(cache.get(a.getPath()));
+    final File c = write("c.png", 100);
+    cache.add(c.getPath());
+    assertEquals(2, cache.files());
+    assertEquals(200, cache.size());
+    assertNull(cache.get(b.getPath()));
+    assertFalse(b.exists());
+    assertTrue(a.exists());
+    assertTrue(c.exists());
+  }
+
+  @Test
+  public void evictOnLoad() throws Exception {
+    final File a = write("a.png", 100);
+    a.setLastModified(System.currentTimeMillis() - 10000);
+    final File b = write("b.png", 100);
+    final GraphCache cache = newCache(150, 0);
+    assertEquals(1, cache.files());
+    assertFalse(a.exists());
+    assertTrue(b.exists());
+  }
+
+  @Test
+  public void expireOnGet() throws Exception {
+    final File a = write("a.png", 100);
+    a.setLastModified(System.currentTimeMillis() - 120000);
+    final File b = write("b.png", 100);
+    final GraphCache cache = newCache(0, 60000);
+    assertNull(cache.get(a.getPath()));
+    assertFalse(a.exists());
+    assertNotNull(cache.get(b.getPath()));
+    assertEquals(1, cache.files());
+    assertEquals(100, cache.size());
+  }
+
+  @Test
+  public void expireOnAdd() throws Exception {
+    final File a = write("a.png", 100);
+    a.setLastModified(System.currentTimeMillis() - 120000);
+    final GraphCache cache = newCache(0, 60000);
+    assertEquals(0, cache.files());
+    assertFalse(a.exists());
+  }
+
+  @Test
+  public void json() throws Exception {
+    final File json = write("a.json", 10);
+    final GraphCache cache = newCache(0, 0);
+    final GraphCache.CachedFile file = cache.get(json.getPath());
+    assertNull(file.json());
+    final HashMap<String, Object> map = new HashMap<String, Object>();
+    map.put("plotted", 42);
+    file.setJson(map);
+    assertEquals(42, cache.get(json.getPath()).json().get("plotted"));
+    // Rewriting the file drops the parsed contents.
+    cache.add(json.getPath());
+    assertNull(cache.get(json.getPath()).json());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeMaxSize() throws Exception {
+    newCache(-1, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeMaxAge() throws Exception {
+    newCache(0, -1);
+  }
+
+  private GraphCache newCache(final long max_size, final long max_age) {
+    return new GraphCache(folder.getRoot().getPath(), max_size, max_age);
+  }
+
+  /** Writes a file of the given size in the cache directory. */
+  private File write(final String name, final int size) throws IOException {
+    final File file = new File(folder.getRoot(), name);
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+}
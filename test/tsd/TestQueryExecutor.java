@@ -0,0 +1,72 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public final class TestQueryExecutor {
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroThreads() {
+    new QueryExecutor(0, 1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroQueue() {
+    new QueryExecutor(1, 0);
+  }
+
+  @Test
+  public void execute() throws Exception {
+    final QueryExecutor executor = new QueryExecutor(2, 4);
+    final CountDownLatch done = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(executor.execute(new Runnable() {
+        public void run() {
+          done.countDown();
+        }
+      }));
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    executor.shutdown();
+  }
+
+  @Test
+  public void executeSaturated() throws Exception {
+    final QueryExecutor executor = new QueryExecutor(1, 1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Runnable blocker = new Runnable() {
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    assertTrue(executor.execute(blocker));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertTrue(executor.execute(blocker));  // Waits in the queue.
+    assertFalse(executor.execute(blocker));  // Nowhere to go.
+    release.countDown();
+    executor.shutdown();
+  }
+}
@@ -13,6 +13,7 @@
 package net.opentsdb.tsd;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
@@ -85,6 +86,15 @@ public final class TestQueryRpc {
     assertEquals("sys.cpu.0", sub.getMetric());
   }
   
+  @Test
+  public void parseQueryShowStats() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, 
+      "/api/query?start=1h-ago&m=sum:sys.cpu.0&show_stats");
+    TSQuery tsq = (TSQuery) parseQuery.invoke(rpc, tsdb, query);
+    assertTrue(tsq.getShowStats());
+    assertFalse(tsq.getShowTSUIDs());
+  }
+  
   @Test
   public void parseQueryMTypeWEnd() throws Exception {
     HttpQuery query = NettyMocks.getQuery(tsdb, 
@@ -315,6 +315,26 @@ public final class TestRpcHandler {
     rpc.messageReceived(ctx, message);
   }
   
+  @Test
+  public void httpRouteStats() {
+    final HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, 
+        HttpMethod.GET, "/api/v1/aggregators");
+    handleHttpRpc(req,
+      new Answer<ChannelFuture>() {
+        public ChannelFuture answer(final InvocationOnMock args) 
+          throws Throwable {
+          return null;
+        }        
+      }
+    );
+    final RpcStats stats = RpcStats.get("http", "api/aggregators");
+    final long requests = stats.requests();
+    final RpcHandler rpc = new RpcHandler(tsdb);
+    rpc.messageReceived(ctx, message);
+    assertEquals(requests + 1, stats.requests());
+    assertEquals(0, stats.inFlight());
+  }
+
   private void handleHttpRpc(final HttpRequest req, final Answer<?> answer) {
     final Channel channel = NettyMocks.fakeChannel();
     when(message.getMessage()).thenReturn(req);
@@ -0,0 +1,78 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import net.opentsdb.stats.StatsCollector;
+
+import org.junit.Test;
+
+public final class TestRpcStats {
+
+  @Test
+  public void get() {
+    final RpcStats stats = RpcStats.get("http", "api/test_get");
+    assertSame(stats, RpcStats.get("http", "api/test_get"));
+    assertNotSame(stats, RpcStats.get("telnet", "api/test_get"));
+  }
+
+  @Test
+  public void startAndDone() {
+    final RpcStats stats = RpcStats.get("telnet", "test_start");
+    stats.start(42);
+    stats.start(42);
+    assertEquals(2, stats.inFlight());
+    stats.done(5, 0);
+    assertEquals(1, stats.inFlight());
+    assertEquals(2, stats.requests());
+  }
+
+  @Test
+  public void collectStats() {
+    final RpcStats stats = RpcStats.get("http", "api/test_collect");
+    stats.start(10);
+    stats.done(3, 100);
+    RpcStats.get("http", "");
+
+    final ArrayList<String> lines = new ArrayList<String>();
+    RpcStats.collectStats(new StatsCollector("tsd") {
+      @Override
+      public void emit(final String line) {
+        lines.add(line);
+      }
+    });
+    boolean requests = false;
+    boolean bytes_out = false;
+    boolean root = false;
+    for (final String line : lines) {
+      if (line.startsWith("tsd.rpc.route.requests ") 
+          && line.contains(" 1 route=api/test_collect type=http")) {
+        requests = true;
+      } else if (line.startsWith("tsd.rpc.route.bytes_out ")
+          && line.contains(" 100 route=api/test_collect type=http")) {
+        bytes_out = true;
+      } else if (line.contains("route=root type=http")) {
+        root = true;
+      }
+    }
+    assertTrue(requests);
+    assertTrue(bytes_out);
+    assertTrue(root);
+  }
+}
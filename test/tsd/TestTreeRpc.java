@@ -411,6 +411,49 @@ public final class TestTreeRpc {
         .contains("\"branches\":["));
   }
   
+  @Test
+  public void handleBranchCached() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.http.tree.branch_cache.max_size", 
+        "100");
+    setupStorage();
+    setupBranch();
+    HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/tree/branch?branch=00010001BECD000181A8");
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    
+    // served from the cache even though it's gone from storage
+    storage.flushRow(Branch.stringToId("00010001BECD000181A8"));
+    query = NettyMocks.getQuery(tsdb, 
+        "/api/tree/branch?branch=00010001BECD000181A8");
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    assertTrue(query.response().getContent().toString(MockBase.ASCII())
+        .contains("\"metric\":\"sys.cpu.0\""));
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void handleBranchCacheClearedOnTreeEdit() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.http.tree.branch_cache.max_size", 
+        "100");
+    setupStorage();
+    setupBranch();
+    HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/tree/branch?branch=00010001BECD000181A8");
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    
+    query = NettyMocks.getQuery(tsdb, 
+      "/api/tree?treeid=1&method_override=post&description=HelloWorld");
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    
+    storage.flushRow(Branch.stringToId("00010001BECD000181A8"));
+    query = NettyMocks.getQuery(tsdb, 
+        "/api/tree/branch?branch=00010001BECD000181A8");
+    rpc.execute(tsdb, query);
+  }
+  
   @Test (expected = BadRequestException.class)
   public void handleBranchNotFound() throws Exception {
     setupStorage();
@@ -0,0 +1,100 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class TestBoundedUniqueIdCache {
+  private static final byte[] ID = { 0, 0, 1 };
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroCapacity() {
+    new BoundedUniqueIdCache(0);
+  }
+
+  @Test
+  public void addAndGet() {
+    final BoundedUniqueIdCache cache = new BoundedUniqueIdCache(100);
+    assertNull(cache.addId("sys.cpu.user", ID));
+    assertNull(cache.addName(ID, "sys.cpu.user"));
+    assertArrayEquals(ID, cache.getId("sys.cpu.user"));
+    assertEquals("sys.cpu.user", cache.getName(ID));
+    assertArrayEquals(ID, cache.addId("sys.cpu.user", new byte[] { 0, 0, 2 }));
+    assertEquals("sys.cpu.user", cache.addName(ID, "sys.cpu.nice"));
+    assertEquals(2, cache.size());
+    assertEquals(0, cache.evictions());
+  }
+
+  @Test
+  public void replaceNameAndRemoveId() {
+    final BoundedUniqueIdCache cache = new BoundedUniqueIdCache(100);
+    cache.addId("sys.cpu.user", ID);
+    cache.addName(ID, "sys.cpu.user");
+    cache.replaceName(ID, "sys.cpu.nice");
+    cache.removeId("sys.cpu.user");
+    assertNull(cache.getId("sys.cpu.user"));
+    assertEquals("sys.cpu.nice", cache.getName(ID));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void clear() {
+    final BoundedUniqueIdCache cache = new BoundedUniqueIdCache(100);
+    cache.addId("sys.cpu.user", ID);
+    cache.addName(ID, "sys.cpu.user");
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.getId("sys.cpu.user"));
+  }
+
+  @Test
+  public void bounded() {
+    final BoundedUniqueIdCache cache = new BoundedUniqueIdCache(100);
+    for (int i = 0; i < 1000; i++) {
+      cache.addId("host" + i, new byte[] { 0, (byte) (i >>> 8), (byte) i });
+    }
+    assertEquals(100, cache.size());
+    assertEquals(900, cache.evictions());
+  }
+
+  @Test
+  public void frequentEntriesSurviveScans() {
+    final BoundedUniqueIdCache cache = new BoundedUniqueIdCache(100);
+    for (int i = 0; i < 50; i++) {
+      cache.addId("hot" + i, ID);
+    }
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 50; i++) {
+        assertNotNull(cache.getId("hot" + i));
+      }
+    }
+    // A burst of one-off names must not flush the popular ones.
+    for (int i = 0; i < 500; i++) {
+      cache.addId("cold" + i, ID);
+    }
+    int hits = 0;
+    for (int i = 0; i < 50; i++) {
+      if (cache.getId("hot" + i) != null) {
+        hits++;
+      }
+    }
+    assertEquals(50, hits);
+    assertTrue(cache.size() <= 100);
+  }
+}
@@ -0,0 +1,69 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class TestNegativeUniqueIdCache {
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroSize() {
+    new NegativeUniqueIdCache(0, 1000);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroTTL() {
+    new NegativeUniqueIdCache(10, 0);
+  }
+
+  @Test
+  public void addAndContains() {
+    final NegativeUniqueIdCache cache = new NegativeUniqueIdCache(10, 1000);
+    assertFalse(cache.contains("sys.cpu.user", 0));
+    cache.add("sys.cpu.user", 0);
+    assertTrue(cache.contains("sys.cpu.user", 999));
+    assertEquals(1, cache.hits());
+  }
+
+  @Test
+  public void expires() {
+    final NegativeUniqueIdCache cache = new NegativeUniqueIdCache(10, 1000);
+    cache.add("sys.cpu.user", 0);
+    assertFalse(cache.contains("sys.cpu.user", 1000));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.hits());
+  }
+
+  @Test
+  public void remove() {
+    final NegativeUniqueIdCache cache = new NegativeUniqueIdCache(10, 1000);
+    cache.add("sys.cpu.user", 0);
+    cache.remove("sys.cpu.user");
+    assertFalse(cache.contains("sys.cpu.user", 0));
+  }
+
+  @Test
+  public void bounded() {
+    final NegativeUniqueIdCache cache = new NegativeUniqueIdCache(10, 1000);
+    for (int i = 0; i < 100; i++) {
+      cache.add("host" + i, 0);
+    }
+    assertEquals(10, cache.size());
+    assertFalse(cache.contains("host0", 0));
+    assertTrue(cache.contains("host99", 0));
+  }
+}
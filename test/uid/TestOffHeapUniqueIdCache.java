@@ -0,0 +1,142 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestOffHeapUniqueIdCache {
+  private static final byte[] ID = { 0, 0, 1 };
+  private OffHeapUniqueIdCache cache;
+
+  @Before
+  public void before() {
+    cache = new OffHeapUniqueIdCache();
+  }
+
+  @Test
+  public void addAndGet() {
+    assertNull(cache.addId("sys.cpu.user", ID));
+    assertNull(cache.addName(ID, "sys.cpu.user"));
+    assertArrayEquals(ID, cache.getId("sys.cpu.user"));
+    assertEquals("sys.cpu.user", cache.getName(ID));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void getMissing() {
+    assertNull(cache.getId("sys.cpu.user"));
+    assertNull(cache.getName(ID));
+  }
+
+  @Test
+  public void addExisting() {
+    cache.addId("sys.cpu.user", ID);
+    cache.addName(ID, "sys.cpu.user");
+    assertArrayEquals(ID, cache.addId("sys.cpu.user", new byte[] { 0, 0, 2 }));
+    assertEquals("sys.cpu.user", cache.addName(ID, "sys.cpu.nice"));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void defensiveCopies() {
+    final byte[] id = { 0, 0, 1 };
+    cache.addId("sys.cpu.user", id);
+    id[2] = 2;
+    final byte[] found = cache.getId("sys.cpu.user");
+    assertArrayEquals(ID, found);
+    found[2] = 3;
+    assertArrayEquals(ID, cache.getId("sys.cpu.user"));
+  }
+
+  @Test
+  public void unicodeNames() {
+    cache.addId("été.温度", ID);
+    cache.addName(ID, "été.温度");
+    assertArrayEquals(ID, cache.getId("été.温度"));
+    assertEquals("été.温度", cache.getName(ID));
+  }
+
+  @Test
+  public void replaceNameAndRemoveId() {
+    cache.addId("sys.cpu.user", ID);
+    cache.addName(ID, "sys.cpu.user");
+    cache.addId("sys.cpu.nice", ID);
+    cache.replaceName(ID, "sys.cpu.nice");
+    cache.removeId("sys.cpu.user");
+    assertNull(cache.getId("sys.cpu.user"));
+    assertArrayEquals(ID, cache.getId("sys.cpu.nice"));
+    assertEquals("sys.cpu.nice", cache.getName(ID));
+    assertEquals(2, cache.size());
+    cache.removeId("sys.cpu.user");
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void clear() {
+    cache.addId("sys.cpu.user", ID);
+    cache.addName(ID, "sys.cpu.user");
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.getId("sys.cpu.user"));
+    assertNull(cache.getName(ID));
+  }
+
+  @Test
+  public void manyEntries() {
+    final int count = 100000;
+    for (int i = 0; i < count; i++) {
+      final byte[] id = { (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+      assertNull(cache.addId("host" + i, id));
+      assertNull(cache.addName(id, "host" + i));
+    }
+    assertEquals(count * 2, cache.size());
+    for (int i = 0; i < count; i++) {
+      final byte[] id = { (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+      assertArrayEquals(id, cache.getId("host" + i));
+      assertEquals("host" + i, cache.getName(id));
+    }
+    assertTrue(cache.offHeapBytes() > count * 2 * 12);
+  }
+
+  @Test
+  public void largeEntry() {
+    final StringBuilder buf = new StringBuilder();
+    while (buf.length() <= OffHeapUniqueIdCache.Table.CHUNK_SIZE) {
+      buf.append("0123456789");
+    }
+    final String name = buf.toString();
+    cache.addId("a", ID);
+    cache.addId(name, new byte[] { 0, 0, 2 });
+    cache.addId("b", new byte[] { 0, 0, 3 });
+    assertArrayEquals(ID, cache.getId("a"));
+    assertArrayEquals(new byte[] { 0, 0, 2 }, cache.getId(name));
+    assertArrayEquals(new byte[] { 0, 0, 3 }, cache.getId("b"));
+  }
+
+  @Test
+  public void rehashWithTombstones() {
+    for (int i = 0; i < 10000; i++) {
+      cache.addId("host" + i, ID);
+      cache.removeId("host" + i);
+    }
+    assertEquals(0, cache.size());
+    cache.addId("host", ID);
+    assertArrayEquals(ID, cache.getId("host"));
+  }
+}
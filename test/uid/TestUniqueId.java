@@ -38,6 +38,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.mockito.ArgumentMatcher;
@@ -238,6 +239,135 @@ public final class TestUniqueId {
     uid.getId("foo");
   }
 
+  @Test
+  public void getIdAsyncMergesConcurrentLookups() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+    final Deferred<ArrayList<KeyValue>> get = 
+        new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet())).thenReturn(get);
+
+    final Deferred<byte[]> first = uid.getIdAsync("foo");
+    final Deferred<byte[]> second = uid.getIdAsync("foo");
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(byte_name, ID, kind_array, id));
+    get.callback(kvs);
+
+    assertArrayEquals(id, first.joinUninterruptibly());
+    assertArrayEquals(id, second.joinUninterruptibly());
+    assertEquals(1, uid.cacheMisses());
+    verify(client).get(anyGet());
+  }
+
+  @Test
+  public void getIdAsyncMergesConcurrentMisses() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final Deferred<ArrayList<KeyValue>> get = 
+        new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet())).thenReturn(get)
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+
+    final Deferred<byte[]> first = uid.getIdAsync("foo");
+    final Deferred<byte[]> second = uid.getIdAsync("foo");
+    get.callback(null);
+
+    for (final Deferred<byte[]> d : Arrays.asList(first, second)) {
+      try {
+        d.joinUninterruptibly();
+        fail("Expected a NoSuchUniqueName");
+      } catch (NoSuchUniqueName e) { }
+    }
+    // The lookup is over, so the next one goes to HBase again.
+    try {
+      uid.getId("foo");
+      fail("Expected a NoSuchUniqueName");
+    } catch (NoSuchUniqueName e) { }
+    verify(client, times(2)).get(anyGet());
+  }
+
+  @Test
+  public void getIdAsyncLookupThrows() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(byte_name, ID, kind_array, id));
+    when(client.get(anyGet()))
+      .thenThrow(new IllegalStateException("Client is shutting down"))
+      .thenReturn(Deferred.fromResult(kvs));
+
+    try {
+      uid.getIdAsync("foo");
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) { }
+    // The failed lookup is over, the next one mustn't wait on it.
+    assertArrayEquals(id, uid.getIdAsync("foo").joinUninterruptibly(5000));
+    verify(client, times(2)).get(anyGet());
+  }
+
+  @Test
+  public void getIdNegativeCache() {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.setNegativeCache(10, 60000);
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        uid.getId("foo");
+        fail("Expected a NoSuchUniqueName");
+      } catch (NoSuchUniqueName e) { }
+    }
+    assertEquals(2, uid.negativeCacheHits());
+    verify(client).get(anyGet());
+  }
+
+  @Test
+  public void getOrCreateIdInvalidatesNegativeCache() {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.setNegativeCache(10, 60000);
+    final byte[] id = { 0, 0, 5 };
+    final Config config = mock(Config.class);
+    when(config.enable_realtime_uid()).thenReturn(false);
+    final TSDB tsdb = mock(TSDB.class);
+    when(tsdb.getConfig()).thenReturn(config);
+    uid.setTSDB(tsdb);
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(5L));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true));
+
+    try {
+      uid.getId("foo");
+      fail("Expected a NoSuchUniqueName");
+    } catch (NoSuchUniqueName e) { }
+    assertArrayEquals(id, uid.getOrCreateId("foo"));
+    assertArrayEquals(id, uid.getId("foo"));
+    assertEquals(1, uid.negativeCacheHits());
+  }
+
+  @Test
+  public void negativeCacheDisabledByDefault() {
+    uid = new UniqueId(client, table, kind, 3);
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    for (int i = 0; i < 2; i++) {
+      try {
+        uid.getId("foo");
+        fail("Expected a NoSuchUniqueName");
+      } catch (NoSuchUniqueName e) { }
+    }
+    assertEquals(0, uid.negativeCacheHits());
+    verify(client, times(2)).get(anyGet());
+  }
+
   @Test
   public void getOrCreateIdWithExistingId() {
     uid = new UniqueId(client, table, kind, 3);
@@ -293,6 +423,74 @@ public final class TestUniqueId {
     verify(client, times(2)).compareAndSet(anyPut(), emptyArray());
   }
 
+  @Test
+  public void getOrCreateIdAssignIdFromLeasedBlock() {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.setIdBlockSize(10);
+    final Config config = mock(Config.class);
+    when(config.enable_realtime_uid()).thenReturn(false);
+    final TSDB tsdb = mock(TSDB.class);
+    when(tsdb.getConfig()).thenReturn(config);
+    uid.setTSDB(tsdb);
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(10L));
+    when(client.put(anyPut()))
+      .thenReturn(Deferred.fromResult(null))
+      .thenReturn(Deferred.fromResult(null));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true));
+
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uid.getOrCreateId("foo"));
+    assertArrayEquals(new byte[] { 0, 0, 2 }, uid.getOrCreateId("bar"));
+    assertEquals("bar", uid.getName(new byte[] { 0, 0, 2 }));
+
+    // One increment for the whole block.
+    verify(client).atomicIncrement(incrementForRow(MAXID));
+    // Reverse mappings are put, forward mappings are CAS'ed.
+    verify(client, times(2)).put(anyPut());
+    verify(client, times(2)).compareAndSet(anyPut(), emptyArray());
+  }
+
+  @Test
+  public void getOrCreateIdLeasesNextBlock() {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.setIdBlockSize(2);
+    final Config config = mock(Config.class);
+    when(config.enable_realtime_uid()).thenReturn(false);
+    final TSDB tsdb = mock(TSDB.class);
+    when(tsdb.getConfig()).thenReturn(config);
+    uid.setTSDB(tsdb);
+
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(2L))
+      .thenReturn(Deferred.fromResult(6L));  // Another TSD leased 3 and 4.
+    when(client.put(anyPut()))
+      .thenReturn(Deferred.fromResult(null))
+      .thenReturn(Deferred.fromResult(null))
+      .thenReturn(Deferred.fromResult(null));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true));
+
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uid.getOrCreateId("foo"));
+    assertArrayEquals(new byte[] { 0, 0, 2 }, uid.getOrCreateId("bar"));
+    assertArrayEquals(new byte[] { 0, 0, 5 }, uid.getOrCreateId("baz"));
+    verify(client, times(2)).atomicIncrement(incrementForRow(MAXID));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void setIdBlockSizeZero() {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.setIdBlockSize(0);
+  }
+
   @PrepareForTest({HBaseClient.class, UniqueId.class})
   @Test  // Test the creation of an ID when unable to increment MAXID
   public void getOrCreateIdUnableToIncrementMaxId() throws Exception {
@@ -548,6 +746,144 @@ public final class TestUniqueId {
     verify(client, never()).get(anyGet());
   }
 
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test
+  public void preloadCaches() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final UniqueId tagk = new UniqueId(client, table, "tagk", 3);
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table)).thenReturn(fake_scanner);
+
+    final ArrayList<ArrayList<KeyValue>> rows = 
+      new ArrayList<ArrayList<KeyValue>>(2);
+    final byte[] foo_bar_id = { 0, 0, 1 };
+    {
+      // the max ID row must be ignored
+      ArrayList<KeyValue> row = new ArrayList<KeyValue>(2);
+      row.add(new KeyValue(new byte[] { 0 }, ID, kind_array, 
+          Bytes.fromLong(2)));
+      rows.add(row);
+      row = new ArrayList<KeyValue>(2);
+      row.add(new KeyValue("foo.bar".getBytes(), ID, kind_array, foo_bar_id));
+      row.add(new KeyValue("foo.bar".getBytes(), ID, "tagk".getBytes(), 
+          new byte[] { 0, 0, 2 }));
+      rows.add(row);
+    }
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(rows))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+
+    assertEquals(2L, (long) UniqueId.preloadCaches(client, table, 1, uid, 
+        tagk).joinUninterruptibly());
+    assertArrayEquals(foo_bar_id, uid.getId("foo.bar"));
+    assertEquals("foo.bar", uid.getName(foo_bar_id));
+    assertArrayEquals(new byte[] { 0, 0, 2 }, tagk.getId("foo.bar"));
+    verify(client, never()).get(anyGet());
+    verify(fake_scanner).setFamily(ID);
+  }
+
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test
+  public void preloadCachesRanges() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table)).thenReturn(fake_scanner);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+
+    assertEquals(0L, (long) UniqueId.preloadCaches(client, table, 4, uid)
+        .joinUninterruptibly());
+    verify(client, times(4)).newScanner(table);
+    verify(fake_scanner).setStartKey(new byte[] { 64 });
+    verify(fake_scanner).setStartKey(new byte[] { (byte) 128 });
+    verify(fake_scanner).setStartKey(new byte[] { (byte) 192 });
+    verify(fake_scanner).setStopKey(new byte[] { 64 });
+    verify(fake_scanner).setStopKey(new byte[] { (byte) 128 });
+    verify(fake_scanner).setStopKey(new byte[] { (byte) 192 });
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void preloadCachesNoScanners() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    UniqueId.preloadCaches(client, table, 0, uid);
+  }
+
+  @Test
+  public void suggestFromIndex() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.enableSuggestIndex();
+    uid.cacheMapping("foo.baz", new byte[] { 0, 0, 2 });
+    uid.cacheMapping("foo.bar", new byte[] { 0, 0, 1 });
+    uid.cacheMapping("fop", new byte[] { 0, 0, 3 });
+    uid.cacheMapping("bar", new byte[] { 0, 0, 4 });
+    uid.setSuggestIndexLoaded();
+    assertEquals(4, uid.suggestIndexSize());
+
+    assertEquals(Arrays.asList("foo.bar", "foo.baz"), uid.suggest("foo"));
+    assertEquals(Arrays.asList("foo.bar"), uid.suggest("foo", 1));
+    assertEquals(Arrays.asList("bar", "foo.bar", "foo.baz", "fop"), 
+        uid.suggest(""));
+    assertTrue(uid.suggest("nomatch").isEmpty());
+    verify(client, never()).newScanner(table);
+  }
+
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test
+  public void suggestFromIndexNotLoaded() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.enableSuggestIndex();
+    uid.cacheMapping("foo.bar", new byte[] { 0, 0, 1 });
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table)).thenReturn(fake_scanner);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    // not every name is known yet, so we still have to scan
+    assertTrue(uid.suggest("foo").isEmpty());
+    verify(client).newScanner(table);
+  }
+
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test
+  public void suggestIndexPreloaded() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.enableSuggestIndex();
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table)).thenReturn(fake_scanner);
+    final ArrayList<ArrayList<KeyValue>> rows = 
+      new ArrayList<ArrayList<KeyValue>>(1);
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue("foo.bar".getBytes(), ID, kind_array, 
+        new byte[] { 0, 0, 1 }));
+    rows.add(row);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(rows))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    UniqueId.preloadCaches(client, table, 1, uid).joinUninterruptibly();
+    uid.setSuggestIndexLoaded();
+
+    assertEquals(Arrays.asList("foo.bar"), uid.suggest("foo"));
+    verify(client, times(1)).newScanner(table);
+  }
+
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test
+  public void suggestIndexDisabled() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.cacheMapping("foo.bar", new byte[] { 0, 0, 1 });
+    uid.setSuggestIndexLoaded();
+    assertEquals(0, uid.suggestIndexSize());
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table)).thenReturn(fake_scanner);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    assertTrue(uid.suggest("foo").isEmpty());
+    verify(client).newScanner(table);
+  }
+
   @Test
   public void uidToString() {
     assertEquals("01", UniqueId.uidToString(new byte[] { 1 }));
@@ -0,0 +1,111 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.hbase.async.HBaseClient;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class })
+public final class TestUniqueIdSnapshot {
+  private static final byte[] TABLE = { 't', 'a', 'b', 'l', 'e' };
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics;
+  private UniqueId tagk;
+  private File file;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void before() throws Exception {
+    metrics = new UniqueId(client, TABLE, "metrics", 3);
+    tagk = new UniqueId(client, TABLE, "tagk", 3);
+    file = new File(folder.getRoot(), "uid.snapshot");
+  }
+
+  @Test
+  public void writeAndRead() throws Exception {
+    metrics.cacheMapping("sys.cpu.user", new byte[] { 0, 0, 1 });
+    metrics.cacheMapping("sys.cpu.nice", new byte[] { 0, 0, 2 });
+    tagk.cacheMapping("host", new byte[] { 0, 0, 1 });
+    assertEquals(3, UniqueIdSnapshot.write(file, metrics, tagk));
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+
+    final UniqueId metrics2 = new UniqueId(client, TABLE, "metrics", 3);
+    final UniqueId tagk2 = new UniqueId(client, TABLE, "tagk", 3);
+    assertEquals(3, UniqueIdSnapshot.read(file, metrics2, tagk2));
+    // all cache hits, the mock client would throw otherwise
+    assertArrayEquals(new byte[] { 0, 0, 1 }, metrics2.getId("sys.cpu.user"));
+    assertEquals("sys.cpu.nice", metrics2.getName(new byte[] { 0, 0, 2 }));
+    assertEquals("host", tagk2.getName(new byte[] { 0, 0, 1 }));
+    assertEquals(4, metrics2.cacheSize());
+    assertEquals(2, tagk2.cacheSize());
+  }
+
+  @Test
+  public void writeOverwrites() throws Exception {
+    metrics.cacheMapping("sys.cpu.user", new byte[] { 0, 0, 1 });
+    UniqueIdSnapshot.write(file, metrics);
+    metrics.dropCaches();
+    assertEquals(0, UniqueIdSnapshot.write(file, metrics));
+    assertEquals(0, UniqueIdSnapshot.read(file,
+        new UniqueId(client, TABLE, "metrics", 3)));
+  }
+
+  @Test
+  public void readSkipsUnknownKindsAndWidths() throws Exception {
+    metrics.cacheMapping("sys.cpu.user", new byte[] { 0, 0, 1 });
+    tagk.cacheMapping("host", new byte[] { 0, 0, 1 });
+    UniqueIdSnapshot.write(file, metrics, tagk);
+
+    final UniqueId tagk2 = new UniqueId(client, TABLE, "tagk", 4);
+    assertEquals(0, UniqueIdSnapshot.read(file, tagk2));
+    assertEquals(0, tagk2.cacheSize());
+  }
+
+  @Test (expected = IOException.class)
+  public void readNotASnapshot() throws Exception {
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write("Not a snapshot".getBytes());
+    out.close();
+    UniqueIdSnapshot.read(file, metrics);
+  }
+
+  @Test (expected = IOException.class)
+  public void readTruncated() throws Exception {
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] { 0x55, 0x49, 0x44, 0x43, 1, 0, 0, 0, 1 });
+    out.close();
+    UniqueIdSnapshot.read(file, metrics);
+  }
+}